@@ -0,0 +1,56 @@
+package singlecellqc;
+import java.util.*;
+import java.lang.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//////////////////////////////////////////////////////////
+//// Cell barcode lookups (Cell2Pos) at the size of a filtered cell list (10k) and of a
+//// raw barcode whitelist (7M), from tag bytes as processRead does it. One in ten
+//// lookups is for a barcode that is not a cell. Scores are per lookup.
+//////////////////////////////////////////////////////////
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BarcodeLookupBenchmark
+{
+    protected static final int numLookups=1<<16;
+
+    @Param({"10000","7000000"})
+    public int numCells;
+
+    protected BarcodeIndex index;
+    protected byte[][] queries; //barcodes to look up, as tag bytes
+
+    @Setup
+    public void setup()
+    {
+        Random rand=new Random(2);
+        String[] barcodes=BenchData.makeBarcodes(this.numCells,rand);
+        this.index=new BarcodeIndex(this.numCells);
+        for(int i=0;i<barcodes.length;i++)
+        {
+            this.index.put(barcodes[i],i);
+        }
+        this.queries=new byte[numLookups][];
+        for(int i=0;i<numLookups;i++)
+        {
+            String barcode=rand.nextInt(10)==0 ? BenchData.makeBarcodes(1,rand)[0] : barcodes[rand.nextInt(barcodes.length)];
+            this.queries[i]=barcode.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(numLookups)
+    public long lookupBytes()
+    {
+        long sum=0;
+        for(int i=0;i<numLookups;i++)
+        {
+            sum=sum+this.index.get(this.queries[i],0,this.queries[i].length);
+        }
+        return(sum);
+    }
+
+}
@@ -0,0 +1,218 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.zip.GZIPOutputStream;
+import htsjdk.samtools.*;
+
+//////////////////////////////////////////////////////////
+//// Synthetic inputs shared by the benchmarks: cell barcodes, a header with human
+//// sized contigs, CellRanger style records (with the tags processRead looks at) and
+//// a GTF with GENCODE-like numbers of genes and UTRs. Everything comes from a fixed
+//// seed so runs can be compared.
+//////////////////////////////////////////////////////////
+public class BenchData
+{
+    protected static final String[] contigNames={"chr1","chr2","chr3","chr4","chr5","chr6","chr7","chr8","chr9","chr10","chr11","chr12",
+        "chr13","chr14","chr15","chr16","chr17","chr18","chr19","chr20","chr21","chr22","chrX","chrY","chrM"};
+    protected static final int[] contigLengths={248956422,242193529,198295559,190214555,181538259,170805979,159345973,145138636,
+        138394717,133797422,135086622,133275309,114364328,107043718,101991189,90338345,83257441,80373285,58617616,64444167,
+        46709983,50818468,156040895,57227415,16569};
+    protected static final char[] bases={'A','C','G','T'};
+
+    //Makes n distinct 16 base barcodes with a -1 suffix, as in a CellRanger barcodes.tsv.gz
+    public static String[] makeBarcodes(int n,Random rand)
+    {
+        HashSet<String> seen=new HashSet<String>();
+        String[] ret=new String[n];
+        char[] bc=new char[18];
+        bc[16]='-';
+        bc[17]='1';
+        int i=0;
+        while(i<n)
+        {
+            for(int k=0;k<16;k++)
+            {
+                bc[k]=bases[rand.nextInt(4)];
+            }
+            String barcode=new String(bc);
+            if(seen.add(barcode))
+            {
+                ret[i]=barcode;
+                i=i+1;
+            }
+        }
+        return(ret);
+    }
+
+    //Writes barcodes gzipped, one per line
+    public static void writeBarcodes(File file,String[] barcodes) throws IOException
+    {
+        BufferedWriter bw=new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file))));
+        for(String barcode:barcodes)
+        {
+            bw.write(barcode);
+            bw.newLine();
+        }
+        bw.close();
+    }
+
+    //Header for a coordinate sorted bam on the human contigs
+    public static SAMFileHeader makeHeader()
+    {
+        SAMFileHeader header=new SAMFileHeader();
+        for(int i=0;i<contigNames.length;i++)
+        {
+            header.addSequence(new SAMSequenceRecord(contigNames[i],contigLengths[i]));
+        }
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        return(header);
+    }
+
+    ////////////////////
+    ////Makes numReads coordinate sorted reads spread over the first few contigs, most from cells
+    ////in barcodes, with 98 base reads, a mix of spliced, multimapped and unmapped reads and
+    ////tags as CellRanger writes them
+    /////////////////////
+    public static ArrayList<SAMRecord> makeRecords(SAMFileHeader header,String[] barcodes,int numReads,Random rand)
+    {
+        ArrayList<SAMRecord> reads=new ArrayList<SAMRecord>(numReads);
+        int numContigs=Math.min(4,contigNames.length);
+        int[] starts=new int[numReads];
+        for(int i=0;i<numReads;i++)
+        {
+            starts[i]=rand.nextInt(contigLengths[0]-1000)+1;
+        }
+        Arrays.sort(starts);
+        char[] quals=new char[16];
+        for(int i=0;i<numReads;i++)
+        {
+            SAMRecord read=new SAMRecord(header);
+            read.setReadName("A00000:1:HXXXXXXXX:1:1101:"+String.valueOf(i)+":1000");
+            int ref=(int)((long)i*numContigs/numReads);
+            String barcode=rand.nextInt(10)==0 ? makeBarcodes(1,rand)[0] : barcodes[rand.nextInt(barcodes.length)];
+            boolean unmapped=rand.nextInt(20)==0;
+            byte[] seq=new byte[98];
+            byte[] qual=new byte[98];
+            for(int k=0;k<98;k++)
+            {
+                seq[k]=(byte)bases[rand.nextInt(4)];
+                qual[k]=(byte)(2+rand.nextInt(40));
+            }
+            read.setReadBases(seq);
+            read.setBaseQualities(qual);
+            if(unmapped)
+            {
+                read.setReadUnmappedFlag(true);
+                read.setReferenceIndex(-1);
+                read.setAlignmentStart(0);
+            }else{
+                read.setReferenceIndex(ref);
+                read.setAlignmentStart(starts[i]);
+                read.setMappingQuality(rand.nextInt(4)==0 ? 3 : 255);
+                read.setCigarString(rand.nextInt(5)==0 ? "40M1000N58M" : "98M");
+                read.setAttribute("NH",rand.nextInt(10)==0 ? 2 : 1);
+                read.setAttribute("xf",rand.nextInt(2)==0 ? 25 : 17);
+                read.setAttribute("RE","EIN".charAt(rand.nextInt(3)));
+                read.setAttribute("GX","ENSG"+String.valueOf(10000000+rand.nextInt(60000)));
+                if(rand.nextInt(3)==0)
+                {
+                    read.setAttribute("TX","ENST00000000001,+1234,98M");
+                }else if(rand.nextInt(10)==0){
+                    read.setAttribute("AN","ENST00000000001,-1234,98M");
+                }
+                if(rand.nextInt(10)==0)
+                {
+                    read.setAttribute("pa",10+rand.nextInt(20));
+                }
+                if(rand.nextInt(20)==0)
+                {
+                    read.setAttribute("ts",10+rand.nextInt(20));
+                }
+            }
+            read.setAttribute("CR",barcode.substring(0,16));
+            read.setAttribute("CB",barcode);
+            read.setAttribute("CY",randomQual(quals,16,rand));
+            String umi=makeBarcodes(1,rand)[0].substring(0,12);
+            read.setAttribute("UR",umi);
+            read.setAttribute("UB",umi);
+            read.setAttribute("UY",randomQual(quals,12,rand));
+            reads.add(read);
+        }
+        return(reads);
+    }
+
+    protected static String randomQual(char[] buf,int len,Random rand)
+    {
+        for(int k=0;k<len;k++)
+        {
+            buf[k]=(char)(33+2+rand.nextInt(40));
+        }
+        return(new String(buf,0,len));
+    }
+
+    //Encodes a record the way it is stored in a bam, without the block_size in front (as BamRecordReader.nextRaw gives it)
+    public static byte[] toRaw(SAMRecord read)
+    {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        BAMRecordCodec codec=new BAMRecordCodec(read.getHeader());
+        codec.setOutputStream(out);
+        codec.encode(read);
+        byte[] encoded=out.toByteArray();
+        return(Arrays.copyOfRange(encoded,4,encoded.length));
+    }
+
+    ////////////////////
+    ////Writes a GTF with numGenes genes on the human contigs, each with a gene and exon line and
+    ////a few UTR lines (about GENCODE's ratio of UTR records to genes)
+    /////////////////////
+    public static void writeGtf(File file,int numGenes,Random rand) throws IOException
+    {
+        BufferedWriter bw=new BufferedWriter(new FileWriter(file),1<<20);
+        bw.write("##description: synthetic benchmark annotation");
+        bw.newLine();
+        for(int g=0;g<numGenes;g++)
+        {
+            int c=(int)((long)g*(contigNames.length-1)/numGenes);
+            int start=1+rand.nextInt(contigLengths[c]-200000);
+            int end=start+1000+rand.nextInt(100000);
+            String attrs="gene_id \"ENSG"+String.valueOf(10000000+g)+"\"; gene_version \"1\"; gene_name \"GENE"+String.valueOf(g)+"\"; gene_type \"protein_coding\";";
+            writeGtfLine(bw,contigNames[c],"gene",start,end,attrs);
+            writeGtfLine(bw,contigNames[c],"exon",start,start+200,attrs+" transcript_id \"ENST"+String.valueOf(10000000+g)+"\";");
+            int numUTR=1+rand.nextInt(12);
+            for(int u=0;u<numUTR;u++)
+            {
+                int utrStart=start+rand.nextInt(end-start-500);
+                writeGtfLine(bw,contigNames[c],u%2==0 ? "three_prime_utr" : "five_prime_utr",utrStart,utrStart+50+rand.nextInt(2000),attrs+" transcript_id \"ENST"+String.valueOf(10000000+g)+"\";");
+            }
+        }
+        bw.close();
+    }
+
+    protected static void writeGtfLine(BufferedWriter bw,String contig,String type,int start,int end,String attrs) throws IOException
+    {
+        bw.write(contig+"\tHAVANA\t"+type+"\t"+String.valueOf(start)+"\t"+String.valueOf(end)+"\t.\t+\t.\t"+attrs);
+        bw.newLine();
+    }
+
+    //Makes a ReadCounter over the given barcodes, writing them to a file in dir first
+    public static ReadCounter makeCounter(File dir,String[] barcodes) throws IOException
+    {
+        File cellFile=new File(dir,"barcodes.tsv.gz");
+        writeBarcodes(cellFile,barcodes);
+        ReadCounter counter=new ReadCounter(new File(dir,"none.bam").getPath(),cellFile.getPath(),new File(dir,"out.txt").getPath(),true,"CellRanger",false);
+        counter.allocateQC();
+        return(counter);
+    }
+
+    //Makes an empty temporary directory
+    public static File makeTempDir() throws IOException
+    {
+        File dir=File.createTempFile("singlecellqc-bench","");
+        dir.delete();
+        dir.mkdirs();
+        dir.deleteOnExit();
+        return(dir);
+    }
+
+}
@@ -0,0 +1,78 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+import htsjdk.samtools.*;
+import org.openjdk.jmh.annotations.*;
+
+//////////////////////////////////////////////////////////
+//// CheckUTR over a block of coordinate sorted reads against a GENCODE sized set of UTRs
+//// (60k genes, about 400k UTR records), either sweeping along the reads (as for a sorted
+//// bam) or looking each read up in the interval index. Scores are per block of
+//// reads (the 95% of numReads that are mapped).
+//////////////////////////////////////////////////////////
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CheckUTRBenchmark
+{
+    protected static final int numReads=100000;
+    protected static final int numGenes=60000;
+
+    @Param({"sweep","index"})
+    public String lookup;
+
+    protected ReadCounter counter;
+    protected ReadFields[] fields; //tags of each read, in coordinate order
+
+    @Setup
+    public void setup() throws IOException
+    {
+        Random rand=new Random(4);
+        File dir=BenchData.makeTempDir();
+        String[] barcodes=BenchData.makeBarcodes(10000,rand);
+        this.counter=BenchData.makeCounter(dir,barcodes);
+        File gtf=new File(dir,"genes.gtf");
+        BenchData.writeGtf(gtf,numGenes,rand);
+        this.counter.ProcessGTF(gtf.getPath());
+        SAMFileHeader header=BenchData.makeHeader();
+        this.counter.UTRsByRef=this.counter.UTRs.byReference(header.getSequenceDictionary());
+
+        ArrayList<SAMRecord> records=BenchData.makeRecords(header,barcodes,numReads,rand);
+        ArrayList<ReadFields> mapped=new ArrayList<ReadFields>();
+        for(SAMRecord read:records)
+        {
+            if(read.getReadUnmappedFlag())
+            {
+                continue;
+            }
+            byte[] raw=BenchData.toRaw(read);
+            ReadFields f=new ReadFields();
+            f.fillRaw(raw,0,raw.length);
+            mapped.add(f);
+        }
+        this.fields=mapped.toArray(new ReadFields[mapped.size()]);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupLookup()
+    {
+        this.counter.utrSweep=null;
+        if(this.lookup.equals("sweep"))
+        {
+            this.counter.utrSweep=new IntervalSweep(this.counter.UTRsByRef);
+        }
+    }
+
+    @Benchmark
+    public long checkUTR()
+    {
+        for(int i=0;i<this.fields.length;i++)
+        {
+            this.counter.CheckUTR(this.fields[i],0);
+        }
+        return(this.counter.CellQC[this.counter.col_3utr][0]);
+    }
+
+}
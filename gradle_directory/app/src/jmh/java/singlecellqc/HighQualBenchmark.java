@@ -0,0 +1,66 @@
+package singlecellqc;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//////////////////////////////////////////////////////////
+//// Counting quality>=30 bases in CY/UY strings (CountHighQual, which replaced the
+//// running mean in PercentHighQual), compared with a plain one byte at a time loop.
+//// Scores are per quality string.
+//////////////////////////////////////////////////////////
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HighQualBenchmark
+{
+    protected static final int numStrings=4096;
+
+    @Param({"12","16","28"})
+    public int length; //UMI, cell barcode and 10x v3 read 1 lengths
+
+    protected byte[] quals; //numStrings quality strings back to back
+
+    @Setup
+    public void setup()
+    {
+        Random rand=new Random(3);
+        this.quals=new byte[numStrings*this.length];
+        for(int i=0;i<this.quals.length;i++)
+        {
+            this.quals[i]=(byte)(33+2+rand.nextInt(40));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(numStrings)
+    public long countHighQual()
+    {
+        long sum=0;
+        for(int i=0;i<numStrings;i++)
+        {
+            sum=sum+ReadCounter.CountHighQual(this.quals,i*this.length,this.length);
+        }
+        return(sum);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(numStrings)
+    public long countByteLoop()
+    {
+        long sum=0;
+        for(int i=0;i<numStrings;i++)
+        {
+            int off=i*this.length;
+            for(int k=off;k<off+this.length;k++)
+            {
+                if(this.quals[k]-33>29)
+                {
+                    sum=sum+1;
+                }
+            }
+        }
+        return(sum);
+    }
+
+}
@@ -0,0 +1,65 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//////////////////////////////////////////////////////////
+//// Loading the UTRs from a GTF with GENCODE's number of genes, either parsing the GTF
+//// (plain or gzipped) or reading the binary cache left by an earlier run. Scores are per load.
+//////////////////////////////////////////////////////////
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=2)
+@Measurement(iterations=5)
+public class ProcessGTFBenchmark
+{
+    protected static final int numGenes=60000;
+
+    @Param({"parse","parseGzipped","cache"})
+    public String source;
+
+    protected ReadCounter counter;
+    protected File gtf;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        Random rand=new Random(5);
+        File dir=BenchData.makeTempDir();
+        this.counter=BenchData.makeCounter(dir,BenchData.makeBarcodes(100,rand));
+        File plain=new File(dir,"genes.gtf");
+        BenchData.writeGtf(plain,numGenes,rand);
+        this.gtf=plain;
+        if(this.source.equals("parseGzipped"))
+        {
+            this.gtf=new File(dir,"genes.gtf.gz");
+            InputStream in=new FileInputStream(plain);
+            OutputStream out=new java.util.zip.GZIPOutputStream(new FileOutputStream(this.gtf));
+            in.transferTo(out);
+            in.close();
+            out.close();
+        }
+        this.counter.ProcessGTF(this.gtf.getPath()); //leaves the cache behind for the cache runs
+    }
+
+    //parse runs should never find a cache
+    @Setup(Level.Invocation)
+    public void removeCache()
+    {
+        if(!this.source.equals("cache"))
+        {
+            GtfCache.cacheFile(this.gtf).delete();
+        }
+    }
+
+    @Benchmark
+    public IntervalIndex processGTF()
+    {
+        this.counter.ProcessGTF(this.gtf.getPath());
+        return(this.counter.UTRs);
+    }
+
+}
@@ -0,0 +1,66 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+import htsjdk.samtools.*;
+import org.openjdk.jmh.annotations.*;
+
+//////////////////////////////////////////////////////////
+//// Per read cost of ReadCounter's main loop over a block of synthetic CellRanger reads,
+//// both from raw bam bytes (processRaw, as ReadBam uses) and from SAMRecords (processRead).
+//// Scores are per read.
+//////////////////////////////////////////////////////////
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProcessReadBenchmark
+{
+    protected static final int numReads=100000;
+
+    @Param({"10000"})
+    public int numCells;
+
+    protected ReadCounter counter;
+    protected byte[][] raw; //reads as bam record bytes
+    protected SAMRecord[] reads; //the same reads as SAMRecords
+
+    @Setup
+    public void setup() throws IOException
+    {
+        Random rand=new Random(1);
+        String[] barcodes=BenchData.makeBarcodes(this.numCells,rand);
+        this.counter=BenchData.makeCounter(BenchData.makeTempDir(),barcodes);
+        ArrayList<SAMRecord> records=BenchData.makeRecords(BenchData.makeHeader(),barcodes,numReads,rand);
+        this.raw=new byte[numReads][];
+        this.reads=new SAMRecord[numReads];
+        for(int i=0;i<numReads;i++)
+        {
+            this.raw[i]=BenchData.toRaw(records.get(i));
+            this.reads[i]=records.get(i);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(numReads)
+    public long processRaw()
+    {
+        for(int i=0;i<numReads;i++)
+        {
+            this.counter.processRaw(this.raw[i],0,this.raw[i].length);
+        }
+        return(this.counter.CellQC[this.counter.col_tot][0]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(numReads)
+    public long processRead()
+    {
+        for(int i=0;i<numReads;i++)
+        {
+            this.counter.processRead(this.reads[i]);
+        }
+        return(this.counter.CellQC[this.counter.col_tot][0]);
+    }
+
+}
@@ -0,0 +1,48 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+//////////////////////////////////////////////////////////
+//// Writing the per cell table (SaveQC) for a filtered cell list and for a large
+//// unfiltered barcode list. Scores are per table written.
+//////////////////////////////////////////////////////////
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SaveQCBenchmark
+{
+    @Param({"10000","1000000"})
+    public int numCells;
+
+    protected ReadCounter counter;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        Random rand=new Random(6);
+        this.counter=BenchData.makeCounter(BenchData.makeTempDir(),BenchData.makeBarcodes(this.numCells,rand));
+        for(int i=0;i<this.counter.numCell;i++)
+        {
+            int slot=this.counter.slotFor(i);
+            for(int j=0;j<this.counter.numCol-1;j++)
+            {
+                this.counter.CellQC[j][slot]=rand.nextInt(5000);
+                if(this.counter.isPercentCol(j))
+                {
+                    this.counter.CellBases[j][slot]=this.counter.CellQC[j][slot]+rand.nextInt(2000);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public long saveQC()
+    {
+        this.counter.SaveQC();
+        return(this.counter.outfile.length());
+    }
+
+}
@@ -0,0 +1,153 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import htsjdk.samtools.*;
+
+//////////////////////////////////////////////////////////
+//// Reads the alignments in a bam in file order, using ParallelBgzfInputStream so
+//// the BGZF blocks are inflated on several threads while the records are decoded
+//// and processed on the calling thread. Does not need a bam index. Can also start
+//// from the BGZF virtual file offset of any record (as found by BamSplitter).
+//// Records are read as raw bytes (nextRaw), which skips building a SAMRecord and
+//// decoding bases, qualities, cigar and tags, with a SAMRecord made only if needed.
+//////////////////////////////////////////////////////////
+public class BamRecordReader implements Closeable
+{
+    protected SAMFileHeader header; //bam header, given to each record
+    protected ParallelBgzfInputStream in; //uncompressed bam
+    protected byte[] sizeBuf=new byte[4]; //holds block_size of next record
+    public byte[] rawData=new byte[1024]; //raw bytes of the last record read by nextRaw (after block_size), reused
+    public int rawLength=0; //number of bytes of rawData used
+
+    ////////////////////
+    ////bamFile: The bam file to read
+    ////header: The header of the bam file (as from SamReader.getFileHeader)
+    ////numThreads: number of threads used to inflate BGZF blocks
+    /////////////////////
+    public BamRecordReader(File bamFile,SAMFileHeader header,int numThreads) throws IOException
+    {
+        this.header=header;
+        this.in=new ParallelBgzfInputStream(bamFile,0,numThreads);
+        skipHeader(this.in);
+    }
+
+    ////////////////////
+    ////bamFile: The bam file to read
+    ////header: The header of the bam file (as from SamReader.getFileHeader)
+    ////startOffset: BGZF virtual file offset of the first record to read
+    ////numThreads: number of threads used to inflate BGZF blocks, 0 to inflate on the calling thread
+    /////////////////////
+    public BamRecordReader(File bamFile,SAMFileHeader header,long startOffset,int numThreads) throws IOException
+    {
+        this.header=header;
+        this.in=new ParallelBgzfInputStream(bamFile,startOffset>>>16,numThreads);
+        skipFully(this.in,startOffset & 0xffff);
+    }
+
+    //Reads the next alignment as raw bytes into rawData[0..rawLength), returns false at the end of the bam
+    public boolean nextRaw() throws IOException
+    {
+        int numRead=ParallelBgzfInputStream.readFully(this.in,this.sizeBuf,0,4);
+        if(numRead==0)
+        {
+            return(false);
+        }
+        if(numRead<4)
+        {
+            throw new EOFException("Truncated bam record");
+        }
+        int blockSize=ParallelBgzfInputStream.readInt32(this.sizeBuf,0);
+        if(blockSize<32)
+        {
+            throw new IOException("Invalid bam record size "+String.valueOf(blockSize));
+        }
+        if(blockSize>this.rawData.length)
+        {
+            this.rawData=new byte[Math.max(blockSize,2*this.rawData.length)];
+        }
+        if(ParallelBgzfInputStream.readFully(this.in,this.rawData,0,blockSize)<blockSize)
+        {
+            throw new EOFException("Truncated bam record");
+        }
+        this.rawLength=blockSize;
+        return(true);
+    }
+
+    //Builds a SAMRecord from the last record read by nextRaw, for anything that needs the full record
+    public SAMRecord toSAMRecord()
+    {
+        byte[] rec=this.rawData;
+        byte[] rest=Arrays.copyOfRange(rec,32,this.rawLength);
+        SAMRecord read=DefaultSAMRecordFactory.getInstance().createBAMRecord(this.header,
+            ParallelBgzfInputStream.readInt32(rec,0),ParallelBgzfInputStream.readInt32(rec,4)+1,
+            (short)(rec[8] & 0xff),(short)(rec[9] & 0xff),ParallelBgzfInputStream.readUInt16(rec,10),
+            ParallelBgzfInputStream.readUInt16(rec,12),ParallelBgzfInputStream.readUInt16(rec,14),
+            ParallelBgzfInputStream.readInt32(rec,16),ParallelBgzfInputStream.readInt32(rec,20),
+            ParallelBgzfInputStream.readInt32(rec,24)+1,ParallelBgzfInputStream.readInt32(rec,28),rest);
+        read.setValidationStringency(ValidationStringency.SILENT);
+        return(read);
+    }
+
+    //Moves to the record at a BGZF virtual file offset, only if reading with 0 inflate threads
+    public void seek(long virtualOffset) throws IOException
+    {
+        this.in.seek(virtualOffset);
+    }
+
+    //BGZF virtual file offset of the next record
+    public long getFilePointer()
+    {
+        return(this.in.getFilePointer());
+    }
+
+    public void close() throws IOException
+    {
+        this.in.close();
+    }
+
+    //Skips past the bam header (magic, header text and reference list) so in is at the first record
+    protected static void skipHeader(InputStream in) throws IOException
+    {
+        byte[] buf=new byte[4];
+        if(ParallelBgzfInputStream.readFully(in,buf,0,4)<4 | buf[0]!='B' | buf[1]!='A' | buf[2]!='M' | buf[3]!=1)
+        {
+            throw new IOException("Not a bam file");
+        }
+        skipFully(in,readInt32(in)); //header text
+        int numRef=readInt32(in);
+        for(int i=0;i<numRef;i++)
+        {
+            skipFully(in,readInt32(in)); //reference name
+            skipFully(in,4); //reference length
+        }
+    }
+
+    protected static int readInt32(InputStream in) throws IOException
+    {
+        byte[] buf=new byte[4];
+        if(ParallelBgzfInputStream.readFully(in,buf,0,4)<4)
+        {
+            throw new EOFException("Truncated bam header");
+        }
+        return(ParallelBgzfInputStream.readInt32(buf,0));
+    }
+
+    protected static void skipFully(InputStream in,long len) throws IOException
+    {
+        while(len>0)
+        {
+            long n=in.skip(len);
+            if(n<=0)
+            {
+                if(in.read()<0)
+                {
+                    throw new EOFException("Unexpected end of bam");
+                }
+                n=1;
+            }
+            len=len-n;
+        }
+    }
+
+}
@@ -0,0 +1,304 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import htsjdk.samtools.*;
+
+//////////////////////////////////////////////////////////
+//// Splits a bam into byte ranges that can be processed on separate threads without
+//// a bam index. The file is cut at evenly spaced byte positions, then from each cut
+//// we search forward for the next BGZF block and the first record starting in it,
+//// similar to the way Hadoop-BAM guesses split points. A range holds the records
+//// starting from its own split point up to (not including) the next range's split
+//// point, so every record is read by exactly one range.
+//////////////////////////////////////////////////////////
+public class BamSplitter
+{
+    protected static final int minRangeSize=4*1024*1024; //smallest byte range worth its own thread
+    protected static final int recordsToCheck=4; //number of records in a row that must look valid to accept a record start
+    protected static final int probeBlocks=8; //number of blocks inflated when looking for a record start
+    protected static final int fixedRecordSize=36; //size of block_size plus the fixed part of a bam record
+
+    protected File bamFile; //the bam being split
+    protected int numRef; //number of references in the header, used to check records look valid
+    protected long fileLength; //size of bamFile in bytes
+
+    public BamSplitter(File bamFile,SAMFileHeader header)
+    {
+        this.bamFile=bamFile;
+        this.numRef=header.getSequenceDictionary().size();
+        this.fileLength=bamFile.length();
+    }
+
+    ////////////////////
+    ////Splits the bam into at most numRanges byte ranges, returns the BGZF virtual file offsets
+    ////of the first record in each range, followed by Long.MAX_VALUE to mark the end of the last range
+    ////firstRecord: virtual offset of the first record after the header
+    /////////////////////
+    public long[] getSplits(long firstRecord,int numRanges) throws IOException
+    {
+        return(this.getSplits(firstRecord,numRanges,minRangeSize));
+    }
+
+    ////////////////////
+    ////As getSplits above, but splits only the part of the bam from firstRecord on (for
+    ////example the reads with no coordinate), into ranges of at least minSize bytes
+    /////////////////////
+    public long[] getSplits(long firstRecord,int numRanges,long minSize) throws IOException
+    {
+        long startByte=firstRecord>>>16; //address of the block firstRecord is in
+        numRanges=(int)Math.max(1,Math.min(numRanges,(this.fileLength-startByte)/minSize));
+        ArrayList<Long> splits=new ArrayList<Long>();
+        splits.add(firstRecord);
+
+        FileChannel channel=new FileInputStream(this.bamFile).getChannel();
+        try{
+            for(int i=1;i<numRanges;i++)
+            {
+                long cut=startByte+(this.fileLength-startByte)*i/numRanges;
+                long prev=splits.get(splits.size()-1);
+                if(cut<=(prev>>>16))
+                {
+                    continue;
+                }
+                long split=this.findRecordStart(channel,cut);
+                if(split<0 | split<=prev)
+                {
+                    continue; //no record starts after cut, or this range would be empty
+                }
+                splits.add(split);
+            }
+        }finally{
+            channel.close();
+        }
+
+        long[] ret=new long[splits.size()+1];
+        for(int i=0;i<splits.size();i++)
+        {
+            ret[i]=splits.get(i);
+        }
+        ret[splits.size()]=Long.MAX_VALUE;
+        return(ret);
+    }
+
+    //Finds the virtual offset of the first record starting in the first BGZF block at or after cut, -1 if there is none
+    protected long findRecordStart(FileChannel channel,long cut) throws IOException
+    {
+        long blockAddress=this.findBlockStart(channel,cut);
+        while(blockAddress>=0 & blockAddress<this.fileLength)
+        {
+            //inflate a few blocks from blockAddress so records crossing block boundaries can be checked
+            ArrayList<ParallelBgzfInputStream.Block> blocks=this.readBlocks(channel,blockAddress,probeBlocks);
+            if(blocks.size()==0)
+            {
+                return(-1);
+            }
+            int totalLength=0;
+            for(ParallelBgzfInputStream.Block block:blocks)
+            {
+                totalLength=totalLength+block.dataLength;
+            }
+            byte[] data=new byte[totalLength];
+            int off=0;
+            for(ParallelBgzfInputStream.Block block:blocks)
+            {
+                System.arraycopy(block.data,0,data,off,block.dataLength);
+                off=off+block.dataLength;
+            }
+            boolean atEnd=blocks.size()<probeBlocks; //true if data reaches the end of the file
+
+            //record has to start in the first block for blockAddress to be its virtual offset
+            ParallelBgzfInputStream.Block first=blocks.get(0);
+            for(int i=0;i<first.dataLength;i++)
+            {
+                if(this.looksLikeRecords(data,i,atEnd))
+                {
+                    return((first.address<<16) | i);
+                }
+            }
+            blockAddress=first.address+first.compressedLength; //no record starts in this block, try the next
+        }
+        return(-1);
+    }
+
+    //Scans forward from pos for the start of a BGZF block, checking that a valid block header follows it, -1 if none found
+    protected long findBlockStart(FileChannel channel,long pos) throws IOException
+    {
+        int windowSize=4*ParallelBgzfInputStream.maxBlockSize;
+        byte[] window=new byte[windowSize];
+        while(pos<this.fileLength)
+        {
+            int len=this.readAt(channel,pos,window);
+            int maxHeader=ParallelBgzfInputStream.fixedHeaderSize+6; //a standard BGZF header with just the BC field
+            for(int i=0;i+maxHeader<=len;i++)
+            {
+                if((window[i] & 0xff)!=31 || (window[i+1] & 0xff)!=139)
+                {
+                    continue;
+                }
+                int blockSize=ParallelBgzfInputStream.getBlockSize(window,i,len-i);
+                if(blockSize<0 | pos+i+blockSize>this.fileLength)
+                {
+                    continue;
+                }
+                //the next block has to be at the end of this one
+                if(pos+i+blockSize<this.fileLength)
+                {
+                    if(i+blockSize+maxHeader>len)
+                    {
+                        break; //next header not in window, move window forward and check again
+                    }
+                    if(ParallelBgzfInputStream.getBlockSize(window,i+blockSize,len-i-blockSize)<0)
+                    {
+                        continue;
+                    }
+                }
+                //finally make sure it inflates
+                ArrayList<ParallelBgzfInputStream.Block> blocks=this.readBlocks(channel,pos+i,1);
+                if(blocks.size()==1)
+                {
+                    return(pos+i);
+                }
+            }
+            //move on, keeping some overlap so a header cut off at the end of window is not missed
+            pos=pos+Math.max(1,len-ParallelBgzfInputStream.maxBlockSize-maxHeader);
+        }
+        return(-1);
+    }
+
+    //Reads and inflates up to numBlocks blocks starting at address, stops early at the end of the file or a bad block
+    protected ArrayList<ParallelBgzfInputStream.Block> readBlocks(FileChannel channel,long address,int numBlocks) throws IOException
+    {
+        ArrayList<ParallelBgzfInputStream.Block> blocks=new ArrayList<ParallelBgzfInputStream.Block>();
+        channel.position(address);
+        InputStream in=new BufferedInputStream(Channels.newInputStream(channel),2*ParallelBgzfInputStream.maxBlockSize);
+        for(int i=0;i<numBlocks;i++)
+        {
+            ParallelBgzfInputStream.Block block=new ParallelBgzfInputStream.Block();
+            try{
+                if(!ParallelBgzfInputStream.readBlock(in,block,address))
+                {
+                    break;
+                }
+                ParallelBgzfInputStream.inflateBlock(block);
+            }catch(IOException e){
+                break;
+            }
+            blocks.add(block);
+            address=address+block.compressedLength;
+        }
+        return(blocks);
+    }
+
+    //Reads from position pos of the file into buf, returns number of bytes read
+    protected int readAt(FileChannel channel,long pos,byte[] buf) throws IOException
+    {
+        ByteBuffer bb=ByteBuffer.wrap(buf);
+        while(bb.hasRemaining())
+        {
+            int n=channel.read(bb,pos+bb.position());
+            if(n<0)
+            {
+                break;
+            }
+        }
+        return(bb.position());
+    }
+
+    //Checks if the bytes at data[off] look like the start of recordsToCheck bam records in a row
+    //atEnd: true if the data runs to the end of the bam, so records can end there
+    protected boolean looksLikeRecords(byte[] data,int off,boolean atEnd)
+    {
+        for(int i=0;i<recordsToCheck;i++)
+        {
+            if(off==data.length & atEnd)
+            {
+                return(true); //ran out of records at the end of the file
+            }
+            if(off+fixedRecordSize>data.length)
+            {
+                return(atEnd ? false : i>0); //can't check any further
+            }
+            int recordSize=this.checkRecord(data,off);
+            if(recordSize<0)
+            {
+                return(false);
+            }
+            off=off+recordSize;
+        }
+        return(true);
+    }
+
+    //Checks if the bytes at data[off] look like a bam record, returns its total size (including block_size) or -1 if not
+    protected int checkRecord(byte[] data,int off)
+    {
+        int blockSize=ParallelBgzfInputStream.readInt32(data,off);
+        int refID=ParallelBgzfInputStream.readInt32(data,off+4);
+        int pos=ParallelBgzfInputStream.readInt32(data,off+8);
+        int lReadName=data[off+12] & 0xff;
+        int nCigarOp=ParallelBgzfInputStream.readUInt16(data,off+16);
+        int lSeq=ParallelBgzfInputStream.readInt32(data,off+20);
+        int nextRefID=ParallelBgzfInputStream.readInt32(data,off+24);
+        int nextPos=ParallelBgzfInputStream.readInt32(data,off+28);
+
+        if(blockSize<fixedRecordSize-4 | refID<-1 | refID>=this.numRef | pos<-1 | nextRefID<-1 | nextRefID>=this.numRef | nextPos<-1)
+        {
+            return(-1);
+        }
+        if(lReadName<1 | lSeq<0)
+        {
+            return(-1);
+        }
+        long varSize=(long)lReadName+4L*nCigarOp+(lSeq+1L)/2+lSeq;
+        if(fixedRecordSize-4+varSize>blockSize)
+        {
+            return(-1);
+        }
+
+        //read name must be printable and NUL terminated
+        int nameStart=off+fixedRecordSize;
+        int nameEnd=nameStart+lReadName-1;
+        if(nameEnd>=data.length)
+        {
+            return(blockSize+4); //can't check name, rest looks good
+        }
+        for(int i=nameStart;i<nameEnd;i++)
+        {
+            if(data[i]<'!' | data[i]>'~' | data[i]=='@')
+            {
+                return(-1);
+            }
+        }
+        if(data[nameEnd]!=0)
+        {
+            return(-1);
+        }
+
+        //cigar operations must be known ones
+        int cigarStart=nameEnd+1;
+        for(int i=0;i<nCigarOp && cigarStart+4*i+4<=data.length;i++)
+        {
+            if((data[cigarStart+4*i] & 0xf)>8)
+            {
+                return(-1);
+            }
+        }
+        return(blockSize+4);
+    }
+
+    //Gets the virtual offset of the first record in the bam, just after the header
+    public static long getFirstRecordOffset(File bamFile) throws IOException
+    {
+        ParallelBgzfInputStream in=new ParallelBgzfInputStream(bamFile,0,0);
+        try{
+            BamRecordReader.skipHeader(in);
+            return(in.getFilePointer());
+        }finally{
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package singlecellqc;
+import java.util.*;
+import java.lang.*;
+import java.nio.charset.StandardCharsets;
+
+//////////////////////////////////////////////////////////
+//// Maps cell barcodes to their position in the cell list. Barcodes made of A/C/G/T
+//// (up to 24 bases) with an optional -N GEM well suffix are packed 2 bits per base
+//// into a long and stored in a primitive open-addressing long to int table, so a
+//// lookup is one hash probe with no String or Integer objects. Anything that can not
+//// be packed (N's, other letters, "notCell") goes in a HashMap instead.
+//////////////////////////////////////////////////////////
+public class BarcodeIndex
+{
+    protected static final int maxBases=24; //most bases that fit in a packed key
+    protected static final int maxSuffix=1022; //largest GEM well suffix that fits in a packed key
+    protected static final int lengthShift=48; //packed key bits: [suffix+1 (10 bits)][length (5 bits)][bases (2 bits each)]
+    protected static final int suffixShift=53;
+    protected static final long emptyKey=-1; //marks an empty slot, packed keys are never negative
+    protected static final float maxLoad=0.7f; //grow table when this full
+
+    protected long[] keys; //packed barcodes, emptyKey if slot is empty
+    protected int[] values; //position in cell list for each key
+    protected int size=0; //number of packed barcodes stored
+    protected int mask; //keys.length-1, table size is a power of 2
+    protected HashMap<String, Integer> unpacked; //barcodes that can't be packed
+
+    //Lookup table from ASCII character to 2 bit base, -1 if not A/C/G/T
+    protected static final byte[] baseCode=new byte[256];
+    static{
+        Arrays.fill(baseCode,(byte)-1);
+        baseCode['A']=0;
+        baseCode['C']=1;
+        baseCode['G']=2;
+        baseCode['T']=3;
+    }
+    protected static final char[] codeBase={'A','C','G','T'};
+
+    //expectedSize: the number of barcodes expected, used to size the table
+    public BarcodeIndex(int expectedSize)
+    {
+        int capacity=16;
+        while(capacity*maxLoad<expectedSize)
+        {
+            capacity=capacity*2;
+        }
+        this.keys=new long[capacity];
+        Arrays.fill(this.keys,emptyKey);
+        this.values=new int[capacity];
+        this.mask=capacity-1;
+        this.unpacked=new HashMap<String, Integer>();
+    }
+
+    //Packs a barcode stored as ASCII bytes b[off..off+len) into a long, -1 if it can't be packed
+    public static long encode(byte[] b,int off,int len)
+    {
+        int numBases=len;
+        long suffix=0; //GEM well number+1, 0 if no suffix
+        for(int i=off;i<off+len;i++)
+        {
+            if(b[i]=='-')
+            {
+                numBases=i-off;
+                int digits=off+len-i-1;
+                if(digits<1 | digits>4)
+                {
+                    return(-1);
+                }
+                int well=0;
+                for(int k=i+1;k<off+len;k++)
+                {
+                    int d=b[k]-'0';
+                    if(d<0 | d>9)
+                    {
+                        return(-1);
+                    }
+                    well=well*10+d;
+                }
+                if(well>maxSuffix | (digits>1 & b[i+1]=='0')) //leading zeros would not decode to the same barcode
+                {
+                    return(-1);
+                }
+                suffix=well+1;
+                break;
+            }
+        }
+        if(numBases<1 | numBases>maxBases)
+        {
+            return(-1);
+        }
+        long key=0;
+        for(int i=off;i<off+numBases;i++)
+        {
+            int code=baseCode[b[i] & 0xff];
+            if(code<0)
+            {
+                return(-1);
+            }
+            key=(key<<2) | code;
+        }
+        return(key | ((long)numBases<<lengthShift) | (suffix<<suffixShift));
+    }
+
+    //Packs a barcode String into a long, -1 if it can't be packed
+    public static long encode(String barcode)
+    {
+        int len=barcode.length();
+        if(len>maxBases+5)
+        {
+            return(-1);
+        }
+        byte[] b=new byte[len];
+        for(int i=0;i<len;i++)
+        {
+            char c=barcode.charAt(i);
+            if(c>127)
+            {
+                return(-1);
+            }
+            b[i]=(byte)c;
+        }
+        return(encode(b,0,len));
+    }
+
+    //Turns a packed barcode back into a String
+    public static String decode(long key)
+    {
+        int numBases=(int)((key>>>lengthShift) & 31);
+        long suffix=key>>>suffixShift;
+        StringBuilder sb=new StringBuilder(numBases+5);
+        for(int i=numBases-1;i>=0;i--)
+        {
+            sb.append(codeBase[(int)((key>>>(2*i)) & 3)]);
+        }
+        if(suffix>0)
+        {
+            sb.append('-');
+            sb.append(suffix-1);
+        }
+        return(sb.toString());
+    }
+
+    //Adds a barcode, if already present its position is replaced (as with HashMap.put)
+    public void put(String barcode,int pos)
+    {
+        long key=encode(barcode);
+        if(key<0)
+        {
+            this.unpacked.put(barcode,pos);
+            return;
+        }
+        if(this.size+1>this.keys.length*maxLoad)
+        {
+            this.grow();
+        }
+        int slot=this.findSlot(key);
+        if(this.keys[slot]==emptyKey)
+        {
+            this.keys[slot]=key;
+            this.size=this.size+1;
+        }
+        this.values[slot]=pos;
+    }
+
+    //Gets the position of a barcode stored as ASCII bytes b[off..off+len), -1 if not present
+    public int get(byte[] b,int off,int len)
+    {
+        long key=encode(b,off,len);
+        if(key<0)
+        {
+            return(this.getUnpacked(new String(b,off,len,StandardCharsets.US_ASCII)));
+        }
+        return(this.getPacked(key));
+    }
+
+    //Gets the position of a barcode, -1 if not present
+    public int get(String barcode)
+    {
+        long key=encode(barcode);
+        if(key<0)
+        {
+            return(this.getUnpacked(barcode));
+        }
+        return(this.getPacked(key));
+    }
+
+    //Gets the position of a packed barcode, -1 if not present
+    public int getPacked(long key)
+    {
+        int slot=this.findSlot(key);
+        if(this.keys[slot]==emptyKey)
+        {
+            return(-1);
+        }
+        return(this.values[slot]);
+    }
+
+    protected int getUnpacked(String barcode)
+    {
+        Integer pos=this.unpacked.get(barcode);
+        if(pos==null)
+        {
+            return(-1);
+        }
+        return(pos);
+    }
+
+    //Number of barcodes stored
+    public int size()
+    {
+        return(this.size+this.unpacked.size());
+    }
+
+    //Finds the slot key is in, or the empty slot it would go in (linear probing)
+    protected int findSlot(long key)
+    {
+        int slot=hash(key) & this.mask;
+        while(this.keys[slot]!=emptyKey & this.keys[slot]!=key)
+        {
+            slot=(slot+1) & this.mask;
+        }
+        return(slot);
+    }
+
+    //Doubles the size of the table
+    protected void grow()
+    {
+        long[] oldKeys=this.keys;
+        int[] oldValues=this.values;
+        this.keys=new long[oldKeys.length*2];
+        Arrays.fill(this.keys,emptyKey);
+        this.values=new int[oldKeys.length*2];
+        this.mask=this.keys.length-1;
+        for(int i=0;i<oldKeys.length;i++)
+        {
+            if(oldKeys[i]!=emptyKey)
+            {
+                int slot=this.findSlot(oldKeys[i]);
+                this.keys[slot]=oldKeys[i];
+                this.values[slot]=oldValues[i];
+            }
+        }
+    }
+
+    //Mixes the bits of a packed key (finalizer from MurmurHash3) so similar barcodes spread over the table
+    protected static int hash(long key)
+    {
+        key=key^(key>>>33);
+        key=key*0xff51afd7ed558ccdL;
+        key=key^(key>>>33);
+        key=key*0xc4ceb9fe1a85ec53L;
+        key=key^(key>>>33);
+        return((int)key);
+    }
+
+}
@@ -1,4 +1,6 @@
 package singlecellqc;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.lang.*;
 import org.apache.commons.cli.*;
@@ -54,12 +56,58 @@ public class CellLevel_QC
         Option gzipped = new Option("z", "gzipped", false, "if cells are gzipped (set to true if -d is given)");
         options.addOption(gzipped);
 
-        Option testing = new Option("t", "test", false, "if want to run in testing mode (only use first 10,000,000 reads if true)");
+        Option testing = new Option("t", "test", true, "testing mode, only processes a sample of about this many reads (default 10,000,000) spread over the whole bam in proportion to the read counts in the bam index, with counts scaled up to the whole bam and a sampled_reads column (without an index uses the first reads)");
+        testing.setOptionalArg(true);
         options.addOption(testing);
 
         Option checking = new Option("s", "sanityCheck", false, "runs a few sanity check on results (only works with -d argument)");
         options.addOption(checking);
 
+        Option threads = new Option("p", "threads", true, "number of threads used to process the bam (default 1). Uses the bam index to split the bam, or without an index splits it into byte ranges");
+        options.addOption(threads);
+
+        Option checkpoint = new Option("k", "checkpoint", true, "saves the counts every this many minutes while reading the bam, so a run that dies can be carried on with --resume");
+        options.addOption(checkpoint);
+
+        Option resume = new Option("r", "resume", false, "carries on from the checkpoint of an earlier run with the same output (see --checkpoint)");
+        options.addOption(resume);
+
+        Option minReads = new Option("n", "minReads", true, "only writes cells with at least this many reads (1 leaves out cells with no reads), the number left out and their totals go in <output>.suppressed.tsv");
+        options.addOption(minReads);
+
+        Option compression = new Option("e", "compression", true, "compresses the output, gzip or bgzf (bgzf is also gzip, and is compressed on the -p threads). Default is none.");
+        options.addOption(compression);
+
+        Option exactUMI = new Option("u", "exactUMI", true, "counts nUMI exactly from the UB tag instead of from the xf tag (works with STARSolo): cell for distinct UMIs per cell, gene for distinct UMI and gene pairs per cell (as CellRanger counts molecules)");
+        options.addOption(exactUMI);
+
+        Option umiMemory = new Option("x", "umiMemory", true, "memory in MB used to hold UMIs for --exactUMI and --saturation before spilling them to disk next to the output, shared by all the threads and downsampled tables (default 1024)");
+        options.addOption(umiMemory);
+
+        Option sketch = new Option("l", "sketch", false, "estimates nUMI and the number of genes (added as an nGene column) with a few KB of HyperLogLog sketches per cell, instead of counting nUMI from the xf tag (works with STARSolo)");
+        options.addOption(sketch);
+
+        Option regions = new Option("b", "regions", true, "only counts the reads of each cell in these regions, using the bam index: a comma separated list of contigs and intervals (chrM or chr1:1000-2000) or a BED file (lines with the same name are one region). The bam's totals come from the index");
+        options.addOption(regions);
+
+        Option regionTotals = new Option(null, "regionTotals", false, "with --regions, also writes the total reads of each cell, from a pass over the whole bam that only looks up the cell barcode (much slower than the regions on large bams)");
+        options.addOption(regionTotals);
+
+        Option downsample = new Option("f", "downsample", true, "also counts the reads kept when downsampling to these fractions (comma separated, for example 0.1,0.25,0.5) in the same pass, each to its own table (the output name plus .downsample_<fraction>). Reads are kept or dropped by a hash of the read name, so all alignments of a read stay together");
+        options.addOption(downsample);
+
+        Option downsampleSeed = new Option("w", "downsampleSeed", true, "seed used to pick the reads kept by --downsample and at each --saturation depth (default 0)");
+        options.addOption(downsampleSeed);
+
+        Option saturation = new Option("y", "saturation", true, "also works out the sequencing saturation (1 - nUMI/reads) of each cell at these fractions of the reads (comma separated, for example 0.1,0.25,0.5, the whole bam is always added) in the same pass, to <output>.saturation. Uses reads as --exactUMI does and --umiMemory to limit memory (works with STARSolo)");
+        options.addOption(saturation);
+
+        Option metrics = new Option("j", "metrics", true, "writes records and compressed bytes per second, percent of the bam read with an ETA, the time per record spent decoding, extracting tags, annotating regions/UTRs/antisense and accumulating, and heap and GC use as a line of JSON to this file (- for standard out) every --metricsInterval seconds while reading the bam. The same figures are Java Flight Recorder events (singlecellqc.ReadProgress, and singlecellqc.BamPass for the whole pass), recorded when java is run with -XX:StartFlightRecording");
+        options.addOption(metrics);
+
+        Option metricsInterval = new Option(null, "metricsInterval", true, "seconds between lines of --metrics (default 10)");
+        options.addOption(metricsInterval);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd=null;
@@ -143,7 +191,201 @@ public class CellLevel_QC
             gzipCells=true;
         }
         boolean testingVal=cmd.hasOption("t");
+        long sampleReadsVal=10000000; //about how many reads are sampled in testing mode
+        if(cmd.getOptionValue("test")!=null)
+        {
+            try{
+                sampleReadsVal=Long.parseLong(cmd.getOptionValue("test"));
+            }catch(NumberFormatException e){
+                print("Number of reads to sample (-t option) must be an integer");
+                return;
+            }
+        }
+
+        int numThreads=1; //number of threads used to process the bam
+        if(cmd.hasOption("p"))
+        {
+            try{
+                numThreads=Integer.parseInt(cmd.getOptionValue("threads"));
+            }catch(NumberFormatException e){
+                print("Number of threads (-p option) must be an integer");
+                return;
+            }
+        }
+
+        double checkpointMinutes=0; //time between checkpoints, 0 for none
+        if(cmd.hasOption("k"))
+        {
+            try{
+                checkpointMinutes=Double.parseDouble(cmd.getOptionValue("checkpoint"));
+            }catch(NumberFormatException e){
+                print("Minutes between checkpoints (-k option) must be a number");
+                return;
+            }
+        }
+        boolean resumeVal=cmd.hasOption("r");
+
+        String compressionVal="none"; //compression of the output
+        if(cmd.hasOption("e"))
+        {
+            compressionVal=cmd.getOptionValue("compression");
+            if(!TableWriter.isCompression(compressionVal))
+            {
+                print("Output compression (-e option) must be gzip, bgzf or none");
+                return;
+            }
+        }
+
+        long minReadsVal=0; //only cells with at least this many reads are written, 0 for all cells
+        if(cmd.hasOption("n"))
+        {
+            try{
+                minReadsVal=Long.parseLong(cmd.getOptionValue("minReads"));
+            }catch(NumberFormatException e){
+                print("Minimum number of reads (-n option) must be an integer");
+                return;
+            }
+        }
+
+        String exactUMIVal=null; //cell or gene to count UMIs exactly, null to use the xf tag
+        if(cmd.hasOption("u"))
+        {
+            exactUMIVal=cmd.getOptionValue("exactUMI");
+            if(!exactUMIVal.equals("cell") & !exactUMIVal.equals("gene"))
+            {
+                print("Exact UMI counting (-u option) must be cell or gene");
+                return;
+            }
+            if(checkpointMinutes>0 | resumeVal)
+            {
+                print("Exact UMI counting (-u option) can not be used with checkpoints (-k and -r options)");
+                return;
+            }
+        }
+
+        boolean sketchVal=cmd.hasOption("l");
+        if(sketchVal & (exactUMIVal!=null | checkpointMinutes>0 | resumeVal))
+        {
+            print("Sketches (-l option) can not be used with exact UMI counting (-u option) or checkpoints (-k and -r options)");
+            return;
+        }
 
+        if(testingVal & (exactUMIVal!=null | sketchVal | checkpointMinutes>0 | resumeVal))
+        {
+            print("Testing mode (-t option) can not be used with -u, -l, -k or -r, as it only reads a sample of the bam");
+            return;
+        }
+
+        double[] downsampleVal=null; //fractions of reads to downsample to, null for none
+        if(cmd.hasOption("f"))
+        {
+            String[] split=cmd.getOptionValue("downsample").split(",");
+            downsampleVal=new double[split.length];
+            try{
+                for(int k=0;k<split.length;k++)
+                {
+                    downsampleVal[k]=Double.parseDouble(split[k].trim());
+                    if(!(downsampleVal[k]>0 & downsampleVal[k]<1))
+                    {
+                        throw new NumberFormatException();
+                    }
+                }
+            }catch(NumberFormatException e){
+                print("Downsampling fractions (-f option) must be comma separated numbers between 0 and 1");
+                return;
+            }
+            if(testingVal | checkpointMinutes>0 | resumeVal)
+            {
+                print("Downsampling (-f option) can not be used with -t, -k or -r");
+                return;
+            }
+        }
+        long downsampleSeedVal=0; //seed for picking the reads kept when downsampling
+        if(cmd.hasOption("w"))
+        {
+            try{
+                downsampleSeedVal=Long.parseLong(cmd.getOptionValue("downsampleSeed"));
+            }catch(NumberFormatException e){
+                print("Downsampling seed (-w option) must be an integer");
+                return;
+            }
+        }
+
+        double[] saturationVal=null; //fractions of reads to work out saturation at, null for none
+        if(cmd.hasOption("y"))
+        {
+            String[] split=cmd.getOptionValue("saturation").split(",");
+            saturationVal=new double[split.length];
+            try{
+                for(int k=0;k<split.length;k++)
+                {
+                    saturationVal[k]=Double.parseDouble(split[k].trim());
+                    if(!(saturationVal[k]>0 & saturationVal[k]<=1))
+                    {
+                        throw new NumberFormatException();
+                    }
+                }
+            }catch(NumberFormatException e){
+                print("Saturation depths (-y option) must be comma separated numbers between 0 and 1");
+                return;
+            }
+            if(Arrays.stream(saturationVal).filter(depth->depth<1).distinct().count()>=SaturationCounter.maxDepths)
+            {
+                print("At most "+String.valueOf(SaturationCounter.maxDepths-1)+" saturation depths (-y option) can be given besides 1");
+                return;
+            }
+            if(testingVal | checkpointMinutes>0 | resumeVal)
+            {
+                print("Saturation (-y option) can not be used with -t, -k or -r");
+                return;
+            }
+        }
+
+        String metricsVal=cmd.getOptionValue("metrics"); //file to write the performance figures to, null for none
+        double metricsIntervalVal=10; //seconds between lines of metrics
+        if(cmd.hasOption("metricsInterval"))
+        {
+            try{
+                metricsIntervalVal=Double.parseDouble(cmd.getOptionValue("metricsInterval"));
+            }catch(NumberFormatException e){
+                print("Metrics interval (--metricsInterval option) must be a number of seconds");
+                return;
+            }
+            if(!(metricsIntervalVal>0))
+            {
+                print("Metrics interval (--metricsInterval option) must be more than 0 seconds");
+                return;
+            }
+        }
+
+        String regionsVal=cmd.getOptionValue("regions"); //regions to count reads in instead of the full QC, null for the full QC
+        if(regionsVal!=null & (exactUMIVal!=null | sketchVal | checkpointMinutes>0 | resumeVal | testingVal | downsampleVal!=null | saturationVal!=null))
+        {
+            print("Regions (-b option) can not be used with -u, -l, -k, -r, -t, -f or -y");
+            return;
+        }
+        boolean regionTotalsVal=cmd.hasOption("regionTotals"); //if true the total of each cell is counted from a pass over the whole bam in region mode
+        if(regionTotalsVal & regionsVal==null)
+        {
+            print("Region totals (--regionTotals option) are only used with regions (-b option)");
+            return;
+        }
+        if(regionsVal!=null & !regionTotalsVal & metricsVal!=null)
+        {
+            print("Metrics (-j option) are for a pass over the whole bam, which regions (-b option) only make with --regionTotals");
+            return;
+        }
+
+        long umiMemoryVal=1024; //MB of UMIs held in memory before spilling to disk
+        if(cmd.hasOption("x"))
+        {
+            try{
+                umiMemoryVal=Long.parseLong(cmd.getOptionValue("umiMemory"));
+            }catch(NumberFormatException e){
+                print("UMI memory (-x option) must be an integer number of MB");
+                return;
+            }
+        }
 
         //Prints out settings to screen
         print("Inputs:");
@@ -154,6 +396,45 @@ public class CellLevel_QC
         print("Use multimappers: "+String.valueOf(useMulti));
         print("Cells are gzipped: "+String.valueOf(gzipCells));
         print("Quantification method: "+quantUsed);
+        print("Threads: "+String.valueOf(numThreads));
+        if(checkpointMinutes>0)
+        {
+            print("Checkpoint every "+String.valueOf(checkpointMinutes)+" minutes");
+        }
+        print("Resume: "+String.valueOf(resumeVal));
+        print("Output compression: "+compressionVal);
+        if(minReadsVal>0)
+        {
+            print("Only writing cells with at least "+String.valueOf(minReadsVal)+" reads");
+        }
+        if(exactUMIVal!=null)
+        {
+            print("Exact UMI counts per "+exactUMIVal+", spilling to disk past "+String.valueOf(umiMemoryVal)+" MB");
+        }
+        if(sketchVal)
+        {
+            print("Estimating nUMI and nGene with sketches");
+        }
+        if(testingVal)
+        {
+            print("Testing mode, sampling about "+String.valueOf(sampleReadsVal)+" reads");
+        }
+        if(downsampleVal!=null)
+        {
+            print("Downsampling to "+Arrays.toString(downsampleVal)+" with seed "+String.valueOf(downsampleSeedVal));
+        }
+        if(saturationVal!=null)
+        {
+            print("Saturation at "+Arrays.toString(saturationVal)+" of the reads, with seed "+String.valueOf(downsampleSeedVal));
+        }
+        if(metricsVal!=null)
+        {
+            print("Metrics every "+String.valueOf(metricsIntervalVal)+" seconds to "+metricsVal);
+        }
+        if(regionsVal!=null)
+        {
+            print("Counting reads in regions: "+regionsVal+(regionTotalsVal ? ", with the total of each cell" : ""));
+        }
         if(inputMatPath==null)
         {
             print("Matrix Directory: none");
@@ -163,6 +444,46 @@ public class CellLevel_QC
 
         //Creates ReadCounter object that will be used for extracting cell level QC with given arguments
         ReadCounter counter=new ReadCounter(inputBamPath,inputCellPath,outputPath,gzipCells,quantUsed,useMulti);
+        counter.setThreads(numThreads);
+        counter.setCheckpoints(checkpointMinutes,resumeVal);
+        counter.setMinReads(minReadsVal);
+        counter.setCompression(compressionVal);
+        counter.setExactUMI(exactUMIVal,umiMemoryVal);
+        counter.setSketch(sketchVal);
+        counter.setSampleReads(sampleReadsVal);
+        counter.setDownsample(downsampleVal,downsampleSeedVal);
+        counter.setSaturation(saturationVal);
+        if(metricsVal!=null)
+        {
+            try{
+                counter.setMetrics(new ReadMetrics(ReadMetrics.openOutput(metricsVal),metricsIntervalVal));
+            }catch(IOException e){
+                print("Can not write metrics (-j option) to "+metricsVal);
+                return;
+            }
+        }
+
+        //Counts reads in regions instead of the full QC
+        if(regionsVal!=null)
+        {
+            RegionCounter regionCounter;
+            try{
+                regionCounter=new RegionCounter(counter,regionsVal,regionTotalsVal);
+            }catch(IOException | IllegalArgumentException e){
+                print("Issue with regions (-b option): "+e.getMessage());
+                return;
+            }
+            if(regionTotalsVal)
+            {
+                counter.setTotalsOnly(true);
+                counter.ReadBam(verboseVal,false);
+            }else{
+                counter.allocateQC(); //slots for the cells the regions have reads in
+            }
+            regionCounter.CountRegions();
+            regionCounter.SaveRegions();
+            return;
+        }
         
         //If gtf is given processes it
         if(cmd.hasOption("g"))
@@ -183,7 +504,13 @@ public class CellLevel_QC
         //else{
         //    print("No MM Matrix given, skipping processing");
         //}
-        counter.SaveQC(); //save the QC results to table
+        if(!counter.SaveQC()) //save the QC results to table
+        {
+            //the checkpoint (if any) is kept, so the counts are not lost and the run can be resumed once the output can be written
+            print("Could not write the output"+(Checkpoint.checkpointFile(new File(outputPath)).exists() ? ", the checkpoint is kept for --resume" : ""));
+            System.exit(1);
+        }
+        Checkpoint.checkpointFile(new File(outputPath)).delete(); //finished, so nothing to resume
 
         //For testing
         if(cmd.hasOption("s") & cmd.hasOption("d"))
@@ -197,7 +524,14 @@ public class CellLevel_QC
             testCount.compareToMetricCSV(counter,metricsComb);
             print("Some unit tests");
             testCount.checkXFParsing(counter);
+            testCount.checkUMICounter(counter);
+            testCount.checkSaturation(counter);
+            testCount.checkHyperLogLog();
             testCount.checkSplice(counter);
+            testCount.checkBarcodeIndex(counter);
+            testCount.checkRawRecords(counter);
+            testCount.checkHighQual();
+            testCount.checkIntervalIndex(counter);
             //to implement
             testCount.checkRegionMappingTo(counter);
             //testCount.checkTrim(counter);
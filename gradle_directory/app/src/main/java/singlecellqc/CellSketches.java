@@ -0,0 +1,96 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+//////////////////////////////////////////////////////////
+//// Approximate nUMI and nGene for each cell from two HyperLogLog sketches, one over the
+//// UB and GX of each read (molecules, as UMICounter counts them per gene) and one over
+//// GX (genes). Uses the same reads as UMICounter, but memory is a few KB per cell at most
+//// however deep the run, and cells with few reads stay exact and small. Sketches are made
+//// the first time a cell has a counted read and are indexed by the slot of the
+//// ReadCounter they belong to; worker counters are merged in by merging sketches.
+//////////////////////////////////////////////////////////
+public class CellSketches
+{
+    protected ReadCounter owner; //the ReadCounter whose slots index the sketches
+    protected HyperLogLog[] umiSketches=new HyperLogLog[0]; //sketch of UB and GX for each slot, null until the cell has a counted read
+    protected HyperLogLog[] geneSketches=new HyperLogLog[0]; //sketch of GX for each slot
+
+    public CellSketches(ReadCounter owner)
+    {
+        this.owner=owner;
+    }
+
+    //Adds a read (which has passed ReadCounter's filters) to the sketches of a slot, if it has a UMI and a single gene
+    public void add(int slot,ReadFields fields)
+    {
+        if(!UMICounter.hasUMIAndGene(fields))
+        {
+            return;
+        }
+        long geneHash=HyperLogLog.hashBytes(HyperLogLog.hashStart,fields.data,fields.gxOff,fields.gxLen);
+        long umiHash=HyperLogLog.hashBytes(geneHash ^ 0x2f,fields.data,fields.ubOff,fields.ubLen);
+        this.ensureCapacity(slot);
+        if(this.umiSketches[slot]==null)
+        {
+            this.umiSketches[slot]=new HyperLogLog();
+            this.geneSketches[slot]=new HyperLogLog();
+        }
+        this.umiSketches[slot].add(HyperLogLog.mix64(umiHash));
+        this.geneSketches[slot].add(HyperLogLog.mix64(geneHash));
+    }
+
+    //Makes room for the sketches of a slot, doubling the arrays if needed
+    protected void ensureCapacity(int slot)
+    {
+        if(slot>=this.umiSketches.length)
+        {
+            int capacity=Math.max(slot+1,2*this.umiSketches.length);
+            this.umiSketches=Arrays.copyOf(this.umiSketches,capacity);
+            this.geneSketches=Arrays.copyOf(this.geneSketches,capacity);
+        }
+    }
+
+    //Merges the sketches of a worker's counter into this one, by cell. The worker's sketches are used as they are where this one has none, so the worker should not be used afterwards.
+    public void merge(CellSketches worker)
+    {
+        int numSlots=Math.min(worker.umiSketches.length,worker.owner.numSlots);
+        for(int workerSlot=0;workerSlot<numSlots;workerSlot++)
+        {
+            if(worker.umiSketches[workerSlot]==null)
+            {
+                continue;
+            }
+            int slot=this.owner.slotFor(worker.owner.slotCells[workerSlot]);
+            this.ensureCapacity(slot);
+            if(this.umiSketches[slot]==null)
+            {
+                this.umiSketches[slot]=worker.umiSketches[workerSlot];
+                this.geneSketches[slot]=worker.geneSketches[workerSlot];
+            }else{
+                this.umiSketches[slot].merge(worker.umiSketches[workerSlot]);
+                this.geneSketches[slot].merge(worker.geneSketches[workerSlot]);
+            }
+        }
+    }
+
+    ////////////////////
+    ////Puts the estimated nUMI of each cell in column col of the owner's CellQC and returns
+    ////the estimated number of genes for each slot (0 for cells with no counted reads)
+    /////////////////////
+    public long[] count(int col)
+    {
+        long[] numGenes=new long[this.owner.numSlots];
+        for(int slot=0;slot<Math.min(this.umiSketches.length,this.owner.numSlots);slot++)
+        {
+            if(this.umiSketches[slot]!=null)
+            {
+                this.owner.CellQC[col][slot]=this.umiSketches[slot].estimate();
+                numGenes[slot]=this.geneSketches[slot].estimate();
+            }
+        }
+        return(numGenes);
+    }
+
+}
@@ -0,0 +1,266 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+//////////////////////////////////////////////////////////
+//// Periodic snapshots of the counts while ReadBam reads the bam, so a run that dies
+//// (for example on a preempted cloud VM) can be resumed instead of started over. A
+//// snapshot holds the counts so far and the BGZF virtual file offset of the next record
+//// to process, and is saved next to the output as <output>.checkpoint. The read loop
+//// only copies the counts into a buffer that is reused from snapshot to snapshot; the
+//// file is written on a separate thread, and if the last one is still being written the
+//// snapshot is put off. It records the size and modification time of the bam it came
+//// from and is only used to resume a run on the same bam and cell list.
+////
+//// Layout (little endian): magic, version, bam size, bam modified time, number of cells,
+//// number of columns, number of alignments processed, virtual offset of the next record,
+//// number of slots (rows) and the cell in each, then for each column its counts and, if it
+//// is a percent column, its base counts, one per slot.
+//////////////////////////////////////////////////////////
+public class Checkpoint implements Closeable
+{
+    protected static final byte[] magic={'C','L','Q','C','C','K','P','T'};
+    protected static final int version=2; //bump when the layout or what is stored changes
+    protected static final String suffix=".checkpoint";
+
+    protected File file; //where the checkpoint is saved
+    protected File bamFile; //bam being read
+    protected long intervalMillis; //time between snapshots
+    protected long lastSaved; //time of the last snapshot
+    protected ExecutorService writer; //writes snapshots off the read loop
+    protected Future<?> pending; //snapshot being written, null if none
+
+    //The snapshot, as in ReadCounter
+    protected long[][] CellQC;
+    protected long[][] CellBases;
+    protected int[] slotCells;
+    protected int numSlots;
+    protected int numCell; //number of cells in the cell list
+    protected long readNum; //number of alignments processed
+    protected long nextOffset; //virtual file offset of the next record to process
+
+    ////////////////////
+    ////outfile: output of the run, the checkpoint is saved next to it
+    ////bamFile: bam being read
+    ////intervalMillis: time between snapshots
+    /////////////////////
+    public Checkpoint(File outfile,File bamFile,long intervalMillis)
+    {
+        this.file=checkpointFile(outfile);
+        this.bamFile=bamFile;
+        this.intervalMillis=intervalMillis;
+        this.lastSaved=System.currentTimeMillis();
+        this.writer=Executors.newSingleThreadExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r)
+            {
+                Thread t=new Thread(r,"checkpoint-writer");
+                t.setDaemon(true);
+                return(t);
+            }
+        });
+    }
+
+    protected Checkpoint()
+    {
+    }
+
+    //Gets the checkpoint file used for an output file
+    public static File checkpointFile(File outfile)
+    {
+        return(new File(outfile.getPath()+suffix));
+    }
+
+    ////////////////////
+    ////Called from the read loop between records. If a snapshot is due (and the last one
+    ////has been written) copies the counts and starts writing them on the writer thread.
+    ////counter: the ReadCounter being filled in
+    ////readNum: number of alignments processed so far
+    ////nextOffset: virtual file offset of the next record to process
+    /////////////////////
+    public void update(ReadCounter counter,long readNum,long nextOffset)
+    {
+        long now=System.currentTimeMillis();
+        if(now-this.lastSaved<this.intervalMillis)
+        {
+            return;
+        }
+        if(this.pending!=null && !this.pending.isDone())
+        {
+            return;
+        }
+        if(this.CellQC==null)
+        {
+            this.CellQC=new long[counter.CellQC.length][];
+            this.CellBases=new long[counter.CellBases.length][];
+        }
+        this.slotCells=copyInto(this.slotCells,counter.slotCells);
+        this.numSlots=counter.numSlots;
+        this.numCell=counter.numCell;
+        for(int j=0;j<counter.CellQC.length;j++)
+        {
+            this.CellQC[j]=copyInto(this.CellQC[j],counter.CellQC[j]);
+            this.CellBases[j]=copyInto(this.CellBases[j],counter.CellBases[j]);
+        }
+        this.readNum=readNum;
+        this.nextOffset=nextOffset;
+        this.lastSaved=now;
+        this.pending=this.writer.submit(new Runnable(){
+            public void run()
+            {
+                save();
+            }
+        });
+    }
+
+    protected static int[] copyInto(int[] buf,int[] vals)
+    {
+        if(buf==null || buf.length!=vals.length)
+        {
+            buf=new int[vals.length];
+        }
+        System.arraycopy(vals,0,buf,0,vals.length);
+        return(buf);
+    }
+
+    //Copies counts into buf, reusing buf if it is the right size
+    protected static long[] copyInto(long[] buf,long[] counts)
+    {
+        if(counts==null)
+        {
+            return(null);
+        }
+        if(buf==null || buf.length!=counts.length)
+        {
+            buf=new long[counts.length];
+        }
+        System.arraycopy(counts,0,buf,0,counts.length);
+        return(buf);
+    }
+
+    //Writes the snapshot, to a temporary file first so a run killed part way through never leaves half a checkpoint
+    protected void save()
+    {
+        File tmp=null;
+        try{
+            tmp=File.createTempFile(this.file.getName(),".tmp",this.file.getAbsoluteFile().getParentFile());
+            DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),1<<20));
+            try{
+                out.write(magic);
+                LittleEndian.writeInt(out,version);
+                LittleEndian.writeLong(out,this.bamFile.length());
+                LittleEndian.writeLong(out,this.bamFile.lastModified());
+                LittleEndian.writeInt(out,this.numCell);
+                LittleEndian.writeInt(out,this.CellQC.length);
+                LittleEndian.writeLong(out,this.readNum);
+                LittleEndian.writeLong(out,this.nextOffset);
+                LittleEndian.writeInt(out,this.numSlots);
+                LittleEndian.writeInts(out,this.slotCells,this.numSlots);
+                for(int j=0;j<this.CellQC.length;j++)
+                {
+                    LittleEndian.writeLongs(out,this.CellQC[j],this.numSlots);
+                    out.writeBoolean(this.CellBases[j]!=null);
+                    if(this.CellBases[j]!=null)
+                    {
+                        LittleEndian.writeLongs(out,this.CellBases[j],this.numSlots);
+                    }
+                }
+            }finally{
+                out.close();
+            }
+            Files.move(tmp.toPath(),this.file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+            ReadCounter.print("Saved checkpoint after "+String.valueOf(this.readNum)+" alignments");
+        }catch(IOException e){
+            ReadCounter.print("Could not save checkpoint to "+this.file.getPath());
+            if(tmp!=null)
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+    ////////////////////
+    ////Loads the checkpoint for an output file, returns null if there is none or it is from
+    ////a different bam or cell list (or can't be read)
+    ////outfile: output of the run being resumed
+    ////bamFile: bam being read
+    ////numCell: number of cells (rows) in the run being resumed
+    ////numCols: number of count columns in the run being resumed
+    /////////////////////
+    public static Checkpoint load(File outfile,File bamFile,int numCell,int numCols)
+    {
+        File file=checkpointFile(outfile);
+        if(!file.exists())
+        {
+            return(null);
+        }
+        try{
+            DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file),1<<20));
+            try{
+                byte[] fileMagic=new byte[magic.length];
+                in.readFully(fileMagic);
+                if(!Arrays.equals(fileMagic,magic) || LittleEndian.readInt(in)!=version)
+                {
+                    ReadCounter.print("Checkpoint "+file.getPath()+" is from a different version");
+                    return(null);
+                }
+                if(LittleEndian.readLong(in)!=bamFile.length() | LittleEndian.readLong(in)!=bamFile.lastModified())
+                {
+                    ReadCounter.print("Checkpoint "+file.getPath()+" is from a different bam");
+                    return(null);
+                }
+                if(LittleEndian.readInt(in)!=numCell | LittleEndian.readInt(in)!=numCols)
+                {
+                    ReadCounter.print("Checkpoint "+file.getPath()+" is from a different cell list");
+                    return(null);
+                }
+                Checkpoint ret=new Checkpoint();
+                ret.file=file;
+                ret.bamFile=bamFile;
+                ret.readNum=LittleEndian.readLong(in);
+                ret.nextOffset=LittleEndian.readLong(in);
+                ret.numCell=numCell;
+                ret.numSlots=LittleEndian.readInt(in);
+                ret.slotCells=new int[ret.numSlots];
+                for(int slot=0;slot<ret.numSlots;slot++)
+                {
+                    ret.slotCells[slot]=LittleEndian.readInt(in);
+                }
+                ret.CellQC=new long[numCols][];
+                ret.CellBases=new long[numCols][];
+                for(int j=0;j<numCols;j++)
+                {
+                    ret.CellQC[j]=LittleEndian.readLongs(in,ret.numSlots);
+                    if(in.readBoolean())
+                    {
+                        ret.CellBases[j]=LittleEndian.readLongs(in,ret.numSlots);
+                    }
+                }
+                return(ret);
+            }finally{
+                in.close();
+            }
+        }catch(IOException e){
+            ReadCounter.print("Issue reading checkpoint "+file.getPath());
+            return(null);
+        }
+    }
+
+    //Waits for the last snapshot to be written
+    public void close()
+    {
+        if(this.writer==null)
+        {
+            return;
+        }
+        this.writer.shutdown();
+        try{
+            this.writer.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
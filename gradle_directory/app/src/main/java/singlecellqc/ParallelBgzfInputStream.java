@@ -0,0 +1,439 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.util.concurrent.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+//////////////////////////////////////////////////////////
+//// Reads a BGZF file (such as a bam) as a stream of uncompressed bytes, inflating
+//// blocks in parallel. A reader thread cuts the file into BGZF blocks (each block
+//// is an independent gzip member, so can be inflated on its own) and hands them to
+//// a pool of threads to inflate. The blocks are read back in file order, so the
+//// bytes come out exactly as they would from htsjdk's BlockCompressedInputStream.
+//// Block buffers are reused, so memory use is fixed by the number of blocks in flight.
+//// With 0 threads blocks are read and inflated on the calling thread instead.
+//////////////////////////////////////////////////////////
+public class ParallelBgzfInputStream extends InputStream
+{
+    protected static final int maxBlockSize=65536; //largest possible BGZF block, compressed or uncompressed
+    protected static final int blocksPerThread=16; //number of blocks in flight for each inflating thread
+    protected static final int fixedHeaderSize=12; //size of gzip header before the extra field
+
+    //A single BGZF block, before and after inflating
+    protected static class Block
+    {
+        protected byte[] compressed=new byte[maxBlockSize]; //raw block, including gzip header and footer
+        protected int compressedLength; //number of bytes of compressed used
+        protected byte[] data=new byte[maxBlockSize]; //inflated block
+        protected int dataLength; //number of bytes of data used
+        protected long address; //position of the block in the file
+        protected boolean last; //marks the end of the file
+        protected IOException error; //set if there was a problem reading the file
+    }
+
+    protected FileChannel channel; //the file being read
+    protected InputStream in; //buffered stream over channel, only used by reader thread (or calling thread with 0 threads)
+    protected long nextAddress; //file position of next block to be read by reader thread
+    protected ExecutorService inflatePool; //threads used to inflate blocks
+    protected Thread readerThread; //thread cutting file into blocks
+    protected ArrayBlockingQueue<Block> free; //blocks available for the reader thread to fill
+    protected ArrayBlockingQueue<Future<Block>> ready; //blocks in file order, being or done being inflated
+    protected volatile boolean closed=false;
+
+    protected Block cur; //block currently being read from
+    protected int pos; //position in cur.data
+    protected long curAddress; //address of cur (or of the first block if nothing read yet)
+    protected long curNextAddress; //address of the block after cur
+    protected boolean eof=false;
+
+    //inflaters are not thread safe, so each inflating thread has its own
+    protected static final ThreadLocal<Inflater> inflaters=new ThreadLocal<Inflater>(){
+        protected Inflater initialValue()
+        {
+            return(new Inflater(true));
+        }
+    };
+
+    ////////////////////
+    ////file: The BGZF file to read
+    ////startAddress: file position of the first block to read (0 for the start of the file)
+    ////numThreads: number of threads used to inflate blocks, 0 to inflate on the calling thread
+    /////////////////////
+    public ParallelBgzfInputStream(File file,long startAddress,int numThreads) throws IOException
+    {
+        this.channel=new FileInputStream(file).getChannel();
+        this.channel.position(startAddress);
+        this.in=new BufferedInputStream(Channels.newInputStream(this.channel),4*maxBlockSize);
+        this.nextAddress=startAddress;
+        this.curAddress=startAddress;
+        this.curNextAddress=startAddress;
+
+        if(numThreads<1)
+        {
+            this.cur=new Block();
+            this.cur.dataLength=0;
+            return;
+        }
+
+        int numBlocks=numThreads*blocksPerThread;
+        this.free=new ArrayBlockingQueue<Block>(numBlocks);
+        this.ready=new ArrayBlockingQueue<Future<Block>>(numBlocks+1);
+        for(int i=0;i<numBlocks;i++)
+        {
+            this.free.add(new Block());
+        }
+
+        this.inflatePool=Executors.newFixedThreadPool(numThreads,new ThreadFactory(){
+            public Thread newThread(Runnable r)
+            {
+                Thread t=new Thread(r,"bgzf-inflate");
+                t.setDaemon(true);
+                return(t);
+            }
+        });
+        this.readerThread=new Thread(new Runnable(){
+            public void run()
+            {
+                readBlocks();
+            }
+        },"bgzf-reader");
+        this.readerThread.setDaemon(true);
+        this.readerThread.start();
+    }
+
+    //Run by the reader thread, cuts the file into blocks and queues them to be inflated
+    protected void readBlocks()
+    {
+        try{
+            while(!this.closed)
+            {
+                final Block block=this.free.take();
+                if(!readBlock(this.in,block,this.nextAddress))
+                {
+                    break;
+                }
+                this.nextAddress=this.nextAddress+block.compressedLength;
+                this.ready.put(this.inflatePool.submit(new Callable<Block>(){
+                    public Block call() throws IOException
+                    {
+                        inflateBlock(block);
+                        return(block);
+                    }
+                }));
+            }
+            Block last=new Block();
+            last.last=true;
+            this.ready.put(CompletableFuture.completedFuture(last));
+        }catch(InterruptedException e){
+            return;
+        }catch(IOException e){
+            Block last=new Block();
+            last.last=true;
+            last.error=e;
+            try{
+                this.ready.put(CompletableFuture.completedFuture(last));
+            }catch(InterruptedException e2){
+            }
+        }
+    }
+
+    //Reads the next compressed block from in (which is at file position address), returns false at the end of the file
+    protected static boolean readBlock(InputStream in,Block block,long address) throws IOException
+    {
+        byte[] buf=block.compressed;
+        int numRead=readFully(in,buf,0,fixedHeaderSize);
+        if(numRead==0)
+        {
+            return(false);
+        }
+        if(numRead<fixedHeaderSize)
+        {
+            throw new IOException("Truncated BGZF block at "+String.valueOf(address));
+        }
+        int xlen=getBlockHeaderLength(buf,0,fixedHeaderSize)-fixedHeaderSize;
+        if(xlen<0)
+        {
+            throw new IOException("Invalid BGZF block at "+String.valueOf(address));
+        }
+        if(readFully(in,buf,fixedHeaderSize,xlen)<xlen)
+        {
+            throw new IOException("Truncated BGZF block at "+String.valueOf(address));
+        }
+        int blockSize=getBlockSize(buf,0,fixedHeaderSize+xlen);
+        if(blockSize<fixedHeaderSize+xlen+8)
+        {
+            throw new IOException("Invalid BGZF block at "+String.valueOf(address));
+        }
+        int remaining=blockSize-fixedHeaderSize-xlen;
+        if(readFully(in,buf,fixedHeaderSize+xlen,remaining)<remaining)
+        {
+            throw new IOException("Truncated BGZF block at "+String.valueOf(address));
+        }
+        block.compressedLength=blockSize;
+        block.address=address;
+        block.last=false;
+        block.error=null;
+        return(true);
+    }
+
+    //Inflates a block read in by readBlock, run on the inflate pool
+    protected static void inflateBlock(Block block) throws IOException
+    {
+        byte[] buf=block.compressed;
+        int headerLength=getBlockHeaderLength(buf,0,block.compressedLength);
+        int dataLength=readInt32(buf,block.compressedLength-4); //ISIZE from gzip footer
+        if(dataLength<0 | dataLength>maxBlockSize)
+        {
+            throw new IOException("Invalid BGZF block at "+String.valueOf(block.address));
+        }
+        Inflater inflater=inflaters.get();
+        inflater.reset();
+        inflater.setInput(buf,headerLength,block.compressedLength-headerLength-8);
+        try{
+            int inflated=0;
+            while(inflated<dataLength)
+            {
+                int n=inflater.inflate(block.data,inflated,dataLength-inflated);
+                if(n==0 && (inflater.finished() || inflater.needsInput()))
+                {
+                    break;
+                }
+                inflated=inflated+n;
+            }
+            if(inflated!=dataLength)
+            {
+                throw new IOException("BGZF block at "+String.valueOf(block.address)+" did not inflate to expected size");
+            }
+        }catch(DataFormatException e){
+            throw new IOException("Could not inflate BGZF block at "+String.valueOf(block.address),e);
+        }
+        block.dataLength=dataLength;
+    }
+
+    //Moves on to the next block with data in it, returns false at the end of the file
+    protected boolean nextBlock() throws IOException
+    {
+        while(true)
+        {
+            if(this.eof)
+            {
+                return(false);
+            }
+            if(this.inflatePool==null)
+            {
+                //no threads, read and inflate the block here, reusing the same buffers
+                if(!readBlock(this.in,this.cur,this.nextAddress))
+                {
+                    this.eof=true;
+                    this.curAddress=this.nextAddress;
+                    this.curNextAddress=this.nextAddress;
+                    this.cur.dataLength=0;
+                    return(false);
+                }
+                this.nextAddress=this.nextAddress+this.cur.compressedLength;
+                inflateBlock(this.cur);
+                this.pos=0;
+                this.curAddress=this.cur.address;
+                this.curNextAddress=this.cur.address+this.cur.compressedLength;
+                if(this.cur.dataLength>0)
+                {
+                    return(true);
+                }
+                continue;
+            }
+            if(this.cur!=null)
+            {
+                this.free.add(this.cur);
+                this.cur=null;
+            }
+            Block block;
+            try{
+                block=this.ready.take().get();
+            }catch(InterruptedException e){
+                throw new InterruptedIOException("Interrupted reading BGZF file");
+            }catch(ExecutionException e){
+                if(e.getCause() instanceof IOException)
+                {
+                    throw (IOException)e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+            if(block.last)
+            {
+                this.eof=true;
+                this.curAddress=this.curNextAddress;
+                if(block.error!=null)
+                {
+                    throw block.error;
+                }
+                return(false);
+            }
+            this.cur=block;
+            this.pos=0;
+            this.curAddress=block.address;
+            this.curNextAddress=block.address+block.compressedLength;
+            if(block.dataLength>0)
+            {
+                return(true);
+            }
+        }
+    }
+
+    public int read() throws IOException
+    {
+        if((this.cur==null || this.pos>=this.cur.dataLength) && !nextBlock())
+        {
+            return(-1);
+        }
+        int ret=this.cur.data[this.pos] & 0xff;
+        this.pos=this.pos+1;
+        return(ret);
+    }
+
+    public int read(byte[] b,int off,int len) throws IOException
+    {
+        if(len==0)
+        {
+            return(0);
+        }
+        int numRead=0;
+        while(numRead<len)
+        {
+            if((this.cur==null || this.pos>=this.cur.dataLength) && !nextBlock())
+            {
+                break;
+            }
+            int n=Math.min(len-numRead,this.cur.dataLength-this.pos);
+            System.arraycopy(this.cur.data,this.pos,b,off+numRead,n);
+            this.pos=this.pos+n;
+            numRead=numRead+n;
+        }
+        if(numRead==0)
+        {
+            return(-1);
+        }
+        return(numRead);
+    }
+
+    //BGZF virtual file offset (block address<<16 | offset in block) of the next byte to be read
+    public long getFilePointer()
+    {
+        if(this.cur==null || this.pos>=this.cur.dataLength)
+        {
+            return(this.curNextAddress<<16);
+        }
+        return((this.curAddress<<16) | this.pos);
+    }
+
+    //Moves to a BGZF virtual file offset, only possible when inflating on the calling thread (0 threads)
+    public void seek(long virtualOffset) throws IOException
+    {
+        if(this.inflatePool!=null)
+        {
+            throw new IOException("Can not seek when inflating on other threads");
+        }
+        long address=virtualOffset>>>16;
+        int offset=(int)(virtualOffset & 0xffff);
+        if(address!=this.curAddress | this.cur.dataLength==0)
+        {
+            this.channel.position(address);
+            this.in=new BufferedInputStream(Channels.newInputStream(this.channel),4*maxBlockSize);
+            this.nextAddress=address;
+            this.curAddress=address;
+            this.curNextAddress=address;
+            this.cur.dataLength=0;
+            this.eof=false;
+            if(offset==0)
+            {
+                return;
+            }
+            if(!nextBlock())
+            {
+                throw new EOFException("Seek past end of BGZF file");
+            }
+        }
+        if(offset>this.cur.dataLength)
+        {
+            throw new IOException("Invalid BGZF virtual offset "+String.valueOf(virtualOffset));
+        }
+        this.pos=offset;
+    }
+
+    public void close() throws IOException
+    {
+        this.closed=true;
+        if(this.inflatePool!=null)
+        {
+            this.readerThread.interrupt();
+            this.inflatePool.shutdownNow();
+        }
+        this.channel.close();
+    }
+
+    //Gets the size of the gzip header of a BGZF block (fixed header plus extra field), -1 if not a valid header
+    protected static int getBlockHeaderLength(byte[] buf,int off,int len)
+    {
+        if(len<fixedHeaderSize)
+        {
+            return(-1);
+        }
+        if((buf[off] & 0xff)!=31 | (buf[off+1] & 0xff)!=139 | (buf[off+2] & 0xff)!=8 | (buf[off+3] & 4)==0)
+        {
+            return(-1);
+        }
+        int xlen=readUInt16(buf,off+10);
+        return(fixedHeaderSize+xlen);
+    }
+
+    //Gets the total size of a BGZF block from the BC field in its header, -1 if not found
+    protected static int getBlockSize(byte[] buf,int off,int len)
+    {
+        int headerLength=getBlockHeaderLength(buf,off,len);
+        if(headerLength<0 | headerLength>len)
+        {
+            return(-1);
+        }
+        int i=off+fixedHeaderSize;
+        while(i+4<=off+headerLength)
+        {
+            int slen=readUInt16(buf,i+2);
+            if(buf[i]=='B' & buf[i+1]=='C' & slen==2 & i+6<=off+headerLength)
+            {
+                return(readUInt16(buf,i+4)+1);
+            }
+            i=i+4+slen;
+        }
+        return(-1);
+    }
+
+    //Reads len bytes unless the end of stream is hit first, returns the number read
+    protected static int readFully(InputStream in,byte[] buf,int off,int len) throws IOException
+    {
+        int numRead=0;
+        while(numRead<len)
+        {
+            int n=in.read(buf,off+numRead,len-numRead);
+            if(n<0)
+            {
+                break;
+            }
+            numRead=numRead+n;
+        }
+        return(numRead);
+    }
+
+    protected static int readUInt16(byte[] buf,int off)
+    {
+        return((buf[off] & 0xff) | ((buf[off+1] & 0xff)<<8));
+    }
+
+    protected static int readInt32(byte[] buf,int off)
+    {
+        return((buf[off] & 0xff) | ((buf[off+1] & 0xff)<<8) | ((buf[off+2] & 0xff)<<16) | ((buf[off+3] & 0xff)<<24));
+    }
+
+}
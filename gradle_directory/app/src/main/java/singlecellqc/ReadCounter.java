@@ -9,6 +9,13 @@ import java.lang.*;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.zip.GZIPInputStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 
 //////////////////////////////////////////////////////////
 //// This class functions to read in and store info about the number of reads per cell
@@ -41,6 +48,10 @@ public class ReadCounter
     protected final int col_3utr=13; //Number of reads in UTR
     protected final int col_tot=14; //column with count of all reads
     protected final int numCol=16; //Number of columns, including CBC (so the value in col_tot plus 2 if col_tot is last column)
+    protected static final VarHandle qualWords=MethodHandles.byteArrayViewVarHandle(long[].class,ByteOrder.LITTLE_ENDIAN); //reads 8 bytes of a quality string as a long (see CountHighQual)
+    protected static final long highBits=0x8080808080808080L; //top bit of each byte
+    protected static final long qualOffsets=0x4141414141414141L; //128-63 added to each byte
+    protected static final int initialSlots=1024; //rows allocated up front, grows by doubling as cells are seen
 
     
     //Files
@@ -51,14 +62,45 @@ public class ReadCounter
     //Data structures
     protected ArrayList<String> cells; //list of CBCs
     protected int numCell; //Number of CBC
-    protected HashMap<String, Integer> Cell2Pos; //Maps from cell barcode to position in cells
-    protected HashMap<String, ArrayList<Integer>> GeneToUTRs_start; //maps from Gene to position of UTR start
-    protected HashMap<String, ArrayList<Integer>> GeneToUTRs_end; //maps from Gene to position of UTR end
-    protected float[][] CellQC; //A 2 dimensional array, rows are cells, columns correspond to the different quantities of interest
+    protected BarcodeIndex Cell2Pos; //Maps from cell barcode to position in cells
+    protected int notCellPos; //position of notCell in cells, used for reads with no CBC or a CBC not in cells
+    protected IntervalIndex UTRs; //UTRs from the GTF by contig, with the gene number (position in geneIds) as the value, null if no GTF
+    protected byte[][] geneIds; //gene_id of each gene with a UTR, as bytes so they can be compared to the GX tag without making Strings
+    protected IntervalIndex.Contig[] UTRsByRef; //UTRs for each reference in the bam (null if none), set up by ReadBam
+    protected IntervalIndex.Hits utrHits=new IntervalIndex.Hits(); //UTRs found for the read being processed, reused from read to read
+    protected IntervalSweep utrSweep; //finds UTRs by sweeping along the bam if it is coordinate sorted, null to look them up in UTRs for each read
+    protected long[][] CellQC; //Counts stored column-major, one array per column with one row (slot) per cell seen so far, so CellQC[col][slot] (for percent columns the number of bases with quality>=30)
+    protected ReadFields fields=new ReadFields(); //tags of the read being processed, reused from read to read
+    protected long[][] CellBases; //Number of bases looked at for the percent columns, indexed as CellBases[col][slot] (null for count columns)
+    protected int[] cellSlots; //slot of each cell (position in cells) in CellQC and CellBases, -1 until the cell has a read
+    protected int[] slotCells; //cell in each slot, the inverse of cellSlots
+    protected int numSlots; //number of slots in use, rows past this in CellQC are spare capacity
     protected boolean useMulti;//boolean indicating if should use multimappers in all QC 
     
     //Other params
     protected String quantUsed; //quanitification method used, options are STARSolo or CellRanger
+    protected int numThreads=1; //number of threads used to process the bam, split with the bam index or, without one, into byte ranges
+    protected long checkpointMillis=0; //time between checkpoints while reading the bam, 0 for no checkpoints
+    protected boolean resume=false; //if true carries on from the checkpoint of an earlier run, if there is one
+    protected String compression="none"; //compression of the output, none, gzip or bgzf (see TableWriter)
+    protected long minReads=0; //only cells with at least this many reads (total) are written by SaveQC, 0 to write every cell
+    protected String exactUMI=null; //cell or gene to count nUMI exactly from the UB tag (see UMICounter), null to count it from the xf tag
+    protected UMICounter.Budget umiBudget=new UMICounter.Budget(1L<<30); //memory the exact UMI sets use before spilling to disk, shared by the workers, downsampled counters and saturation
+    protected UMICounter umis; //exact UMIs seen so far, null unless exactUMI is set
+    protected boolean sketch=false; //if true estimates nUMI and nGene with HyperLogLog sketches (see CellSketches) instead of counting nUMI from the xf tag
+    protected CellSketches sketches; //sketches of the UMIs and genes seen so far, null unless sketch is set
+    protected boolean totalsOnly=false; //if true ReadBam only counts the total reads of each cell (see RegionCounter)
+    protected long sampleReads=10000000; //about how many reads ReadBam samples from across the bam in testing mode
+    protected double[] downsampleFractions; //fractions of the reads to also count on their own, each saved to its own table (see setDownsample), null for none
+    protected long downsampleSeed=0; //seed for the hash of the read names that decides which reads are kept when downsampling
+    protected double keepFraction=1; //fraction of the reads this counter counts, less than 1 for the counters in downsampled
+    protected ReadCounter[] downsampled; //a counter for each of downsampleFractions, fed the reads kept at that fraction, null if not downsampling
+    protected double[] saturationDepths; //fractions of the reads to work out saturation at (see SaturationCounter), null for no saturation curves
+    protected SaturationCounter saturation; //UMIs and reads at each of saturationDepths, null unless saturationDepths is set
+    protected ReadMetrics metrics; //live performance figures while reading the bam (see ReadMetrics), null for none
+    protected ReadMetrics.Probe probe=new ReadMetrics.Probe(null); //counts and times the records this counter reads, for metrics
+    protected static final long sampleSeed=10; //seed for picking the parts of the bam to sample, fixed so runs are repeatable
+    protected LinkedHashMap<String,long[]> extraCols=new LinkedHashMap<String,long[]>(); //columns SaveQC writes after total, by name, one value per slot (nGene with sketches, sampled_reads when sampling)
 
     ////////////////////
     ////Initialize object for counting
@@ -99,51 +141,455 @@ public class ReadCounter
         }
         this.numCell=this.cells.size();
 
-        this.Cell2Pos=new HashMap<String, Integer>(); //Maps CBC to position in array
+        this.Cell2Pos=new BarcodeIndex(this.numCell); //Maps CBC to position in array
         for(int i=0;i<this.numCell;i++)
         {
             String cell=this.cells.get(i);
             
             this.Cell2Pos.put(cell,i);
         }
+        this.notCellPos=this.Cell2Pos.get("notCell");
 
         
 
     }
 
+    ////////////////////
+    ////Creates a worker copy of a ReadCounter, used to process part of the bam on its own thread
+    ////Shares the read only data (cell list, GTF info, settings) with parent
+    ////but has its own CellQC so threads never write to the same array
+    /////////////////////
+    protected ReadCounter(ReadCounter parent)
+    {
+        this(parent,1);
+    }
+
+    ////////////////////
+    ////As above, but with keepFraction less than 1 makes the counter for the reads kept when
+    ////downsampling to that fraction, which saves its own table next to the parent's output
+    /////////////////////
+    protected ReadCounter(ReadCounter parent,double keepFraction)
+    {
+        this.keepFraction=keepFraction;
+        this.downsampleFractions=parent.downsampleFractions;
+        this.downsampleSeed=parent.downsampleSeed;
+        this.saturationDepths=parent.saturationDepths;
+        this.metrics=keepFraction<1 ? null : parent.metrics;
+        this.quantUsed=parent.quantUsed;
+        this.useMulti=parent.useMulti;
+        this.bamFile=parent.bamFile;
+        this.cellFile=parent.cellFile;
+        this.outfile=parent.outfile;
+        this.cells=parent.cells;
+        this.numCell=parent.numCell;
+        this.Cell2Pos=parent.Cell2Pos;
+        this.notCellPos=parent.notCellPos;
+        this.UTRs=parent.UTRs;
+        this.geneIds=parent.geneIds;
+        this.UTRsByRef=parent.UTRsByRef;
+        this.exactUMI=parent.exactUMI;
+        this.umiBudget=parent.umiBudget;
+        if(keepFraction<1)
+        {
+            this.outfile=downsampleFile(parent.outfile,keepFraction);
+            this.numThreads=parent.numThreads;
+            this.compression=parent.compression;
+            this.minReads=parent.minReads;
+        }
+        this.sketch=parent.sketch;
+        this.totalsOnly=parent.totalsOnly;
+        if(parent.utrSweep!=null)
+        {
+            this.utrSweep=new IntervalSweep(this.UTRsByRef);
+        }
+        this.allocateQC();
+    }
+
+    //Sets up empty CellQC and CellBases arrays, one array per column. Rows are only added for
+    //cells that have reads (see slotFor), so with a raw barcode list of millions of barcodes
+    //memory goes with the number of barcodes seen rather than the length of the list
+    protected void allocateQC()
+    {
+        this.cellSlots=new int[this.numCell];
+        Arrays.fill(this.cellSlots,-1);
+        this.numSlots=0;
+        int capacity=Math.min(this.numCell,initialSlots);
+        this.slotCells=new int[capacity];
+        this.CellQC=new long[numCol-1][];
+        this.CellBases=new long[numCol-1][];
+        for(int j=0;j<numCol-1;j++)
+        {
+            this.CellQC[j]=new long[capacity];
+            if(this.isPercentCol(j))
+            {
+                this.CellBases[j]=new long[capacity];
+            }
+        }
+        this.releaseUMIs();
+        this.umis=null;
+        if(this.exactUMI!=null)
+        {
+            this.umis=new UMICounter(this,this.exactUMI.equals("gene"),this.umiBudget);
+        }
+        this.sketches=null;
+        this.extraCols.clear();
+        if(this.sketch)
+        {
+            this.sketches=new CellSketches(this);
+        }
+        this.probe=new ReadMetrics.Probe(this.metrics);
+        this.saturation=null;
+        if(this.saturationDepths!=null & this.keepFraction==1)
+        {
+            this.saturation=new SaturationCounter(this,this.saturationDepths,this.umiBudget);
+        }
+        this.downsampled=null;
+        if(this.downsampleFractions!=null & this.keepFraction==1)
+        {
+            this.downsampled=new ReadCounter[this.downsampleFractions.length];
+            for(int k=0;k<this.downsampled.length;k++)
+            {
+                this.downsampled[k]=new ReadCounter(this,this.downsampleFractions[k]);
+            }
+        }
+    }
+
+    //Gives the UMI budget of counters from an earlier allocateQC that were not counted back
+    protected void releaseUMIs()
+    {
+        if(this.umis!=null)
+        {
+            this.umis.release(true);
+        }
+        if(this.saturation!=null)
+        {
+            this.saturation.release(true);
+        }
+        for(int k=0;this.downsampled!=null && k<this.downsampled.length;k++)
+        {
+            this.downsampled[k].releaseUMIs();
+        }
+    }
+
+    //Gets the row of CellQC and CellBases for a cell (its position in cells), adding one the first time the cell is seen
+    protected int slotFor(int cell)
+    {
+        int slot=this.cellSlots[cell];
+        if(slot<0)
+        {
+            slot=this.addSlot(cell);
+        }
+        return(slot);
+    }
+
+    //Gives a cell the next free row, doubling the arrays if they are full
+    protected int addSlot(int cell)
+    {
+        if(this.numSlots==this.slotCells.length)
+        {
+            int capacity=Math.min(this.numCell,Math.max(initialSlots,2*this.slotCells.length));
+            this.slotCells=Arrays.copyOf(this.slotCells,capacity);
+            for(int j=0;j<numCol-1;j++)
+            {
+                this.CellQC[j]=Arrays.copyOf(this.CellQC[j],capacity);
+                if(this.CellBases[j]!=null)
+                {
+                    this.CellBases[j]=Arrays.copyOf(this.CellBases[j],capacity);
+                }
+            }
+        }
+        int slot=this.numSlots;
+        this.slotCells[slot]=cell;
+        this.cellSlots[cell]=slot;
+        this.numSlots=this.numSlots+1;
+        return(slot);
+    }
+
+    //true if column j (not counting CBC) is a percentage rather than a count
+    protected boolean isPercentCol(int j)
+    {
+        return(j==this.col_qual_cbc | j==this.col_qual_umi);
+    }
+
+    //Sets the number of threads used by ReadBam
+    public void setThreads(int numThreads)
+    {
+        this.numThreads=Math.max(1,numThreads);
+    }
+
 
-    //Reads each alignment in the bam one by one and gets QC info
+    ////////////////////
+    ////Sets up checkpoints, which are only taken when the bam is read in order (so with more
+    ////than 1 thread the extra threads are only used to inflate blocks)
+    ////minutes: time between checkpoints, 0 for none
+    ////resume: true to carry on from the checkpoint of an earlier run with the same output
+    /////////////////////
+    public void setCheckpoints(double minutes,boolean resume)
+    {
+        this.checkpointMillis=(long)(minutes*60000);
+        this.resume=resume;
+    }
+
+    //Sets the compression of the output, none, gzip or bgzf (bgzf is deflated on numThreads threads)
+    public void setCompression(String compression)
+    {
+        this.compression=compression;
+    }
+
+    ////////////////////
+    ////Sets SaveQC to only write cells with at least minReads reads (the notCell row is always
+    ////written). The number of cells left out and the sum of their counts go in a separate
+    ////file, the output name plus .suppressed.tsv, so totals can still be checked.
+    ////minReads: 1 to leave out cells with no reads, 0 to write every cell
+    /////////////////////
+    public void setMinReads(long minReads)
+    {
+        this.minReads=Math.max(0,minReads);
+    }
+
+    ////////////////////
+    ////Counts nUMI exactly as the number of distinct UB tags (cell) or distinct UB tag and
+    ////gene pairs (gene) in each cell, instead of from the xf tag, which STARSolo does not
+    ////have. Only reads that map uniquely to a single gene (GX) are counted, as in
+    ////CellRanger. Not used with checkpoints, which do not hold the UMIs.
+    ////mode: cell or gene, null to count nUMI from the xf tag
+    ////budgetMB: most memory (in MB) the UMIs are held in before they are spilled to
+    ////disk next to the output, shared by the worker threads, the downsampled tables and
+    ////the saturation curves (see UMICounter.Budget), the counts are exact either way
+    /////////////////////
+    public void setExactUMI(String mode,long budgetMB)
+    {
+        this.exactUMI=mode;
+        this.umiBudget=new UMICounter.Budget(Math.max(1,budgetMB)<<20);
+    }
+
+    ////////////////////
+    ////Estimates nUMI (distinct UB and gene pairs) and the number of genes in each cell with
+    ////a few KB of HyperLogLog sketches per cell, instead of counting nUMI from the xf tag.
+    ////The counts are within a few percent (exact for small cells) and SaveQC adds an nGene
+    ////column. Reads are chosen as with setExactUMI, and it is not used with checkpoints.
+    /////////////////////
+    public void setSketch(boolean sketch)
+    {
+        this.sketch=sketch;
+    }
+
+    //Sets ReadBam to only count the total reads of each cell, the pass RegionCounter uses for its totals (--regionTotals)
+    public void setTotalsOnly(boolean totalsOnly)
+    {
+        this.totalsOnly=totalsOnly;
+    }
+
+    ////////////////////
+    ////Also counts the reads kept when downsampling to each of fractions, in the same pass,
+    ////saving each to its own table (see downsampleFile). Whether a read is kept depends only
+    ////on a hash of its name and the seed, so every alignment of a read is kept or dropped
+    ////together, runs are repeatable, and a read kept at one fraction is kept at every
+    ////larger one (as samtools view -s does for a single fraction).
+    ////fractions: fractions of reads to keep, each between 0 and 1, null for none
+    ////seed: changes which reads are kept
+    /////////////////////
+    public void setDownsample(double[] fractions,long seed)
+    {
+        this.downsampleFractions=fractions;
+        this.downsampleSeed=seed;
+    }
+
+    //Gets the file the table for a downsampling fraction is saved to, the output name with .downsample_<fraction> added (before .gz if it ends in it)
+    public static File downsampleFile(File outfile,double fraction)
+    {
+        return(suffixedFile(outfile,".downsample_"+String.valueOf(fraction)));
+    }
+
+    //Gets the output name with suffix added, before .gz if it ends in it
+    public static File suffixedFile(File outfile,String suffix)
+    {
+        String path=outfile.getPath();
+        if(path.endsWith(".gz"))
+        {
+            return(new File(path.substring(0,path.length()-3)+suffix+".gz"));
+        }
+        return(new File(path+suffix));
+    }
+
+    ////////////////////
+    ////Also works out the sequencing saturation of each cell (1 - molecules/reads, see
+    ////SaturationCounter) at several depths in the same pass, saved to the output name plus
+    ////.saturation. The reads at a depth are the ones -f would keep at that fraction (with
+    ////the seed given to setDownsample). Reads are chosen as with setExactUMI, which also
+    ////sets the memory used before spilling, and it is not used with checkpoints.
+    ////depths: fractions of the reads between 0 and 1 (1, the whole bam, is added if not
+    ////there), null for no saturation curves
+    /////////////////////
+    public void setSaturation(double[] depths)
+    {
+        this.saturationDepths=null;
+        if(depths==null)
+        {
+            return;
+        }
+        TreeSet<Double> sorted=new TreeSet<Double>();
+        for(double depth:depths)
+        {
+            sorted.add(depth);
+        }
+        sorted.add(1.0);
+        if(sorted.size()>SaturationCounter.maxDepths)
+        {
+            throw new IllegalArgumentException("At most "+String.valueOf(SaturationCounter.maxDepths)+" saturation depths, including 1");
+        }
+        this.saturationDepths=new double[sorted.size()];
+        int k=0;
+        for(double depth:sorted)
+        {
+            this.saturationDepths[k]=depth;
+            k=k+1;
+        }
+    }
+
+    //Position of a read's name in [0,1), from a hash of the name and downsampleSeed. The read is kept at fractions above it.
+    protected double downsampleHash(ReadFields fields)
+    {
+        long h=HyperLogLog.hashBytes(HyperLogLog.hashStart ^ this.downsampleSeed,fields.data,fields.nameOff,fields.nameLen);
+        return((HyperLogLog.mix64(h)>>>11)*0x1.0p-53);
+    }
+
+    ////////////////////
+    ////Reports records and bytes per second, progress with an ETA, the time per record in
+    ////each stage, and heap and GC use while ReadBam reads the bam, as JSON lines and Java
+    ////Flight Recorder events (see ReadMetrics)
+    ////metrics: where to report them, null for none
+    /////////////////////
+    public void setMetrics(ReadMetrics metrics)
+    {
+        this.metrics=metrics;
+    }
+
+    //Sets about how many reads are sampled in testing mode (see ReadBam)
+    public void setSampleReads(long sampleReads)
+    {
+        this.sampleReads=Math.max(1,sampleReads);
+    }
+
+    //Reads each alignment in the bam one by one and gets QC info.
+    //In testing mode (testingVal) about sampleReads reads are sampled from across the bam instead, see ReadBamSharded.
     public void ReadBam(boolean verbose,boolean testingVal)
     {
         print("Read in data!");
-        SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(this.bamFile);
-        SAMRecordIterator r = sr.iterator();
-        this.CellQC=new float[this.numCell][numCol-1]; //Stores the QC information we care about
-        int readNum=0; //number of alignments encountered so far
+        if(this.UTRs!=null)
+        {
+            SAMFileHeader header=this.getHeader();
+            this.UTRsByRef=this.UTRs.byReference(header.getSequenceDictionary());
+            this.utrSweep=null;
+            if(header.getSortOrder()==SAMFileHeader.SortOrder.coordinate)
+            {
+                this.utrSweep=new IntervalSweep(this.UTRsByRef);
+            }else{
+                print("Bam is not coordinate sorted, UTRs will be looked up for each read");
+            }
+        }
+        if(testingVal)
+        {
+            if(this.ReadBamSharded(verbose,true))
+            {
+                this.countUMIs();
+                return;
+            }
+            print("No bam index found, sampling needs one so using the first "+String.valueOf(this.sampleReads)+" alignments instead");
+        }else if(this.numThreads>1 & this.checkpointMillis==0 & !this.resume){
+            if(!this.ReadBamSharded(verbose,false))
+            {
+                print("No bam index found, splitting bam into byte ranges");
+                this.ReadBamByteRanges(verbose);
+            }
+            this.countUMIs();
+            return;
+        }
+        this.allocateQC(); //Stores the QC information we care about
+        long readNum=0; //number of alignments encountered so far
+        long startOffset=-1; //virtual file offset to start from if resuming, -1 for the first record
+        if(this.resume)
+        {
+            Checkpoint saved=Checkpoint.load(this.outfile,this.bamFile,this.numCell,numCol-1);
+            if(saved!=null)
+            {
+                this.CellQC=saved.CellQC;
+                this.CellBases=saved.CellBases;
+                this.slotCells=saved.slotCells;
+                this.numSlots=saved.numSlots;
+                for(int slot=0;slot<this.numSlots;slot++)
+                {
+                    this.cellSlots[this.slotCells[slot]]=slot;
+                }
+                readNum=saved.readNum;
+                startOffset=saved.nextOffset;
+                print("Resuming from checkpoint after "+String.valueOf(readNum)+" alignments");
+            }else{
+                print("No checkpoint to resume from, starting at the beginning of the bam");
+            }
+        }
+        Checkpoint checkpoint=null; //saves the counts every so often, null if not checkpointing
+        if(this.checkpointMillis>0)
+        {
+            checkpoint=new Checkpoint(this.outfile,this.bamFile,this.checkpointMillis);
+        }
 
     
         Instant inst1 = Instant.now(); //For timing how long it takes to run
         
-        while(r.hasNext()) {
-
-            SAMRecord read=r.next(); //Current Read
-            readNum=readNum+1;
-
-            //if verbose print out current line number
-            if(readNum % 1000000==0 & verbose)
+        //BGZF blocks are inflated on other threads, records are processed on this one without decoding them into SAMRecords
+        try{
+            BamRecordReader r;
+            if(startOffset<0)
             {
-                print(String.valueOf(readNum));
+                r=new BamRecordReader(this.bamFile,this.getHeader(),Math.max(1,this.numThreads-1));
+            }else{
+                r=new BamRecordReader(this.bamFile,this.getHeader(),startOffset,Math.max(1,this.numThreads-1));
             }
-            
-            //To speed up testing
-            if(readNum>10000000 & testingVal)
+            if(this.metrics!=null)
             {
-                break;
+                this.metrics.start(this.bamFile,this.bamFile.length()-(r.getFilePointer()>>>16),this.numThreads);
             }
-           
-            this.processRead(read); //The processing of the current aligned read
+            this.probe.seek(r);
+            while(this.probe.next(r)) {
+
+                readNum=readNum+1;
 
+                //if verbose print out current line number
+                if(readNum % 1000000==0 & verbose)
+                {
+                    print(String.valueOf(readNum));
+                }
+                
+                //To speed up testing
+                if(readNum>this.sampleReads & testingVal)
+                {
+                    break;
+                }
+               
+                this.processRaw(r.rawData,0,r.rawLength); //The processing of the current aligned read, straight from its bytes
 
+                //only looks at the clock every 65536 reads
+                if(checkpoint!=null && (readNum & 0xffff)==0)
+                {
+                    checkpoint.update(this,readNum,r.getFilePointer());
+                }
+
+            }
+            this.probe.finish(r);
+            this.probe.publish();
+            r.close();
+        }catch(IOException e){
+            throw new RuntimeException("Issue reading bam",e);
+        }finally{
+            if(checkpoint!=null)
+            {
+                checkpoint.close();
+            }
+            if(this.metrics!=null)
+            {
+                this.metrics.close();
+            }
         }
         
         Instant inst2 = Instant.now(); 
@@ -152,106 +598,451 @@ public class ReadCounter
         
         print("Total number of alignments: "+String.valueOf(readNum));
 
+        this.countUMIs();
     }
 
-
-    //The processing of the current aligned read, extracts QC info
-    public void processRead(SAMRecord read)
+    //Puts the exact or estimated UMI counts in the nUMI column (and the estimated genes in an nGene column), once all the reads are in
+    protected void countUMIs()
     {
-            
-        //Get some basic info about the read
-        String cbc=null; //current cell barcode
-        String umi=null; //current UMI
-        String cbcQual=null; //current CBC qual string
-        String umiQual=null; //current UMI qual string
+        for(int k=0;this.downsampled!=null && k<this.downsampled.length;k++)
+        {
+            this.downsampled[k].countUMIs();
+        }
+        if(this.sketches!=null)
+        {
+            this.extraCols.put("nGene",this.sketches.count(this.col_umi));
+            this.sketches=null;
+        }
+        if(this.saturation!=null)
+        {
+            try{
+                this.saturation.count();
+            }catch(IOException e){
+                throw new RuntimeException("Issue counting UMIs for saturation",e);
+            }
+        }
+        if(this.umis==null)
+        {
+            return;
+        }
+        try{
+            this.umis.count(this.col_umi);
+        }catch(IOException e){
+            throw new RuntimeException("Issue counting UMIs",e);
+        }
+        this.umis=null;
+    }
 
+    //Reads the header of the bam
+    protected SAMFileHeader getHeader()
+    {
+        SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(this.bamFile);
+        SAMFileHeader header=sr.getFileHeader();
+        try{
+            sr.close();
+        }catch(IOException e){
+        }
+        return(header);
+    }
 
+    //Splits the bam into shards using the bam index and processes them on numThreads threads.
+    //Each thread has its own worker ReadCounter, the workers are merged into this one at the end.
+    //If sample is true only shards holding about sampleReads reads from across the bam are
+    //processed (see BamShard.makeSampleShards) and the counts are scaled up (see scaleSample).
+    //Returns false (without reading anything) if the bam has no index.
+    protected boolean ReadBamSharded(final boolean verbose,boolean sample)
+    {
+        SamReader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(this.bamFile);
+        if(!sr.hasIndex())
+        {
+            try{
+                sr.close();
+            }catch(IOException e){
+            }
+            return(false);
+        }
+        final SAMFileHeader header=sr.getFileHeader();
+        final ConcurrentLinkedQueue<BamShard> shards;
+        long totalBytes=0; //compressed bytes in the shards, for metrics
+        long totalReads=-1; //number of alignments in the bam from the index, used to scale up a sample
         try{
-            cbc=read.getStringAttribute("CB");
-            umi=read.getStringAttribute("UB");
-            cbcQual=read.getStringAttribute("CY");
-            umiQual=read.getStringAttribute("UY");
-        }catch(Exception e){
-            print("Issue reading read!");
+            long firstRecord=BamSplitter.getFirstRecordOffset(this.bamFile);
+            if(sample)
+            {
+                totalReads=BamShard.countReads(sr);
+                shards=new ConcurrentLinkedQueue<BamShard>(BamShard.makeSampleShards(sr,new BamSplitter(this.bamFile,header),this.sampleReads,firstRecord,sampleSeed));
+            }else{
+                shards=new ConcurrentLinkedQueue<BamShard>(BamShard.makeShards(sr,this.numThreads,firstRecord));
+            }
+            sr.close();
+        }catch(IOException e){
+            throw new RuntimeException("Issue reading bam index",e);
+        }
+        for(BamShard shard:shards)
+        {
+            for(int c=0;c<shard.chunks.length;c=c+2)
+            {
+                totalBytes=totalBytes+Math.min(shard.chunks[c+1]>>>16,this.bamFile.length())-(shard.chunks[c]>>>16);
+            }
         }
+        print("Processing "+String.valueOf(shards.size())+" shards on "+String.valueOf(this.numThreads)+" threads");
 
-        //Removed to make work with STARSolo
-        //if(umiQual==null | cbcQual==null)
-        //{
-        //    print("No quality score for CBC/UMI");
-        //    return;
-        //}
+        this.allocateQC(); //Stores the QC information we care about, filled in from the workers
+        final AtomicLong readNum=new AtomicLong(0); //number of alignments encountered so far, over all threads
+        Instant inst1 = Instant.now(); //For timing how long it takes to run
+        if(this.metrics!=null)
+        {
+            this.metrics.start(this.bamFile,totalBytes,this.numThreads);
+        }
 
-        if(cbc==null)
+        ExecutorService pool=Executors.newFixedThreadPool(this.numThreads);
+        ArrayList<Future<ReadCounter>> workers=new ArrayList<Future<ReadCounter>>();
+        for(int t=0;t<this.numThreads;t++)
         {
-            cbc="notCell";
+            workers.add(pool.submit(new Callable<ReadCounter>(){
+                public ReadCounter call() throws IOException
+                {
+                    ReadCounter worker=new ReadCounter(ReadCounter.this);
+                    BamRecordReader r=new BamRecordReader(worker.bamFile,header,0);
+                    BamShard shard;
+                    while((shard=shards.poll())!=null)
+                    {
+                        boolean past=false; //true once reads are after the end of the shard
+                        for(int c=0;c<shard.chunks.length & !past;c=c+2)
+                        {
+                            r.seek(shard.chunks[c]);
+                            worker.probe.seek(r);
+                            while(r.getFilePointer()<shard.chunks[c+1] && worker.probe.next(r))
+                            {
+                                worker.fields.fillRaw(r.rawData,0,r.rawLength);
+                                worker.probe.lap(ReadMetrics.tags);
+                                if(shard.isPast(worker.fields))
+                                {
+                                    past=true;
+                                    break;
+                                }
+                                if(!shard.owns(worker.fields))
+                                {
+                                    continue;
+                                }
+                                long curNum=readNum.incrementAndGet();
+                                if(curNum % 1000000==0 & verbose)
+                                {
+                                    print(String.valueOf(curNum));
+                                }
+                                worker.processFields(worker.fields);
+                            }
+                            worker.probe.finish(r);
+                        }
+                    }
+                    worker.probe.publish();
+                    r.close();
+                    return(worker);
+                }
+            }));
         }
+        pool.shutdown();
+        this.mergeWorkers(pool,workers);
+
+        Instant inst2 = Instant.now();
 
-        if(!this.Cell2Pos.containsKey(cbc)) 
+        print("Run time for processing bam: "+Duration.between(inst1, inst2).toString());
+
+        print("Total number of alignments: "+String.valueOf(readNum.get()));
+        if(sample)
         {
-            cbc="notCell";
+            this.scaleSample(readNum.get(),totalReads);
         }
+        return(true);
+    }
 
-        int pos=this.Cell2Pos.get(cbc); //row this cbc appears in
+    ////////////////////
+    ////Scales the counts from a sample up to the whole bam, and adds a sampled_reads column
+    ////with the number of reads each cell had in the sample. Percent columns are left as
+    ////they are. The counts of a cell with n sampled reads are off by roughly 100/sqrt(n)
+    ////percent, so sampled_reads says how far to trust them.
+    ////sampledReads: number of alignments processed
+    ////totalReads: number of alignments in the bam, -1 if not known (the counts are then left unscaled)
+    /////////////////////
+    protected void scaleSample(long sampledReads,long totalReads)
+    {
+        long[] sampled=Arrays.copyOf(this.CellQC[this.col_tot],this.numSlots);
+        if(sampledReads==0 | totalReads<0)
+        {
+            print("Could not get the number of alignments in the bam from the index, counts are not scaled up");
+        }else{
+            double scale=(double)totalReads/(double)sampledReads;
+            print("Sampled "+String.valueOf(sampledReads)+" of "+String.valueOf(totalReads)+" alignments, scaling counts by "+String.format("%.3f",scale));
+            for(int j=0;j<numCol-1;j++)
+            {
+                if(this.isPercentCol(j))
+                {
+                    continue;
+                }
+                for(int slot=0;slot<this.numSlots;slot++)
+                {
+                    this.CellQC[j][slot]=Math.round(scale*this.CellQC[j][slot]);
+                }
+            }
+        }
+        this.extraCols.put("sampled_reads",sampled);
+    }
 
-        int numMapping; //Number of positions in genome read maps to
+    //Splits the bam into byte ranges (no index needed) and processes them on numThreads threads.
+    //As with ReadBamSharded each thread has its own worker ReadCounter, merged into this one at the end.
+    protected void ReadBamByteRanges(final boolean verbose)
+    {
+        final SAMFileHeader header=this.getHeader();
+        final long[] splits; //virtual offset of first record in each range, then Long.MAX_VALUE
         try{
-            numMapping=read.getIntegerAttribute("NH");
+            BamSplitter splitter=new BamSplitter(this.bamFile,header);
+            splits=splitter.getSplits(BamSplitter.getFirstRecordOffset(this.bamFile),this.numThreads*BamShard.shardsPerThread);
+        }catch(IOException e){
+            throw new RuntimeException("Issue splitting bam",e);
         }
-        catch(Exception e)
+        print("Processing "+String.valueOf(splits.length-1)+" byte ranges on "+String.valueOf(this.numThreads)+" threads");
+
+        this.allocateQC(); //Stores the QC information we care about, filled in from the workers
+        final AtomicLong readNum=new AtomicLong(0); //number of alignments encountered so far, over all threads
+        final AtomicInteger nextRange=new AtomicInteger(0); //next range for a thread to process
+        Instant inst1 = Instant.now(); //For timing how long it takes to run
+        if(this.metrics!=null)
+        {
+            this.metrics.start(this.bamFile,this.bamFile.length()-(splits[0]>>>16),this.numThreads);
+        }
+
+        ExecutorService pool=Executors.newFixedThreadPool(this.numThreads);
+        ArrayList<Future<ReadCounter>> workers=new ArrayList<Future<ReadCounter>>();
+        for(int t=0;t<this.numThreads;t++)
+        {
+            workers.add(pool.submit(new Callable<ReadCounter>(){
+                public ReadCounter call() throws IOException
+                {
+                    ReadCounter worker=new ReadCounter(ReadCounter.this);
+                    int range;
+                    while((range=nextRange.getAndIncrement())<splits.length-1)
+                    {
+                        BamRecordReader r=new BamRecordReader(worker.bamFile,header,splits[range],0);
+                        worker.probe.seek(r);
+                        while(r.getFilePointer()<splits[range+1] && worker.probe.next(r))
+                        {
+                            long curNum=readNum.incrementAndGet();
+                            if(curNum % 1000000==0 & verbose)
+                            {
+                                print(String.valueOf(curNum));
+                            }
+                            worker.processRaw(r.rawData,0,r.rawLength);
+                        }
+                        worker.probe.finish(r);
+                        r.close();
+                    }
+                    worker.probe.publish();
+                    return(worker);
+                }
+            }));
+        }
+        pool.shutdown();
+        this.mergeWorkers(pool,workers);
+
+        Instant inst2 = Instant.now();
+
+        print("Run time for processing bam: "+Duration.between(inst1, inst2).toString());
+
+        print("Total number of alignments: "+String.valueOf(readNum.get()));
+    }
+
+    //Waits for the worker threads to finish and merges their counts into this one
+    protected void mergeWorkers(ExecutorService pool,ArrayList<Future<ReadCounter>> workers)
+    {
+        try{
+            for(Future<ReadCounter> worker:workers)
+            {
+                this.mergeCounts(worker.get());
+            }
+        }catch(InterruptedException e){
+            throw new RuntimeException(e);
+        }catch(ExecutionException e){
+            pool.shutdownNow();
+            throw new RuntimeException("Issue processing bam",e.getCause());
+        }finally{
+            if(this.metrics!=null)
+            {
+                this.metrics.close();
+            }
+        }
+    }
+
+    //Adds the counts from a worker ReadCounter to this one, everything is a count so the order workers are merged in does not matter
+    //(the slots cells end up in do depend on the order, but slots are never part of the output)
+    protected void mergeCounts(ReadCounter worker)
+    {
+        for(int workerSlot=0;workerSlot<worker.numSlots;workerSlot++)
+        {
+            int slot=this.slotFor(worker.slotCells[workerSlot]);
+            for(int j=0;j<numCol-1;j++)
+            {
+                this.CellQC[j][slot]=this.CellQC[j][slot]+worker.CellQC[j][workerSlot];
+                if(this.isPercentCol(j))
+                {
+                    this.CellBases[j][slot]=this.CellBases[j][slot]+worker.CellBases[j][workerSlot];
+                }
+            }
+        }
+        if(this.umis!=null)
+        {
+            this.umis.merge(worker.umis);
+        }
+        if(this.sketches!=null)
+        {
+            this.sketches.merge(worker.sketches);
+        }
+        if(this.saturation!=null)
+        {
+            this.saturation.merge(worker.saturation);
+        }
+        for(int k=0;this.downsampled!=null && k<this.downsampled.length;k++)
+        {
+            this.downsampled[k].mergeCounts(worker.downsampled[k]);
+        }
+    }
+
+
+    //The processing of the current aligned read, extracts QC info
+    public void processRead(SAMRecord read)
+    {
+        this.fields.fill(read);
+        this.processFields(this.fields);
+    }
+
+    //The processing of the current aligned read given as the raw bytes of a bam record (see BamRecordReader.nextRaw)
+    public void processRaw(byte[] rec,int off,int len)
+    {
+        this.fields.fillRaw(rec,off,len);
+        this.probe.lap(ReadMetrics.tags);
+        this.processFields(this.fields);
+    }
+
+    //The processing of the current aligned read once its fields have been pulled out, extracts QC info
+    protected void processFields(ReadFields fields)
+    {
+        if(this.downsampled!=null)
+        {
+            double h=this.downsampleHash(fields);
+            for(int k=0;k<this.downsampled.length;k++)
+            {
+                if(h<this.downsampleFractions[k])
+                {
+                    this.downsampled[k].processFields(fields);
+                }
+            }
+        }
+
+        //Removed to make work with STARSolo
+        //if(umiQual==null | cbcQual==null)
+        //{
+        //    print("No quality score for CBC/UMI");
+        //    return;
+        //}
+
+        int pos=this.cellFor(fields); //row this cbc appears in
+
+        int numMapping=fields.nh; //Number of positions in genome read maps to
+        if(numMapping==ReadFields.absent)
         {
             numMapping=0;
         }
 
         float numMapping_float=1; //used to avoid overcounting multimapped reads, due to addition of check for secondary alignment no longer needed, will remove from code but setting to 1 for now.
         
-        if(read.isSecondaryOrSupplementary() & !this.useMulti)
+        if(fields.isSecondaryOrSupplementary() & !this.useMulti)
         {
             return;
         }
 
+        pos=this.slotFor(pos); //from here on pos is the row of CellQC for this cbc
+
         //update total reads
-        this.CellQC[pos][this.col_tot]=this.CellQC[pos][this.col_tot]+1/numMapping_float;
+        this.CellQC[this.col_tot][pos]=this.CellQC[this.col_tot][pos]+1;
+        if(this.totalsOnly)
+        {
+            return;
+        }
 
-        //Update percent bases high quality
-        if(umiQual!=null & cbcQual!=null)
+        //Update counts of high quality bases, the percent is only worked out when saving
+        if(fields.uyLen>=0 & fields.cyLen>=0)
         {
-            this.CellQC[pos][this.col_qual_cbc]=PercentHighQual(cbcQual,this.CellQC[pos][this.col_qual_cbc],this.CellQC[pos][this.col_tot],numMapping_float);
-            this.CellQC[pos][this.col_qual_umi]=PercentHighQual(umiQual,this.CellQC[pos][this.col_qual_umi],this.CellQC[pos][this.col_tot],numMapping_float);
+            this.CellQC[this.col_qual_cbc][pos]=this.CellQC[this.col_qual_cbc][pos]+CountHighQual(fields.data,fields.cyOff,fields.cyLen);
+            this.CellBases[this.col_qual_cbc][pos]=this.CellBases[this.col_qual_cbc][pos]+fields.cyLen;
+            this.CellQC[this.col_qual_umi][pos]=this.CellQC[this.col_qual_umi][pos]+CountHighQual(fields.data,fields.uyOff,fields.uyLen);
+            this.CellBases[this.col_qual_umi][pos]=this.CellBases[this.col_qual_umi][pos]+fields.uyLen;
         }
         
         //check if trimmed for TSO/polyA
-        this.CheckIfTrimmed(read,pos,numMapping_float); 
+        this.CheckIfTrimmed(fields,pos,numMapping_float); 
         
         //check if unmapped
         if(numMapping<1)
         {
-            this.CellQC[pos][this.col_unmap]=this.CellQC[pos][this.col_unmap]+1;
+            this.CellQC[this.col_unmap][pos]=this.CellQC[this.col_unmap][pos]+1;
             return;
         }
 
-        this.ProcessXF(read,pos,8,this.col_umi); //gets info from xf tag for nUMI
+        if(this.umis==null & this.sketches==null)
+        {
+            this.ProcessXF(fields,pos,8,this.col_umi); //gets info from xf tag for nUMI
+        }else if(numMapping==1){
+            //counted once all the reads are in, see countUMIs
+            if(this.umis!=null)
+            {
+                this.umis.add(pos,fields);
+            }
+            if(this.sketches!=null)
+            {
+                this.sketches.add(pos,fields);
+            }
+        }
+        if(this.saturation!=null & numMapping==1)
+        {
+            this.saturation.add(pos,fields,this.downsampleHash(fields));
+        }
 
-        this.RegionMappingTo(read,pos); //exonic, intergenic, intronic  
+        this.ProcessXF(fields,pos,1,this.col_hiconf); //gets info from xf tag for hi confidence reads
+
+        this.probe.lap(ReadMetrics.accumulate);
+        this.RegionMappingTo(fields,pos); //exonic, intergenic, intronic  
         
         //counts if multimapped
         if(numMapping>1)
         {
-            this.CellQC[pos][this.col_multi]=this.CellQC[pos][this.col_multi]+1/numMapping_float;
+            this.CellQC[this.col_multi][pos]=this.CellQC[this.col_multi][pos]+1;
         }
                
         
-        if(this.IsSpliced(read)){this.CellQC[pos][this.col_splice]=this.CellQC[pos][this.col_splice]+1;} //checks if spliced
+        if(fields.spliced){this.CellQC[this.col_splice][pos]=this.CellQC[this.col_splice][pos]+1;} //checks if spliced (N in cigar)
         
-        this.CheckUTR(read,pos);
+        this.CheckUTR(fields,pos);
 
-        this.ProcessXF(read,pos,1,this.col_hiconf); //gets info from xf tag for hi confidence reads
-        
         if(this.quantUsed.equals("CellRanger")) //Antisense handled by RegionMappingTo if STARSolo
         {
-            this.GetAntisense(read,pos); //gets antisense info
+            this.GetAntisense(fields,pos); //gets antisense info
         }
+        this.probe.lap(ReadMetrics.annotate); //from RegionMappingTo, the multimapped and spliced counts in between take next to no time
+
+    }
 
+    //Gets the cell (position in cells) of a read from its CB tag, notCellPos if it has none or it is not in cells
+    protected int cellFor(ReadFields fields)
+    {
+        int pos=this.notCellPos;
+        if(fields.cbLen>=0)
+        {
+            pos=this.Cell2Pos.get(fields.data,fields.cbOff,fields.cbLen); //single lookup straight from the tag bytes, -1 if not a cell
+            if(pos<0)
+            {
+                pos=this.notCellPos;
+            }
+        }
+        return(pos);
     }
 
     //process info from xf tag, gets info about:
@@ -259,12 +1050,15 @@ public class ReadCounter
     //2) If counted towards UMI
     protected void ProcessXF(SAMRecord read,int pos,int bitUsed,int col)
     {
-        int xf=0; //to check if confidentially mapped to transcriptome
+        this.fields.fill(read);
+        this.ProcessXF(this.fields,pos,bitUsed,col);
+    }
 
-        try{
-            xf=read.getIntegerAttribute("xf");
-        }
-        catch(Exception e)
+    protected void ProcessXF(ReadFields fields,int pos,int bitUsed,int col)
+    {
+        int xf=fields.xf; //to check if confidentially mapped to transcriptome
+
+        if(xf==ReadFields.absent)
         {
             //print("No xf tag found!");
             return;
@@ -273,50 +1067,28 @@ public class ReadCounter
 
         if(xf/bitUsed % 2==1)
         {
-            this.CellQC[pos][col]=this.CellQC[pos][col]+1; //Adds 1 if this read is counted as a UMI
+            this.CellQC[col][pos]=this.CellQC[col][pos]+1; //Adds 1 if this read is counted as a UMI
         }
 
 
     }
 
     //check if bases are trimmed (TSO or polyA)
-    protected void CheckIfTrimmed(SAMRecord read,int pos,float numMapping_float)
+    protected void CheckIfTrimmed(ReadFields fields,int pos,float numMapping_float)
     {
-        int numPolyA; //Number of bases trimmed for polyA
-        int numTSO; //Number of bases timmed for TSO
-        
-        //to avoid issues with unmapped reads
-        if(numMapping_float<1)
-        {
-            numMapping_float=1;
-        }
+        int numPolyA=fields.pa; //Number of bases trimmed for polyA
+        int numTSO=fields.ts; //Number of bases timmed for TSO
         
-        try{
-            numPolyA=read.getIntegerAttribute("pa");
-        }
-        catch(Exception e)
-        {
-            numPolyA=0;
-        }
-
-        //check if any bases trimmed due to being poly-A
+        //check if any bases trimmed due to being poly-A (absent is negative so not counted)
         if(numPolyA>0)
         {
-            this.CellQC[pos][this.col_polyA]=this.CellQC[pos][this.col_polyA]+1/numMapping_float;
-        }
-
-        try{
-            numTSO=read.getIntegerAttribute("ts");
-        }
-        catch(Exception e)
-        {
-            numTSO=0;
+            this.CellQC[this.col_polyA][pos]=this.CellQC[this.col_polyA][pos]+1;
         }
         
         //check if any bases trimmed due to being TSO
         if(numTSO>0)
         {
-            this.CellQC[pos][this.col_TSO]=this.CellQC[pos][this.col_TSO]+1/numMapping_float;
+            this.CellQC[this.col_TSO][pos]=this.CellQC[this.col_TSO][pos]+1;
         }
 
     }
@@ -328,7 +1100,13 @@ public class ReadCounter
     //Checks if read is intergenic, intronic, exonic
     protected void RegionMappingTo(SAMRecord read,int pos)
     {
-        int mapq=read.getMappingQuality();//checks read is high quality
+        this.fields.fill(read);
+        this.RegionMappingTo(this.fields,pos);
+    }
+
+    protected void RegionMappingTo(ReadFields fields,int pos)
+    {
+        int mapq=fields.mapq;//checks read is high quality
         if(mapq<255)
         {
             //print("Low qual");
@@ -340,97 +1118,64 @@ public class ReadCounter
         char readType='Z'; //If intergenic, intornic, or exonic (or, in the case of STARSolo, antisense)
         if(this.quantUsed.equals("CellRanger"))
         {
-            try{
-                readType=read.getCharacterAttribute("RE");
-            }
-            catch(Exception e)
+            if(fields.reChar==0)
             {
                 return;
             }
+            readType=fields.reChar;
         }
         if(this.quantUsed.equals("STARSolo"))
         {
-            readType=this.getReadType_STARSolo(read);
+            readType=this.getReadType_STARSolo(fields);
         }
 
         if(readType=='E')
         {
-            this.CellQC[pos][this.col_exonic]=this.CellQC[pos][this.col_exonic]+1; //If exonic
+            this.CellQC[this.col_exonic][pos]=this.CellQC[this.col_exonic][pos]+1; //If exonic
         }
 
         if(readType=='N') 
         {
-            this.CellQC[pos][this.col_intronic]=this.CellQC[pos][this.col_intronic]+1; //If intronic
+            this.CellQC[this.col_intronic][pos]=this.CellQC[this.col_intronic][pos]+1; //If intronic
         }
 
         if(readType=='I')
         {
-            this.CellQC[pos][this.col_intergenic]=this.CellQC[pos][this.col_intergenic]+1; //If intergenic
+            this.CellQC[this.col_intergenic][pos]=this.CellQC[this.col_intergenic][pos]+1; //If intergenic
         }
 
         if(readType=='A') //only in STARSolo, corresponds to antisense
         {
-            this.CellQC[pos][this.col_anti]=this.CellQC[pos][this.col_anti]+1;
+            this.CellQC[this.col_anti][pos]=this.CellQC[this.col_anti][pos]+1;
         }
         
 
     }
 
     //Gets read type (intronic, etc) for STARSolo data preprocessed with bedtools tag
-    protected char getReadType_STARSolo(SAMRecord read)
+    protected char getReadType_STARSolo(ReadFields fields)
     {
-        String readTypeList=null;
-        try
-        {
-            readTypeList=read.getStringAttribute("RE");
-        }
-        catch(Exception e)
-        {
-            return('I');
-        }
-
         char readType='I';
-        if(readTypeList==null)
+        if(fields.reLen<0)
         {
             return(readType);
         }
-        if(readTypeList.contains("E")){
+        if(fields.contains(fields.reOff,fields.reLen,'E')){
             readType='E';
-        }else if(readTypeList.contains("N")){
+        }else if(fields.contains(fields.reOff,fields.reLen,'N')){
             readType='N';
-        }else if(readTypeList.contains("A")){
+        }else if(fields.contains(fields.reOff,fields.reLen,'A')){
             readType='A';
         }
         return(readType);
     }
 
     //checks if read is antisense
-    protected void GetAntisense(SAMRecord read,int pos)
+    protected void GetAntisense(ReadFields fields,int pos)
     {
-        String antisense=null;
-        try
-        {
-        antisense=read.getStringAttribute("AN");
-        }
-        catch(Exception e)
-        {
-            return;
-        }
-
-        String gene=null;
-
-        try
+        if(!fields.hasTX & fields.hasAN)
         {
-            gene=read.getStringAttribute("TX");
-        }
-        catch(Exception e)
-        {
-            return;
-        }
-
-        if(gene==null & !(antisense==null))
-        {
-            this.CellQC[pos][this.col_anti]=this.CellQC[pos][this.col_anti]+1; //Adds for antisense
+            this.CellQC[this.col_anti][pos]=this.CellQC[this.col_anti][pos]+1; //Adds for antisense
         }
     }
 
@@ -446,40 +1191,31 @@ public class ReadCounter
 
 
 
-    //Updates the percent bases with high quality
-    //qual is the quality string from the sequencer
-    //curProp is the current proportion of bases that are high quality (>30)
-    //curReads is the number of reads (not including the current read)
-    //numMapping is the number of locations this read maps to
-    protected float PercentHighQual(String qual,float curProp,float curReads,float numMapping)
+    //Counts the bases with quality>=30 in a quality string given as bytes qual[off..off+len) (as in the CY/UY tags)
+    //Works on 8 bytes at a time: adding 128-(33+30) to each byte sets its top bit exactly when the byte is at least
+    //'?' (quality 30), as long as no byte already has its top bit set (quality strings are printable ASCII)
+    protected static int CountHighQual(byte[] qual,int off,int lenQual)
     {
-        if(numMapping<1){
-            numMapping=1;
+        int numHigh=0;
+        int i=off;
+        int end=off+lenQual;
+        for(;i+8<=end;i=i+8)
+        {
+            long word=(long)qualWords.get(qual,i);
+            if((word & highBits)!=0)
+            {
+                break; //not ASCII, count the rest one by one
+            }
+            numHigh=numHigh+Long.bitCount((word+qualOffsets) & highBits);
         }
-
-        //get the proportion for this read
-        int lenQual=qual.length();
-
-        float readProp=0;
-        for(int i=0;i<lenQual;i++)
+        for(;i<end;i++)
         {
-            int score=(int) qual.charAt(i);
-            score=score-33;
-            
-            if(score>29)
+            if(qual[i]-33>29)
             {
-                readProp=readProp+1;
+                numHigh=numHigh+1;
             }
-            
-            
         }
-        readProp=readProp/(float) lenQual;
-
-        //get new proportion
-        
-        float newProp=(curProp*(curReads-1)+readProp)/(curReads);
-        
-        return(newProp);
+        return(numHigh);
     }
 
 
@@ -489,152 +1225,316 @@ public class ReadCounter
     }
 
 
-    public void SaveQC()
+    ////////////////////
+    ////Writes the table of QC metrics, one row per cell, to outfile. Rows are formatted
+    ////straight into a byte buffer by TableWriter, and cells with no reads (no slot) are
+    ////written from a prebuilt row of zeros. Returns false if the table or any of the files
+    ////written with it (suppressed cells, saturation, downsampled tables) could not be written.
+    /////////////////////
+    public boolean SaveQC()
     {
+        boolean ok=true;
 
         print("Save file");
 
 
         try
         {
-            if(!this.outfile.exists())
-            {
-                this.outfile.createNewFile();
-            }
-            FileWriter fw = new FileWriter(this.outfile.getAbsoluteFile());
-            BufferedWriter bw = new BufferedWriter(fw);
+            TableWriter tw=new TableWriter(this.outfile,this.compression,this.numThreads);
             for(int j=0;j<numCol;j++)
             {
-                String colnam=colNames[j];
                 if(j>0)
                 {
-                    colnam="\t"+colnam;
+                    tw.tab();
                 }
-                bw.write(colnam);
+                tw.write(colNames[j]);
             }
-            bw.newLine();
-
-            for(int i=0;i<this.numCell;i++)
+            for(String name:this.extraCols.keySet())
             {
-                String cell=this.cells.get(i);
-                float[] quant=this.CellQC[i];
-                //For percentages
+                tw.tab();
+                tw.write(name);
+            }
+            tw.newLine();
+            int numValues=numCol-1+this.extraCols.size(); //number of values in a row
+            long[][] extraVals=this.extraCols.values().toArray(new long[0][]);
 
-                quant[this.col_qual_cbc]=100*quant[this.col_qual_cbc];
+            byte[] zeroRow=new byte[2*numValues+1]; //the values of a cell with no reads, "\t0" for each column then a new line
+            for(int j=0;j<numValues;j++)
+            {
+                zeroRow[2*j]='\t';
+                zeroRow[2*j+1]='0';
+            }
+            zeroRow[zeroRow.length-1]='\n';
 
-                quant[this.col_qual_umi]=100*quant[this.col_qual_umi];
-                bw.write(cell,0,cell.length()); //write Cell name
+            long numSuppressed=0; //number of cells not written as they have fewer than minReads reads
+            long[] suppressedQC=new long[numCol-1]; //sum of counts of the cells not written
+            long[] suppressedBases=new long[numCol-1]; //sum of bases of the cells not written, for percent columns
+            long[] suppressedExtra=new long[extraVals.length]; //sum of the extra columns of the cells not written
+            for(int i=0;i<this.numCell;i++)
+            {
+                int slot=this.cellSlots[i];
+                if(this.minReads>0 & i!=this.notCellPos && this.GetValue(i,this.col_tot)<this.minReads)
+                {
+                    numSuppressed=numSuppressed+1;
+                    for(int j=0;j<numCol-1 & slot>=0;j++)
+                    {
+                        suppressedQC[j]=suppressedQC[j]+this.CellQC[j][slot];
+                        if(this.isPercentCol(j))
+                        {
+                            suppressedBases[j]=suppressedBases[j]+this.CellBases[j][slot];
+                        }
+                    }
+                    for(int k=0;k<extraVals.length & slot>=0;k++)
+                    {
+                        suppressedExtra[k]=suppressedExtra[k]+extraVals[k][slot];
+                    }
+                    continue;
+                }
+                tw.write(this.cells.get(i)); //write Cell name
+                if(slot<0)
+                {
+                    tw.write(zeroRow);
+                    continue;
+                }
                 for(int j=0;j<numCol-1;j++)
                 {
-                    bw.write("\t"+String.valueOf(Math.round(quant[j])));
+                    tw.tab();
+                    tw.writeLong(Math.round(this.GetSlotValue(slot,j)));
+                }
+                for(int k=0;k<extraVals.length;k++)
+                {
+                    tw.tab();
+                    tw.writeLong(extraVals[k][slot]);
                 }
-                bw.newLine();
+                tw.newLine();
+            }
+            tw.close();
+
+            if(this.minReads>0)
+            {
+                this.SaveSuppressed(numSuppressed,suppressedQC,suppressedBases,suppressedExtra);
             }
-            bw.close();
         }
         catch(Exception e)
         {
             print("Exception writing file!");
+            ok=false;
         }
 
+        if(this.saturation!=null)
+        {
+            ok=this.saturation.SaveSaturation() & ok;
+        }
 
+        //the tables for the downsampled reads, if any
+        for(int k=0;this.downsampled!=null && k<this.downsampled.length;k++)
+        {
+            print("Reads downsampled to "+String.valueOf(this.downsampleFractions[k])+" go in "+this.downsampled[k].outfile.getPath());
+            ok=this.downsampled[k].SaveQC() & ok;
+        }
+        return(ok);
+    }
+
+    //Gets the file SaveQC writes the totals of the cells it leaves out to
+    public static File suppressedFile(File outfile)
+    {
+        return(new File(outfile.getPath()+".suppressed.tsv"));
     }
 
-    //checks if read in UTR
-    public void CheckUTR(SAMRecord read,int pos)
+    //Writes the number of cells SaveQC left out and the sum of their counts (percent columns are over all their bases), in the output's columns
+    protected void SaveSuppressed(long numSuppressed,long[] suppressedQC,long[] suppressedBases,long[] suppressedExtra) throws IOException
     {
-        if(this.GeneToUTRs_start==null)
+        File file=suppressedFile(this.outfile);
+        BufferedWriter bw=new BufferedWriter(new FileWriter(file));
+        bw.write("numCells");
+        for(int j=1;j<numCol;j++)
         {
-            return;
+            bw.write("\t"+colNames[j]);
+        }
+        for(String name:this.extraCols.keySet())
+        {
+            bw.write("\t"+name);
+        }
+        bw.newLine();
+        bw.write(String.valueOf(numSuppressed));
+        for(int j=0;j<numCol-1;j++)
+        {
+            long value=suppressedQC[j];
+            if(this.isPercentCol(j))
+            {
+                value=suppressedBases[j]==0 ? 0 : Math.round(100*(double)suppressedQC[j]/(double)suppressedBases[j]);
+            }
+            bw.write("\t"+String.valueOf(value));
         }
-        String gene=read.getStringAttribute("GX");
-        int endRead=read.getAlignmentEnd();
-        int startRead=read.getAlignmentStart();
+        for(long value:suppressedExtra)
+        {
+            bw.write("\t"+String.valueOf(value));
+        }
+        bw.newLine();
+        bw.close();
+        print("Left out "+String.valueOf(numSuppressed)+" cells with fewer than "+String.valueOf(this.minReads)+" reads, their totals are in "+file.getPath());
+    }
 
-        if(!this.GeneToUTRs_start.containsKey(gene)) 
+    //checks if read in UTR, that is if its start or end is inside a UTR of one of the genes in its GX tag
+    public void CheckUTR(ReadFields fields,int pos)
+    {
+        if(this.UTRsByRef==null | fields.gxLen<0 | fields.refIndex<0)
+        {
+            return;
+        }
+        IntervalIndex.Contig contig=this.UTRsByRef[fields.refIndex];
+        if(contig==null)
         {
             return;
         }
-        ArrayList<Integer> UTR_starts=GeneToUTRs_start.get(gene); //start position of UTRs for this gene
-        ArrayList<Integer> UTR_ends=GeneToUTRs_end.get(gene); //start position of UTRs for this gene
 
-        for(int i=0;i<UTR_starts.size();i++)
+        boolean inUTR;
+        if(this.utrSweep!=null)
         {
-            int start=UTR_starts.get(i);
-            int end=UTR_ends.get(i);
-            if(start < endRead & endRead < end)
+            //UTRs the start or end is in, found by sweeping along the sorted bam
+            this.utrSweep.find(fields.refIndex,fields.start,fields.end,this.utrHits);
+            inUTR=this.InGeneUTR(contig,fields);
+        }else{
+            contig.query(fields.end,fields.end,this.utrHits);
+            inUTR=this.InGeneUTR(contig,fields);
+            if(!inUTR)
             {
-                this.CellQC[pos][this.col_3utr]=this.CellQC[pos][this.col_3utr]+1;
-                return;
+                contig.query(fields.start,fields.start,this.utrHits);
+                inUTR=this.InGeneUTR(contig,fields);
             }
+        }
+        if(inUTR)
+        {
+            this.CellQC[this.col_3utr][pos]=this.CellQC[this.col_3utr][pos]+1;
+        }
+    }
 
-            if(start < startRead & startRead < end)
+    //true if one of the UTRs found (in utrHits) belongs to one of the genes in the read's GX tag
+    protected boolean InGeneUTR(IntervalIndex.Contig contig,ReadFields fields)
+    {
+        int numHits=this.utrHits.size;
+        for(int h=0;h<numHits;h++)
+        {
+            byte[] gene=this.geneIds[contig.getValue(this.utrHits.index[h])];
+            if(this.InGeneList(gene,fields.data,fields.gxOff,fields.gxLen))
             {
-                this.CellQC[pos][this.col_3utr]=this.CellQC[pos][this.col_3utr]+1;
-                return;
+                return(true);
             }
-
         }
+        return(false);
+    }
 
-
+    //true if gene is one of the ; separated gene ids in list[off..off+len)
+    protected boolean InGeneList(byte[] gene,byte[] list,int off,int len)
+    {
+        int geneStart=off;
+        for(int i=off;i<=off+len;i++)
+        {
+            if(i<off+len && list[i]!=';')
+            {
+                continue;
+            }
+            if(i-geneStart==gene.length && Arrays.equals(gene,0,gene.length,list,geneStart,i))
+            {
+                return(true);
+            }
+            geneStart=i+1;
+        }
+        return(false);
     }
 
-    //Takes a gtf input and extracts information about the UTRs for each gene, saves it in a way that can be used later for figuring out overlap of UTR
+    //Takes a gtf input (can be gzipped) and extracts information about the UTRs for each gene, saves it in an interval index by contig that can be used later for figuring out overlap of UTR
+    //The result is cached in a binary file next to the gtf (see GtfCache), which is used instead of the gtf when it exists and matches the gtf's size and modification time
     public void ProcessGTF(String inputGTFPath)
     {
-        this.GeneToUTRs_start=new HashMap<String, ArrayList<Integer>>();
-        this.GeneToUTRs_end=new HashMap<String, ArrayList<Integer>>();
-
         File gtfFile=new File(inputGTFPath);
-       
+        GtfCache cache=GtfCache.load(gtfFile);
+        if(cache!=null)
+        {
+            print("Read GTF from cache "+GtfCache.cacheFile(gtfFile).getPath());
+            this.UTRs=cache.getUTRs();
+            this.geneIds=cache.getGeneIds();
+            return;
+        }
+
+        this.UTRs=new IntervalIndex();
+        HashMap<String, Integer> geneNums=new HashMap<String, Integer>(); //position of each gene in geneIds
+        ArrayList<byte[]> genes=new ArrayList<byte[]>();
+
         try{
-            Scanner s = new Scanner(gtfFile);
-            while(s.hasNext())
+            InputStream in=new FileInputStream(gtfFile);
+            if(inputGTFPath.endsWith(".gz"))
+            {
+                in=new GZIPInputStream(in,1<<16);
+            }
+            BufferedReader br=new BufferedReader(new InputStreamReader(in,StandardCharsets.US_ASCII),1<<20);
+            String line;
+            while((line=br.readLine())!=null)
             {
-                String line=s.nextLine();
-                if(line.charAt(0)=='#')
+                if(line.length()==0 || line.charAt(0)=='#')
                 {
                     continue;
                 }
-                String[] splitLine=line.split("\t");
-                int start=Integer.parseInt(splitLine[3]);
-                int end=Integer.parseInt(splitLine[4]);
-                String lineType=splitLine[2];
-                if(!lineType.equals("UTR") & !lineType.equals("three_prime_utr") & !lineType.equals("five_prime_utr"))
+                //only the first 5 columns and the attributes are needed, so find the tabs rather than splitting the whole line
+                int tab1=line.indexOf('\t');
+                int tab2=line.indexOf('\t',tab1+1);
+                int tab3=line.indexOf('\t',tab2+1);
+                int tab4=line.indexOf('\t',tab3+1);
+                int tab5=line.indexOf('\t',tab4+1);
+                if(tab5<0)
+                {
+                    throw new IOException("Not enough columns in GTF line: "+line);
+                }
+                if(!line.startsWith("UTR\t",tab2+1) & !line.startsWith("three_prime_utr\t",tab2+1) & !line.startsWith("five_prime_utr\t",tab2+1))
                 {
                     continue;
                 }
+                int start=Integer.parseInt(line,tab3+1,tab4,10);
+                int end=Integer.parseInt(line,tab4+1,tab5,10);
 
-                String gene=getGeneNameGTF(line);//To be added!
+                String gene=getGeneNameGTF(line);
               
-
-                if(!this.GeneToUTRs_start.containsKey(gene))//if gene not in hashmap add new arraylist
+                Integer geneNum=geneNums.get(gene);
+                if(geneNum==null)//if gene not seen before give it the next number
                 {
-                    GeneToUTRs_start.put(gene,new ArrayList<Integer>());
-                    GeneToUTRs_end.put(gene,new ArrayList<Integer>());
+                    geneNum=genes.size();
+                    geneNums.put(gene,geneNum);
+                    genes.add(gene.getBytes(StandardCharsets.US_ASCII));
                 }
 
-                //add start/end to arraylist
-                GeneToUTRs_start.get(gene).add(start);
-                GeneToUTRs_end.get(gene).add(end);
+                //add start/end to index
+                this.UTRs.add(line.substring(0,tab1),start,end,geneNum);
 
             }
-            s.close();
+            br.close();
+            this.UTRs.build();
+            this.geneIds=genes.toArray(new byte[genes.size()][]);
         }
         catch(Exception e){
             e.printStackTrace();
-            GeneToUTRs_start=null;
-            GeneToUTRs_end=null;
+            this.UTRs=null;
+            this.geneIds=null;
             print("Issue reading in GTF, will be ignored");
+            return;
         }
+        new GtfCache(this.UTRs,this.geneIds).save(gtfFile);
         
     }
 
     //Extracts gene_id from a line in a gtf file
     protected String getGeneNameGTF(String line)
     {
-        String gene=line.split("gene_id \"")[1].split("\";")[0];
-        return(gene);
+        int start=line.indexOf("gene_id \"")+9;
+        if(start<9)
+        {
+            throw new IllegalArgumentException("No gene_id in GTF line: "+line);
+        }
+        int end=line.indexOf("\";",start);
+        if(end<0)
+        {
+            end=line.length();
+        }
+        return(line.substring(start,end));
     }
 
     public static void print(String output)
@@ -642,10 +1542,44 @@ public class ReadCounter
         System.out.println(output);
     }
 
-    //get table of results, mostly for testing purposes
-    public float[][] GetResults()
+    //get table of counts (as [col][cell], with every cell in cells), mostly for testing purposes
+    public long[][] GetResults()
     {
-        return(this.CellQC);
+        long[][] ret=new long[numCol-1][this.numCell];
+        for(int slot=0;slot<this.numSlots;slot++)
+        {
+            for(int j=0;j<numCol-1;j++)
+            {
+                ret[j][this.slotCells[slot]]=this.CellQC[j][slot];
+            }
+        }
+        return(ret);
+    }
+
+    //get the value reported for a cell in column col (not counting CBC), percentages are scaled to 0-100
+    public double GetValue(int cell,int col)
+    {
+        int slot=this.cellSlots[cell];
+        if(slot<0)
+        {
+            return(0); //no reads
+        }
+        return(this.GetSlotValue(slot,col));
+    }
+
+    //get the value reported for the cell in a slot (row of CellQC) in column col
+    protected double GetSlotValue(int slot,int col)
+    {
+        if(this.isPercentCol(col))
+        {
+            long numBases=this.CellBases[col][slot];
+            if(numBases==0)
+            {
+                return(0);
+            }
+            return(100*(double)this.CellQC[col][slot]/(double)numBases);
+        }
+        return((double)this.CellQC[col][slot]);
     }
 
     //Get colnames of table of results, mostly for testing purposes
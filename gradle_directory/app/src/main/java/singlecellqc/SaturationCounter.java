@@ -0,0 +1,225 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+//////////////////////////////////////////////////////////
+//// Sequencing saturation of each cell (1 - molecules/reads) at several depths, from one
+//// pass over the bam. Reads are the ones UMICounter counts (uniquely mapped, with a UB
+//// and a single gene) and molecules are their distinct UMI and gene pairs. Each read is
+//// put in a depth by the hash of its name (see ReadCounter.downsampleHash): the smallest
+//// of the depth fractions it would be kept at when downsampling, so the reads at a depth
+//// are the reads -f would keep at that fraction. The depth goes in the low bits of the
+//// UMICounter key, so in a cell's sorted keys the first key of each molecule has the
+//// smallest depth the molecule is seen at, and the molecules at each depth are counted
+//// from those. The sets, spilling to disk, and merging of workers are
+//// UMICounter's, so the counts are exact with any number of threads.
+//////////////////////////////////////////////////////////
+public class SaturationCounter extends UMICounter
+{
+    protected static final int depthBits=4; //bits of each key holding the depth
+    public static final int maxDepths=1<<depthBits;
+
+    protected double[] depths; //fractions of the reads the curve is worked out at, increasing, the last is 1
+    protected long[][] reads; //reads put in each depth, indexed as reads[depth][slot], running totals once counted
+    protected long[][] molecules; //molecules first seen at each depth, indexed as molecules[depth][slot], running totals, null until counted
+
+    ////////////////////
+    ////owner: The ReadCounter whose slots are used
+    ////depths: fractions of the reads, increasing and ending with 1, at most maxDepths
+    ////budget: memory shared with the other counters of the run, past which the sets are spilled to disk
+    /////////////////////
+    public SaturationCounter(ReadCounter owner,double[] depths,UMICounter.Budget budget)
+    {
+        super(owner,true,budget);
+        this.depths=depths;
+        this.keyShift=depthBits;
+        this.reads=new long[depths.length][0];
+    }
+
+    ////////////////////
+    ////Adds a read (which has passed ReadCounter's filters and maps uniquely) to a slot,
+    ////if it has a UMI and a single gene
+    ////hash: position of the read name in [0,1), the read is in the first depth above it
+    /////////////////////
+    public void add(int slot,ReadFields fields,double hash)
+    {
+        if(!hasUMIAndGene(fields))
+        {
+            return;
+        }
+        long key=encodeUMI(fields.data,fields.ubOff,fields.ubLen);
+        if(key<0)
+        {
+            return;
+        }
+        key=key | ((long)(this.geneNumber(fields.data,fields.gxOff,fields.gxLen)+1)<<geneShift);
+        int depth=0;
+        while(hash>=this.depths[depth])
+        {
+            depth=depth+1;
+        }
+        this.addRead(slot,depth,1);
+        this.addKey(slot,(key<<depthBits) | depth);
+    }
+
+    protected void addRead(int slot,int depth,long n)
+    {
+        if(slot>=this.reads[depth].length)
+        {
+            int capacity=Math.max(slot+1,2*this.reads[depth].length);
+            for(int d=0;d<this.depths.length;d++)
+            {
+                this.reads[d]=Arrays.copyOf(this.reads[d],capacity);
+            }
+        }
+        this.reads[depth][slot]=this.reads[depth][slot]+n;
+    }
+
+    //Adds the reads and molecules of a worker's counter to this one (see UMICounter.merge)
+    public void merge(SaturationCounter worker)
+    {
+        int numSlots=Math.min(worker.reads[0].length,worker.owner.numSlots);
+        for(int workerSlot=0;workerSlot<numSlots;workerSlot++)
+        {
+            int slot=this.owner.slotFor(worker.owner.slotCells[workerSlot]);
+            for(int d=0;d<this.depths.length;d++)
+            {
+                this.addRead(slot,d,worker.reads[d][workerSlot]);
+            }
+        }
+        super.merge(worker);
+    }
+
+    ////////////////////
+    ////Counts the molecules of each cell at each depth once all the reads are in, merging
+    ////the runs first if anything was spilled, and turns reads and molecules into running
+    ////totals, so reads[d][slot] and molecules[d][slot] are the counts at depths[d]
+    /////////////////////
+    public void count() throws IOException
+    {
+        int numSlots=this.owner.numSlots;
+        this.molecules=new long[this.depths.length][numSlots];
+        for(int d=0;d<this.depths.length;d++)
+        {
+            this.reads[d]=Arrays.copyOf(this.reads[d],numSlots);
+        }
+        if(this.runs.isEmpty())
+        {
+            for(int slot=0;slot<Math.min(this.sets.length,numSlots);slot++)
+            {
+                if(this.sets[slot]!=null)
+                {
+                    long[] keys=sortedKeys(this.sets[slot],this.setSizes[slot]);
+                    for(int i=0;i<keys.length;i++)
+                    {
+                        if(i==0 || !this.sameKey(keys[i],keys[i-1]))
+                        {
+                            this.countKey(slot,keys[i],0);
+                        }
+                    }
+                    this.sets[slot]=null;
+                }
+            }
+        }else{
+            this.mergeRuns(0);
+        }
+        this.release(true);
+        for(int d=1;d<this.depths.length;d++)
+        {
+            for(int slot=0;slot<numSlots;slot++)
+            {
+                this.reads[d][slot]=this.reads[d][slot]+this.reads[d-1][slot];
+                this.molecules[d][slot]=this.molecules[d][slot]+this.molecules[d-1][slot];
+            }
+        }
+    }
+
+    //Keys of the same molecule at different depths are the same, so only the first (at the smallest depth) is counted
+    protected boolean sameKey(long key,long previous)
+    {
+        return((key>>>depthBits)==(previous>>>depthBits));
+    }
+
+    //Counts a molecule at the depth of its first key
+    protected void countKey(int slot,long key,int col)
+    {
+        int depth=(int)(key & ((1L<<depthBits)-1));
+        this.molecules[depth][slot]=this.molecules[depth][slot]+1;
+    }
+
+    //Gets the file the saturation curves are saved to, the output name with .saturation added (before .gz if it ends in it)
+    public static File saturationFile(File outfile)
+    {
+        return(ReadCounter.suffixedFile(outfile,".saturation"));
+    }
+
+    ////////////////////
+    ////Writes a row for each cell (leaving out those under the owner's minReads, as SaveQC
+    ////does) with the reads, molecules and saturation at each depth, and prints the
+    ////saturation of all the cells together. Saturation is NA for cells with no reads.
+    ////Returns false if the file could not be written.
+    /////////////////////
+    public boolean SaveSaturation()
+    {
+        File file=saturationFile(this.owner.outfile);
+        ReadCounter.print("Saturation curves go in "+file.getPath());
+        long[] cellReads=new long[this.depths.length]; //over every cell in the list but notCell
+        long[] cellMolecules=new long[this.depths.length];
+        try{
+            TableWriter tw=new TableWriter(file,this.owner.compression,this.owner.numThreads);
+            tw.write("CBC");
+            for(double depth:this.depths)
+            {
+                tw.write("\treads_"+String.valueOf(depth)+"\tnUMI_"+String.valueOf(depth)+"\tsaturation_"+String.valueOf(depth));
+            }
+            tw.newLine();
+            for(int i=0;i<this.owner.numCell;i++)
+            {
+                if(this.owner.minReads>0 & i!=this.owner.notCellPos && this.owner.GetValue(i,this.owner.col_tot)<this.owner.minReads)
+                {
+                    continue;
+                }
+                int slot=this.owner.cellSlots[i];
+                tw.write(this.owner.cells.get(i));
+                for(int d=0;d<this.depths.length;d++)
+                {
+                    long numReads=slot<0 ? 0 : this.reads[d][slot];
+                    long numMolecules=slot<0 ? 0 : this.molecules[d][slot];
+                    if(i!=this.owner.notCellPos)
+                    {
+                        cellReads[d]=cellReads[d]+numReads;
+                        cellMolecules[d]=cellMolecules[d]+numMolecules;
+                    }
+                    tw.tab();
+                    tw.writeLong(numReads);
+                    tw.tab();
+                    tw.writeLong(numMolecules);
+                    tw.tab();
+                    tw.write(saturation(numReads,numMolecules));
+                }
+                tw.newLine();
+            }
+            tw.close();
+        }catch(IOException e){
+            ReadCounter.print("Exception writing file!");
+            return(false);
+        }
+        for(int d=0;d<this.depths.length;d++)
+        {
+            ReadCounter.print("Saturation of the cells at "+String.valueOf(this.depths[d])+" of the reads: "+saturation(cellReads[d],cellMolecules[d])+" ("+String.valueOf(cellReads[d])+" reads, "+String.valueOf(cellMolecules[d])+" molecules)");
+        }
+        return(true);
+    }
+
+    //1 - molecules/reads to 4 decimal places, NA if there are no reads
+    protected static String saturation(long numReads,long numMolecules)
+    {
+        if(numReads==0)
+        {
+            return("NA");
+        }
+        return(String.format(Locale.ROOT,"%.4f",1-(double)numMolecules/(double)numReads));
+    }
+
+}
@@ -17,14 +17,13 @@ public class TestCounter
     //
     public void checkInteger(ReadCounter counter)
     {
-        float[][] dat=counter.GetResults();
         String[] colNams=counter.GetColnames();
         int numCols=counter.numCol;
         int numCells=counter.numCell;
         boolean allGood=true;
         
         colLoop: 
-        for(int i=1;i<(numCols-1);i++)
+        for(int i=0;i<(numCols-1);i++)
         {
             String curColumn=colNams[i+1];
             boolean isInt=true;//true if should be integer
@@ -34,23 +33,24 @@ public class TestCounter
 
             for(int j=0;j<numCells;j++)
             {
+                double val=counter.GetValue(j,i);
                 if(isInt)
                 {
-                    if(Math.abs(dat[j][i]-Math.round(dat[j][i])) > .01)
+                    if(Math.abs(val-Math.round(val)) > .01 | val<0)
                     {
                         allGood=false;
-                        print("Results not close to integer");
-                        print(colNams[i]);
-                        print(Float.toString(dat[j][i]));
+                        print("Results not a non-negative integer");
+                        print(curColumn);
+                        print(Double.toString(val));
                         continue colLoop;
                     }
                 }
                 else{
-                    if(dat[j][i]>100 | dat[j][i]<0)
+                    if(val>100 | val<0)
                     {
                         allGood=false;
                         print("Percent not between 0 and 100, test failed");
-                        print(Float.toString(dat[j][i]));
+                        print(Double.toString(val));
                         continue colLoop;
                     }
                 }
@@ -63,6 +63,216 @@ public class TestCounter
 
     }
 
+    //
+    //Checks every barcode in the cell list can be found again, and that packed barcodes unpack to the same string
+    //
+    public void checkBarcodeIndex(ReadCounter counter)
+    {
+        for(int i=0;i<counter.numCell;i++)
+        {
+            String cell=counter.cells.get(i);
+            int pos=counter.Cell2Pos.get(cell);
+            if(pos<0 | !counter.cells.get(pos).equals(cell))
+            {
+                print("Fails barcode lookup test for "+cell);
+                return;
+            }
+            byte[] cellBytes=cell.getBytes();
+            if(counter.Cell2Pos.get(cellBytes,0,cellBytes.length)!=pos)
+            {
+                print("Fails barcode lookup from bytes test for "+cell);
+                return;
+            }
+            long key=BarcodeIndex.encode(cell);
+            if(key>=0 && !BarcodeIndex.decode(key).equals(cell))
+            {
+                print("Fails barcode packing test for "+cell);
+                return;
+            }
+        }
+        String[] notCells={"ACGTN-1","ACGT-01","ACGT-","acgt-1"};
+        for(int i=0;i<notCells.length;i++)
+        {
+            if(BarcodeIndex.encode(notCells[i])>=0)
+            {
+                print("Fails barcode packing test for "+notCells[i]);
+                return;
+            }
+        }
+        print("Passes barcode index test!");
+    }
+
+    //
+    //Checks reading fields straight from the raw bam bytes gives the same as reading them from the SAMRecord, on the first reads in the bam
+    //
+    public void checkRawRecords(ReadCounter counter)
+    {
+        try{
+            BamRecordReader r=new BamRecordReader(counter.bamFile,counter.getHeader(),0);
+            ReadFields raw=new ReadFields();
+            int readNum=0;
+            while(readNum<10000 && r.nextRaw())
+            {
+                readNum=readNum+1;
+                raw.fillRaw(r.rawData,0,r.rawLength);
+                SAMRecord read=r.toSAMRecord();
+                int end=0;
+                if(!read.getReadUnmappedFlag())
+                {
+                    end=read.getAlignmentEnd();
+                }
+                Integer nh=read.getIntegerAttribute("NH");
+                boolean same=raw.flag==read.getFlags() & raw.mapq==read.getMappingQuality() & raw.refIndex==read.getReferenceIndex();
+                same=same & raw.start==read.getAlignmentStart() & raw.end==end & raw.spliced==read.getCigar().containsOperator(CigarOperator.N);
+                same=same & raw.nh==(nh==null ? ReadFields.absent : nh) & raw.getString(raw.nameOff,raw.nameLen).equals(read.getReadName());
+                same=same & Objects.equals(raw.getString(raw.cbOff,raw.cbLen),read.getStringAttribute("CB"));
+                if(!same)
+                {
+                    print("Fails raw record test for "+read.getReadName());
+                    r.close();
+                    return;
+                }
+            }
+            r.close();
+        }catch(IOException e){
+            print("Fails raw record test, issue reading bam");
+            return;
+        }
+        print("Passes raw record test!");
+    }
+
+    //
+    //Checks the count of quality>=30 bases (done 8 bytes at a time) against counting one base at a time
+    //
+    public void checkHighQual()
+    {
+        Random rand=new Random(42);
+        for(int k=0;k<1000;k++)
+        {
+            byte[] qual=new byte[rand.nextInt(40)];
+            int expected=0;
+            for(int i=0;i<qual.length;i++)
+            {
+                qual[i]=(byte)(33+rand.nextInt(42));
+                if(qual[i]-33>=30)
+                {
+                    expected=expected+1;
+                }
+            }
+            if(ReadCounter.CountHighQual(qual,0,qual.length)!=expected)
+            {
+                print("Fails high quality base count test for "+new String(qual));
+                return;
+            }
+        }
+        print("Passes high quality base count test!");
+    }
+
+    //
+    //Checks UTR interval queries against looking at every interval, on random intervals and on the UTRs from the GTF,
+    //and the sweep used for sorted bams against the queries
+    //
+    public void checkIntervalIndex(ReadCounter counter)
+    {
+        Random rand=new Random(42);
+        IntervalIndex index=new IntervalIndex();
+        for(int i=0;i<1000;i++)
+        {
+            int start=rand.nextInt(100000);
+            index.add("test",start,start+1+rand.nextInt(i%10==0 ? 20000 : 500),i);
+        }
+        index.build();
+        if(!checkContig(index.getContig("test"),rand,100000))
+        {
+            print("Fails interval index test");
+            return;
+        }
+
+        //sweep over sorted reads (with a jump back part way, as at the start of a new shard) should find the same as the index
+        IntervalIndex.Contig[] byRef={index.getContig("test")};
+        IntervalSweep sweep=new IntervalSweep(byRef);
+        IntervalIndex.Hits sweepHits=new IntervalIndex.Hits();
+        IntervalIndex.Hits hits=new IntervalIndex.Hits();
+        int start=1;
+        for(int k=0;k<20000;k++)
+        {
+            start=start+rand.nextInt(10);
+            if(k==10000)
+            {
+                start=start/2;
+            }
+            int end=start+rand.nextInt(k%10==0 ? 5000 : 100);
+            sweep.find(0,start,end,sweepHits);
+            HashSet<Integer> expected=new HashSet<Integer>();
+            byRef[0].query(start,start,hits);
+            for(int h=0;h<hits.size;h++)
+            {
+                expected.add(hits.index[h]);
+            }
+            byRef[0].query(end,end,hits);
+            for(int h=0;h<hits.size;h++)
+            {
+                expected.add(hits.index[h]);
+            }
+            HashSet<Integer> found=new HashSet<Integer>();
+            for(int h=0;h<sweepHits.size;h++)
+            {
+                found.add(sweepHits.index[h]);
+            }
+            if(!found.equals(expected) | found.size()!=sweepHits.size)
+            {
+                print("Fails interval sweep test");
+                return;
+            }
+        }
+        if(counter.UTRs!=null)
+        {
+            for(String contig:counter.UTRs.contigs.keySet())
+            {
+                if(!checkContig(counter.UTRs.getContig(contig),rand,1000000))
+                {
+                    print("Fails interval index test on GTF contig "+contig);
+                    return;
+                }
+            }
+        }
+        print("Passes interval index test!");
+    }
+
+    protected boolean checkContig(IntervalIndex.Contig contig,Random rand,int maxPos)
+    {
+        IntervalIndex.Hits hits=new IntervalIndex.Hits();
+        for(int k=0;k<1000;k++)
+        {
+            int p=rand.nextInt(maxPos);
+            if(k%2==0 & contig.size()>0)
+            {
+                int i=rand.nextInt(contig.size());
+                p=contig.getStart(i)+rand.nextInt(Math.max(1,contig.getEnd(i)-contig.getStart(i)+1));
+            }
+            int numHits=contig.query(p,p,hits);
+            int expected=0;
+            int h=0;
+            for(int i=0;i<contig.size();i++)
+            {
+                if(contig.getStart(i)<p & p<contig.getEnd(i))
+                {
+                    expected=expected+1;
+                    if(h>=numHits || hits.index[h]!=i)
+                    {
+                        return(false);
+                    }
+                    h=h+1;
+                }
+            }
+            if(expected!=numHits)
+            {
+                return(false);
+            }
+        }
+        return(true);
+    }
+
     //
     //Check the CIGAR string parsing is correct on a few examples
     //
@@ -101,12 +311,12 @@ public class TestCounter
         SAMFileHeader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(counter.bamFile).getFileHeader();
         SAMRecord testRead=new SAMRecord(sr);
         testRead.setMappingQuality(255);
-        int pos=100;
+        int pos=counter.slotFor(100); //row of the 100th cell
 
         testRead.setAttribute("RE",'E');
-        float val=counter.CellQC[pos][counter.col_exonic];
+        long val=counter.CellQC[counter.col_exonic][pos];
         counter.RegionMappingTo(testRead,pos);
-        float valAfter=counter.CellQC[pos][counter.col_exonic];
+        long valAfter=counter.CellQC[counter.col_exonic][pos];
         if(val==valAfter)
         {
             print("Fails test 1 for read region");
@@ -114,9 +324,9 @@ public class TestCounter
         }
 
         testRead.setAttribute("RE",'N');
-        val=counter.CellQC[pos][counter.col_intronic];
+        val=counter.CellQC[counter.col_intronic][pos];
         counter.RegionMappingTo(testRead,pos);
-        valAfter=counter.CellQC[pos][counter.col_intronic];
+        valAfter=counter.CellQC[counter.col_intronic][pos];
         if(val==valAfter)
         {
             print("Fails test 2 for read region");
@@ -124,9 +334,9 @@ public class TestCounter
         }
 
         testRead.setAttribute("RE",'I');
-        val=counter.CellQC[pos][counter.col_intergenic];
+        val=counter.CellQC[counter.col_intergenic][pos];
         counter.RegionMappingTo(testRead,pos);
-        valAfter=counter.CellQC[pos][counter.col_intergenic];
+        valAfter=counter.CellQC[counter.col_intergenic][pos];
         if(val==valAfter)
         {
             print("Fails test 3 for read region");
@@ -134,9 +344,9 @@ public class TestCounter
         }
 
         testRead.setAttribute("RE",'A');
-        val=counter.CellQC[pos][counter.col_anti];
+        val=counter.CellQC[counter.col_anti][pos];
         counter.RegionMappingTo(testRead,pos);
-        valAfter=counter.CellQC[pos][counter.col_anti];
+        valAfter=counter.CellQC[counter.col_anti][pos];
         if(val==valAfter)
         {
             print("Fails test 4 for read region");
@@ -153,20 +363,20 @@ public class TestCounter
         SAMFileHeader sr = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(counter.bamFile).getFileHeader();
         SAMRecord testRead=new SAMRecord(sr);
         int xf=1;
-        int pos=1;
+        int pos=counter.slotFor(1); //row of the first cell
         int col=1;
         testRead.setAttribute("xf",xf);
-        float val=counter.CellQC[pos][col];
+        long val=counter.CellQC[col][pos];
         int bitUsed=1;
         counter.ProcessXF(testRead,pos,bitUsed,col);
-        if(val+1!=counter.CellQC[pos][col])
+        if(val+1!=counter.CellQC[col][pos])
         {
             print("XF test 1 failed!");
             return;
         }
         bitUsed=2;
         counter.ProcessXF(testRead,pos,bitUsed,col);
-        if(val+1!=counter.CellQC[pos][col])
+        if(val+1!=counter.CellQC[col][pos])
         {
             print("XF test 2 failed!");
             return;
@@ -176,14 +386,14 @@ public class TestCounter
         testRead.setAttribute("xf",xf);
         bitUsed=1;
         counter.ProcessXF(testRead,pos,bitUsed,col);
-        if(val+1!=counter.CellQC[pos][col])
+        if(val+1!=counter.CellQC[col][pos])
         {
             print("XF test 3 failed!");
             return;
         }
         bitUsed=2;
         counter.ProcessXF(testRead,pos,bitUsed,col);
-        if(val+2!=counter.CellQC[pos][col])
+        if(val+2!=counter.CellQC[col][pos])
         {
             print("XF test 4 failed!");
             return;
@@ -193,6 +403,182 @@ public class TestCounter
 
     }
 
+    //
+    //Checks exact UMI counting against a HashSet, with a tiny memory budget so the UMIs are spilled
+    //to disk (and few open runs so they are merged in groups first), and two worker counters
+    //numbering genes differently so merging has to translate them
+    //
+    public void checkUMICounter(ReadCounter counter)
+    {
+        if(UMICounter.encodeUMI("AC".getBytes(),0,2)==UMICounter.encodeUMI("AAC".getBytes(),0,3) | UMICounter.encodeUMI("ANC".getBytes(),0,3)!=-1)
+        {
+            print("Fails UMI packing test");
+            return;
+        }
+        Random rand=new Random(19);
+        String[] genes={"GeneA","GeneB","GeneC"};
+        int numCells=Math.min(50,counter.numCell);
+        ArrayList<HashSet<String>> truth=new ArrayList<HashSet<String>>();
+        for(int cell=0;cell<numCells;cell++)
+        {
+            truth.add(new HashSet<String>());
+        }
+        ReadCounter[] workers={new ReadCounter(counter),new ReadCounter(counter)};
+        UMICounter[] umis=new UMICounter[2];
+        UMICounter.Budget budget=new UMICounter.Budget(4096);
+        for(int w=0;w<2;w++)
+        {
+            umis[w]=new UMICounter(workers[w],true,budget);
+            umis[w].geneNumber(genes[2-w].getBytes(),0,genes[2-w].length()); //so the workers number genes differently
+            umis[w].maxOpenRuns=3;
+        }
+        for(int i=0;i<20000;i++)
+        {
+            int w=rand.nextInt(2);
+            int cell=rand.nextInt(numCells);
+            String gene=genes[rand.nextInt(genes.length)];
+            char[] umi=new char[4];
+            for(int j=0;j<umi.length;j++)
+            {
+                umi[j]="ACGT".charAt(rand.nextInt(4));
+            }
+            truth.get(cell).add(new String(umi)+gene);
+            long key=UMICounter.encodeUMI(new String(umi).getBytes(),0,umi.length);
+            key=key | ((long)(umis[w].geneNumber(gene.getBytes(),0,gene.length())+1)<<UMICounter.geneShift);
+            umis[w].addKey(workers[w].slotFor(cell),key);
+        }
+        umis[0].merge(umis[1]);
+        try{
+            umis[0].count(counter.col_umi);
+        }catch(IOException e){
+            print("Fails exact UMI test, issue reading spilled UMIs");
+            return;
+        }
+        for(int cell=0;cell<numCells;cell++)
+        {
+            if(workers[0].CellQC[counter.col_umi][workers[0].slotFor(cell)]!=truth.get(cell).size())
+            {
+                print("Fails exact UMI test for cell "+String.valueOf(cell));
+                return;
+            }
+        }
+        print("Passes exact UMI test!");
+    }
+
+    //
+    //Checks HyperLogLog sketches are exact for small counts, within 10% for large ones, and that
+    //merging sketches of two halves gives the same estimate as one sketch of everything
+    //
+    public void checkHyperLogLog()
+    {
+        HyperLogLog all=new HyperLogLog();
+        HyperLogLog[] halves={new HyperLogLog(),new HyperLogLog()};
+        for(long i=1;i<=200000;i++)
+        {
+            long hash=HyperLogLog.mix64(i);
+            all.add(hash);
+            all.add(hash); //repeats should not be counted
+            halves[(int)(i%2)].add(hash);
+            if(i==50 && all.estimate()!=50)
+            {
+                print("Fails HyperLogLog test for small counts");
+                return;
+            }
+        }
+        if(Math.abs(all.estimate()-200000)>20000)
+        {
+            print("Fails HyperLogLog test, estimated "+String.valueOf(all.estimate())+" of 200000");
+            return;
+        }
+        HyperLogLog small=new HyperLogLog();
+        small.add(HyperLogLog.mix64(1));
+        halves[0].merge(small); //a small sketch into a large one
+        small.merge(halves[1]); //and a large sketch into a small one
+        halves[0].merge(small);
+        if(halves[0].estimate()!=all.estimate())
+        {
+            print("Fails HyperLogLog merge test");
+            return;
+        }
+        print("Passes HyperLogLog test!");
+    }
+
+    //
+    //Checks saturation counts against a HashMap of the smallest depth each molecule is seen at,
+    //spilling to disk and merging two workers as in checkUMICounter
+    //
+    public void checkSaturation(ReadCounter counter)
+    {
+        Random rand=new Random(23);
+        double[] depths={0.25,0.5,1};
+        String[] genes={"GeneA","GeneB"};
+        int numCells=Math.min(50,counter.numCell);
+        ArrayList<HashMap<String,Integer>> truth=new ArrayList<HashMap<String,Integer>>(); //molecule to smallest depth, for each cell
+        long[][] truthReads=new long[numCells][depths.length];
+        for(int cell=0;cell<numCells;cell++)
+        {
+            truth.add(new HashMap<String,Integer>());
+        }
+        ReadCounter[] workers={new ReadCounter(counter),new ReadCounter(counter)};
+        SaturationCounter[] sats=new SaturationCounter[2];
+        UMICounter.Budget budget=new UMICounter.Budget(4096);
+        for(int w=0;w<2;w++)
+        {
+            sats[w]=new SaturationCounter(workers[w],depths,budget);
+            sats[w].geneNumber(genes[1-w].getBytes(),0,genes[1-w].length()); //so the workers number genes differently
+            sats[w].maxOpenRuns=3;
+        }
+        for(int i=0;i<20000;i++)
+        {
+            int w=rand.nextInt(2);
+            int cell=rand.nextInt(numCells);
+            int depth=rand.nextInt(depths.length);
+            String gene=genes[rand.nextInt(genes.length)];
+            char[] umi=new char[3];
+            for(int j=0;j<umi.length;j++)
+            {
+                umi[j]="ACGT".charAt(rand.nextInt(4));
+            }
+            truth.get(cell).merge(new String(umi)+gene,depth,Math::min);
+            truthReads[cell][depth]=truthReads[cell][depth]+1;
+            long key=UMICounter.encodeUMI(new String(umi).getBytes(),0,umi.length);
+            key=key | ((long)(sats[w].geneNumber(gene.getBytes(),0,gene.length())+1)<<UMICounter.geneShift);
+            int slot=workers[w].slotFor(cell);
+            sats[w].addRead(slot,depth,1);
+            sats[w].addKey(slot,(key<<SaturationCounter.depthBits) | depth);
+        }
+        sats[0].merge(sats[1]);
+        try{
+            sats[0].count();
+        }catch(IOException e){
+            print("Fails saturation test, issue reading spilled UMIs");
+            return;
+        }
+        for(int cell=0;cell<numCells;cell++)
+        {
+            int slot=workers[0].slotFor(cell);
+            long numReads=0;
+            for(int d=0;d<depths.length;d++)
+            {
+                numReads=numReads+truthReads[cell][d];
+                long numMolecules=0;
+                for(int first:truth.get(cell).values())
+                {
+                    if(first<=d)
+                    {
+                        numMolecules=numMolecules+1;
+                    }
+                }
+                if(sats[0].reads[d][slot]!=numReads | sats[0].molecules[d][slot]!=numMolecules)
+                {
+                    print("Fails saturation test for cell "+String.valueOf(cell));
+                    return;
+                }
+            }
+        }
+        print("Passes saturation test!");
+    }
+
     //
     //compares output to metric output from CellRanger. Note do not expect perfect alignment, but most should be close.
     //
@@ -313,9 +699,9 @@ public class TestCounter
         //float total_cells=0; //Total of all reads with a CBC
         for(int j=0;j<numCells;j++)
         {
-            total=total+counter.CellQC[j][(counter.numCol-2)];
+            total=total+(float)counter.GetValue(j,counter.col_tot);
             //if(!counter.cells.get(j).equals("notCell")){
-            //    total_cells=total_cells+counter.CellQC[j][(counter.numCol-2)];
+            //    total_cells=total_cells+counter.CellQC[counter.col_tot][j];
             //}
         }
 
@@ -340,11 +726,11 @@ public class TestCounter
             {
                 if(colsUseMetric[i]=="percent_qual_cbc" | colsUseMetric[i]=="percent_qual_umi")
                 {
-                    float scale_factor=counter.CellQC[j][(counter.numCol-2)];
-                    ret[i]=ret[i]+scale_factor*counter.CellQC[j][(k-1)]/100;
+                    float scale_factor=(float)counter.GetValue(j,counter.col_tot);
+                    ret[i]=ret[i]+scale_factor*(float)counter.GetValue(j,k-1)/100;
                 }
                 else{
-                    ret[i]=ret[i]+counter.CellQC[j][(k-1)];
+                    ret[i]=ret[i]+(float)counter.GetValue(j,k-1);
                 }
                 
             }
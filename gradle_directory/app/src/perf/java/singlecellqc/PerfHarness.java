@@ -0,0 +1,208 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.nio.file.*;
+import java.util.regex.*;
+import org.apache.commons.cli.*;
+
+//////////////////////////////////////////////////////////
+//// End to end performance check. For each bam size it makes synthetic CellRanger outs with
+//// SyntheticData (kept in the work directory and reused by later runs), runs CellLevel_QC on
+//// them in a fresh JVM through PerfRunner, and keeps the fastest of a few repeats. The runs
+//// are written as a JSON report and compared with a stored baseline report: if reads per
+//// second for any size and argument list drop by more than the allowed percent, or the
+//// baseline has no run to compare one with, it exits with an error, so the gradle task
+//// fails. A missing baseline is an error too, unless -u is given to save the report as
+//// the new baseline, and so is a baseline made with another java version or number of
+//// processors, as its reads per second say nothing about this machine.
+//////////////////////////////////////////////////////////
+public class PerfHarness
+{
+    protected static final Pattern runPattern=Pattern.compile("\"reads\": (\\d+), \"args\": \"((?:[^\"\\\\]|\\\\.)*)\".*\"readsPerSec\": ([0-9.]+)");
+
+    public static void main(String[] args) throws Exception
+    {
+        Options options = new Options();
+        Option workDir = new Option("w", "workdir", true, "directory for synthetic data, outputs and the report");
+        workDir.setRequired(true);
+        options.addOption(workDir);
+        options.addOption(new Option("b", "baseline", true, "baseline report to compare with (default perf-baseline.json in the work directory)"));
+        options.addOption(new Option("n", "sizes", true, "comma separated numbers of reads (default 1000000,5000000)"));
+        options.addOption(new Option("m", "maxdrop", true, "largest allowed drop in reads per second from the baseline, in percent (default 10)"));
+        options.addOption(new Option("r", "repeats", true, "runs of each size, the fastest is kept (default 3)"));
+        options.addOption(new Option("a", "qcargs", true, "extra CellLevel_QC arguments, e.g. \"-p 4\""));
+        options.addOption(new Option("x", "heap", true, "max heap of the CellLevel_QC JVM (default 4g)"));
+        options.addOption(new Option("u", "update", false, "save this report as the new baseline"));
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            print(e.getMessage());
+            formatter.printHelp("PerfHarness", options);
+            System.exit(1);
+            return;
+        }
+
+        File dir=new File(cmd.getOptionValue("workdir"));
+        dir.mkdirs();
+        File baselineFile=new File(cmd.getOptionValue("baseline",new File(dir,"perf-baseline.json").getPath()));
+        double maxDrop=Double.parseDouble(cmd.getOptionValue("maxdrop","10"));
+        int repeats=Integer.parseInt(cmd.getOptionValue("repeats","3"));
+        String heap=cmd.getOptionValue("heap","4g");
+        String[] extraArgs=cmd.hasOption("a") ? cmd.getOptionValue("qcargs").trim().split("\\s+") : new String[0];
+
+        ArrayList<String> runs=new ArrayList<String>();
+        for(String size:cmd.getOptionValue("sizes","1000000,5000000").split(","))
+        {
+            long numReads=Long.parseLong(size.trim());
+            File dataDir=makeData(dir,numReads);
+            String best=null;
+            double bestSpeed=-1;
+            for(int i=0;i<repeats;i++)
+            {
+                String run=runQC(dir,dataDir,numReads,extraArgs,heap);
+                print(run);
+                Matcher m=runPattern.matcher(run);
+                if(m.find() && Double.parseDouble(m.group(3))>bestSpeed)
+                {
+                    bestSpeed=Double.parseDouble(m.group(3));
+                    best=run;
+                }
+            }
+            runs.add(best);
+        }
+
+        String report="{\n\"java\": \""+System.getProperty("java.version")+"\",\n\"processors\": "+String.valueOf(Runtime.getRuntime().availableProcessors())
+            +",\n\"runs\": [\n"+String.join(",\n",runs)+"\n]\n}\n";
+        File reportFile=new File(dir,"perf-report.json");
+        Files.write(reportFile.toPath(),report.getBytes("UTF-8"));
+        print("Wrote "+reportFile.getPath());
+
+        if(cmd.hasOption("u"))
+        {
+            Files.write(baselineFile.toPath(),report.getBytes("UTF-8"));
+            print("Saved baseline "+baselineFile.getPath());
+            return;
+        }
+        if(!baselineFile.exists())
+        {
+            print("No baseline at "+baselineFile.getPath()+", run with -u (-PperfUpdateBaseline) to save this report as the baseline");
+            System.exit(1);
+        }
+
+        String baselineReport=new String(Files.readAllBytes(baselineFile.toPath()),"UTF-8");
+        for(String key:new String[]{"java","processors"})
+        {
+            String before=readHeader(baselineReport,key);
+            String now=readHeader(report,key);
+            if(!now.equals(before))
+            {
+                print("Baseline "+baselineFile.getPath()+" was made with "+key+" "+before+", this machine has "+now+", so its reads per second can not be compared. Run with -u (-PperfUpdateBaseline) to save a baseline for this machine");
+                System.exit(1);
+            }
+        }
+        HashMap<String,Double> baseline=readSpeeds(baselineReport);
+        HashMap<String,Double> current=readSpeeds(report);
+        boolean failed=false;
+        for(Map.Entry<String,Double> entry:current.entrySet())
+        {
+            Double before=baseline.get(entry.getKey());
+            if(before==null)
+            {
+                print("No baseline for "+entry.getKey()+", run with -u (-PperfUpdateBaseline) to add it");
+                failed=true;
+                continue;
+            }
+            double change=100*(entry.getValue()-before)/before;
+            print(entry.getKey()+": "+String.format(Locale.ROOT,"%.0f",entry.getValue())+" reads/sec, baseline "+String.format(Locale.ROOT,"%.0f",before)+" ("+String.format(Locale.ROOT,"%+.1f",change)+"%)");
+            if(change<-maxDrop)
+            {
+                failed=true;
+            }
+        }
+        if(failed)
+        {
+            print("Throughput dropped by more than "+String.valueOf(maxDrop)+"% from the baseline, or has no baseline");
+            System.exit(1);
+        }
+    }
+
+    //Makes synthetic outs with numReads reads, unless an earlier run already has
+    protected static File makeData(File dir,long numReads) throws IOException
+    {
+        File dataDir=new File(dir,"reads_"+String.valueOf(numReads));
+        if(new File(dataDir,"metrics_summary.csv").exists()) //written last
+        {
+            return(dataDir);
+        }
+        print("Making synthetic data with "+String.valueOf(numReads)+" reads");
+        SyntheticData data=new SyntheticData(numReads,10000,0.1,0.05,20000,1,"CellRanger");
+        data.write(dataDir,1,false);
+        return(dataDir);
+    }
+
+    //Runs CellLevel_QC on dataDir in a new JVM and returns its JSON line
+    protected static String runQC(File dir,File dataDir,long numReads,String[] extraArgs,String heap) throws IOException,InterruptedException
+    {
+        File jsonFile=new File(dir,"run.json");
+        jsonFile.delete();
+        ArrayList<String> command=new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"),"bin","java").toString());
+        command.add("-Xmx"+heap);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("singlecellqc.PerfRunner");
+        command.add(String.valueOf(numReads));
+        command.add(jsonFile.getPath());
+        command.add(String.join(" ",extraArgs));
+        command.add("-d");
+        command.add(dataDir.getPath());
+        command.add("-g");
+        command.add(new File(dataDir,"genes.gtf").getPath());
+        command.add("-o");
+        command.add(new File(dir,"qc_out.txt").getPath());
+        command.addAll(Arrays.asList(extraArgs));
+
+        ProcessBuilder pb=new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(new File(dir,"qc_log.txt"));
+        int exit=pb.start().waitFor();
+        if(exit!=0 | !jsonFile.exists())
+        {
+            throw new IOException("CellLevel_QC run failed, see "+new File(dir,"qc_log.txt").getPath());
+        }
+        return(new String(Files.readAllBytes(jsonFile.toPath()),"UTF-8").trim());
+    }
+
+    //Value of a field in the header of a report (java or processors), empty if it has none
+    protected static String readHeader(String report,String key)
+    {
+        Matcher m=Pattern.compile("\""+key+"\": \"?([^\",\n]*)").matcher(report);
+        return(m.find() ? m.group(1) : "");
+    }
+
+    //Reads per second of each run in a report, keyed by number of reads and arguments
+    protected static HashMap<String,Double> readSpeeds(String report)
+    {
+        HashMap<String,Double> ret=new HashMap<String,Double>();
+        for(String line:report.split("\n"))
+        {
+            Matcher m=runPattern.matcher(line);
+            if(m.find())
+            {
+                ret.put((m.group(1)+" reads "+m.group(2)).trim(),Double.parseDouble(m.group(3)));
+            }
+        }
+        return(ret);
+    }
+
+    public static void print(String output)
+    {
+        System.out.println(output);
+    }
+
+}
@@ -0,0 +1,148 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import javax.management.*;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+//////////////////////////////////////////////////////////
+//// Runs CellLevel_QC once in this JVM (PerfHarness starts a fresh one for each run) and
+//// writes how it went as one line of JSON: wall time, reads per second, peak RSS, GC time
+//// and how much was allocated. Allocation is totalled from the heap in use before each GC
+//// minus the heap in use after the one before, which counts the work of all threads
+//// including the worker pool.
+////
+//// Arguments: number of reads in the bam, file to write the JSON to, a label for the run
+//// (the arguments that set it apart from other runs on the same bam), then the CellLevel_QC
+//// arguments.
+//////////////////////////////////////////////////////////
+public class PerfRunner
+{
+    protected static long allocated=0; //bytes allocated up to the last GC
+    protected static long lastHeapAfterGC=0; //heap in use after the last GC
+
+    public static void main(String[] args) throws Exception
+    {
+        long numReads=Long.parseLong(args[0]);
+        File jsonFile=new File(args[1]);
+        String label=args[2];
+        String[] qcArgs=Arrays.copyOfRange(args,3,args.length);
+
+        lastHeapAfterGC=ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        HashSet<String> heapPools=new HashSet<String>();
+        for(MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if(pool.getType()==MemoryType.HEAP)
+            {
+                heapPools.add(pool.getName());
+            }
+        }
+        for(GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            ((NotificationEmitter)gc).addNotificationListener((notification,handback)->{
+                if(!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+                {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info=GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+                long before=sumPools(info.getGcInfo().getMemoryUsageBeforeGc(),heapPools);
+                long after=sumPools(info.getGcInfo().getMemoryUsageAfterGc(),heapPools);
+                synchronized(PerfRunner.class)
+                {
+                    allocated=allocated+Math.max(0,before-lastHeapAfterGC);
+                    lastHeapAfterGC=after;
+                }
+            },null,null);
+        }
+        long gcTimeStart=gcTime();
+        long gcCountStart=gcCount();
+
+        Instant inst1=Instant.now();
+        CellLevel_QC.main(qcArgs);
+        Instant inst2=Instant.now();
+
+        double wallSeconds=Duration.between(inst1,inst2).toNanos()/1e9;
+        double gcSeconds=(gcTime()-gcTimeStart)/1000.0;
+        long gcCount=gcCount()-gcCountStart;
+        Thread.sleep(200); //GC notifications are delivered on another thread
+        long totalAllocated;
+        synchronized(PerfRunner.class)
+        {
+            totalAllocated=allocated+Math.max(0,ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()-lastHeapAfterGC);
+        }
+        double allocatedMB=totalAllocated/1048576.0;
+
+        String json="{\"reads\": "+String.valueOf(numReads)
+            +", \"args\": \""+label.replace("\\","\\\\").replace("\"","\\\"")+"\""
+            +", \"wallSeconds\": "+format(wallSeconds)
+            +", \"readsPerSec\": "+format(numReads/wallSeconds)
+            +", \"peakRssMB\": "+format(peakRssMB())
+            +", \"gcSeconds\": "+format(gcSeconds)
+            +", \"gcCount\": "+String.valueOf(gcCount)
+            +", \"allocatedMB\": "+format(allocatedMB)
+            +", \"allocationRateMBPerSec\": "+format(allocatedMB/wallSeconds)
+            +"}";
+        Files.write(jsonFile.toPath(),json.getBytes("UTF-8"));
+    }
+
+    protected static long sumPools(Map<String,MemoryUsage> usage,Set<String> pools)
+    {
+        long sum=0;
+        for(Map.Entry<String,MemoryUsage> entry:usage.entrySet())
+        {
+            if(pools.contains(entry.getKey()))
+            {
+                sum=sum+entry.getValue().getUsed();
+            }
+        }
+        return(sum);
+    }
+
+    protected static long gcTime()
+    {
+        long sum=0;
+        for(GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            sum=sum+Math.max(0,gc.getCollectionTime());
+        }
+        return(sum);
+    }
+
+    protected static long gcCount()
+    {
+        long sum=0;
+        for(GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            sum=sum+Math.max(0,gc.getCollectionCount());
+        }
+        return(sum);
+    }
+
+    //Peak resident set size of this process (VmHWM), -1 where /proc is not available
+    protected static double peakRssMB()
+    {
+        try{
+            for(String line:Files.readAllLines(Paths.get("/proc/self/status")))
+            {
+                if(line.startsWith("VmHWM:"))
+                {
+                    String[] split=line.substring(6).trim().split("\\s+");
+                    return(Long.parseLong(split[0])/1024.0);
+                }
+            }
+        }catch(IOException e){
+        }
+        return(-1);
+    }
+
+    protected static String format(double value)
+    {
+        return(String.format(Locale.ROOT,"%.2f",value));
+    }
+
+}
@@ -0,0 +1,329 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import htsjdk.samtools.*;
+
+//////////////////////////////////////////////////////////
+//// A piece of a coordinate sorted, indexed bam that can be processed on its own
+//// thread. Each shard is either a window of a contig (reads whose alignment start
+//// is in [start,end]) or the unmapped tail of the bam (reads with no coordinate).
+//// Every alignment in the bam belongs to exactly one shard, so summing the results
+//// over all shards gives the same results as reading the bam from start to end.
+//// The parts of the file to read come straight from the bam index as a list of BGZF
+//// chunks, so a shard can be read as raw records with BamRecordReader.
+//////////////////////////////////////////////////////////
+public class BamShard
+{
+    protected static final int minReadsPerShard=1000000; //smallest number of reads worth giving its own shard
+    protected static final int shardsPerThread=4; //aim for this many shards per thread so threads finish at about the same time
+    protected static final int defaultShardLength=50000000; //window size (bp) used if index has no read counts
+    protected static final long readsPerSampleTile=20000; //most reads in each piece of the bam that makeSampleShards picks from
+    protected static final long minReadsPerSampleTile=1000; //fewest reads in a piece, as each piece read costs a seek
+    protected static final long minSampleTiles=200; //pieces are made smaller for small samples so at least this many are picked
+    protected static final int defaultSampleTileLength=1000000; //length (bp) of the pieces if the index has no read counts
+    protected static final long sampleTileBytes=1<<20; //size of the pieces of the reads with no coordinate if the index has no count of them
+
+    protected String contig; //contig name, null for the unmapped tail
+    protected int refIndex; //index of contig in sequence dictionary, -1 for the unmapped tail
+    protected int start; //first alignment start (1-based) in this shard
+    protected int end; //last alignment start (1-based) in this shard
+    protected long numReads; //estimated number of reads in shard, used to schedule big shards first
+    protected long[] chunks; //BGZF virtual offsets of the chunks of the bam to read, as start/end pairs in file order
+
+    public BamShard(String contig,int refIndex,int start,int end,long numReads,long[] chunks)
+    {
+        this.contig=contig;
+        this.refIndex=refIndex;
+        this.start=start;
+        this.end=end;
+        this.numReads=numReads;
+        this.chunks=chunks;
+    }
+
+    //true if this shard is the reads with no coordinate at the end of the bam
+    public boolean isUnmapped()
+    {
+        return(this.contig==null);
+    }
+
+    //Reads in the chunks overlapping a window boundary are also in the chunks for the next window
+    //(and chunks hold reads from other contigs), only count them in the window their alignment starts in
+    public boolean owns(ReadFields fields)
+    {
+        if(this.isUnmapped())
+        {
+            return(fields.refIndex<0);
+        }
+        return(fields.refIndex==this.refIndex & fields.start>=this.start & fields.start<=this.end);
+    }
+
+    //true if a read comes after everything in this shard in a coordinate sorted bam, so there is no need to read further
+    public boolean isPast(ReadFields fields)
+    {
+        if(this.isUnmapped())
+        {
+            return(false);
+        }
+        return(fields.refIndex<0 | fields.refIndex>this.refIndex | (fields.refIndex==this.refIndex & fields.start>this.end));
+    }
+
+    //Splits an indexed bam into shards, large contigs are split into several windows
+    //firstRecord: virtual offset of the first record after the header
+    public static ArrayList<BamShard> makeShards(SamReader sr,int numThreads,long firstRecord)
+    {
+        ArrayList<BamShard> shards=new ArrayList<BamShard>();
+        SAMSequenceDictionary dict=sr.getFileHeader().getSequenceDictionary();
+        BAMIndex index=sr.indexing().getIndex();
+
+        long[] readsPerContig=readsPerContig(index,dict);
+        long totalReads=0;
+        for(int i=0;i<dict.size();i++)
+        {
+            if(readsPerContig[i]>0)
+            {
+                totalReads=totalReads+readsPerContig[i];
+            }
+        }
+
+        long readsPerShard=Math.max(minReadsPerShard,totalReads/(numThreads*shardsPerThread));
+
+        for(int i=0;i<dict.size();i++)
+        {
+            SAMSequenceRecord seq=dict.getSequence(i);
+            int seqLength=seq.getSequenceLength();
+            if(readsPerContig[i]==0)
+            {
+                continue;
+            }
+
+            int numChunks; //number of windows to split contig into
+            if(readsPerContig[i]<0)
+            {
+                numChunks=(int)Math.max(1,(seqLength+(long)defaultShardLength-1)/defaultShardLength);
+            }else{
+                numChunks=(int)Math.max(1,(readsPerContig[i]+readsPerShard-1)/readsPerShard);
+            }
+            long chunkLength=Math.max(1,(seqLength+(long)numChunks-1)/numChunks);
+
+            for(int j=0;j<numChunks;j++)
+            {
+                int chunkStart=(int)(1+j*chunkLength);
+                int chunkEnd=(int)Math.min(seqLength,(j+1)*chunkLength);
+                if(j==numChunks-1)
+                {
+                    chunkEnd=Integer.MAX_VALUE; //make sure nothing past the listed contig length is lost
+                }
+                if(chunkStart>chunkEnd)
+                {
+                    continue;
+                }
+                BAMFileSpan span=index.getSpanOverlapping(i,chunkStart,chunkEnd==Integer.MAX_VALUE ? 0 : chunkEnd); //htsjdk treats 0 as the end of the contig
+                if(span==null || span.isEmpty())
+                {
+                    continue;
+                }
+                shards.add(new BamShard(seq.getSequenceName(),i,chunkStart,chunkEnd,Math.max(0,readsPerContig[i])/numChunks,span.toCoordinateArray()));
+            }
+        }
+
+        //reads with no coordinate, they are at the end of the bam after the last linear bin (as in htsjdk's queryUnmapped)
+        long unmappedStart=index.getStartOfLastLinearBin();
+        if(unmappedStart<0)
+        {
+            unmappedStart=firstRecord;
+        }
+        shards.add(new BamShard(null,-1,0,0,readsPerShard,new long[]{unmappedStart,Long.MAX_VALUE}));
+
+        //biggest shards first so threads finish at roughly the same time
+        Collections.sort(shards,new Comparator<BamShard>(){
+            public int compare(BamShard a,BamShard b)
+            {
+                return(Long.compare(b.numReads,a.numReads));
+            }
+        });
+        return(shards);
+    }
+
+    //Number of reads on each contig from the index metadata, -1 for contigs the index has no count for
+    protected static long[] readsPerContig(BAMIndex index,SAMSequenceDictionary dict)
+    {
+        long[] ret=new long[dict.size()];
+        for(int i=0;i<dict.size();i++)
+        {
+            try{
+                BAMIndexMetaData meta=index.getMetaData(i);
+                ret[i]=(long)meta.getAlignedRecordCount()+(long)meta.getUnalignedRecordCount();
+            }catch(Exception e){
+                ret[i]=-1;
+            }
+        }
+        return(ret);
+    }
+
+    //Number of reads with no coordinate from the index, -1 if the index does not have it
+    protected static long noCoordinateReads(BAMIndex index)
+    {
+        if(index instanceof AbstractBAMFileIndex)
+        {
+            Long count=((AbstractBAMFileIndex)index).getNoCoordinateCount();
+            if(count!=null)
+            {
+                return(count);
+            }
+        }
+        return(-1);
+    }
+
+    //Number of alignments in an indexed bam from the index, -1 if the index does not have every count
+    public static long countReads(SamReader sr)
+    {
+        BAMIndex index=sr.indexing().getIndex();
+        long ret=noCoordinateReads(index);
+        if(ret<0)
+        {
+            return(-1);
+        }
+        for(long reads:readsPerContig(index,sr.getFileHeader().getSequenceDictionary()))
+        {
+            if(reads<0)
+            {
+                return(-1);
+            }
+            ret=ret+reads;
+        }
+        return(ret);
+    }
+
+    ////////////////////
+    ////Picks shards holding about targetReads reads spread over the whole of an indexed bam.
+    ////Every contig, and the reads with no coordinate, is cut into pieces of about
+    ////readsPerSampleTile reads or fewer (going by the read counts in the index) and the same fraction
+    ////of each one's pieces is picked at random, so each part of the bam is sampled in
+    ////proportion to its reads. Reads are then owned by shards as in makeShards.
+    ////splitter: used to cut up the reads with no coordinate, which can only be split by bytes
+    ////targetReads: about how many reads to pick
+    ////firstRecord: virtual offset of the first record after the header
+    ////seed: seed for picking pieces, the same seed picks the same pieces
+    /////////////////////
+    public static ArrayList<BamShard> makeSampleShards(SamReader sr,BamSplitter splitter,long targetReads,long firstRecord,long seed) throws IOException
+    {
+        ArrayList<BamShard> shards=new ArrayList<BamShard>();
+        SAMSequenceDictionary dict=sr.getFileHeader().getSequenceDictionary();
+        BAMIndex index=sr.indexing().getIndex();
+        long[] readsPerContig=readsPerContig(index,dict);
+        long noCoordinate=noCoordinateReads(index);
+        long totalReads=Math.max(0,noCoordinate);
+        for(long reads:readsPerContig)
+        {
+            totalReads=totalReads+Math.max(0,reads);
+        }
+        double fraction=Math.min(1.0,(double)targetReads/(double)Math.max(1,totalReads));
+        long tileReads=Math.max(minReadsPerSampleTile,Math.min(readsPerSampleTile,targetReads/minSampleTiles)); //reads in each piece
+        Random rand=new Random(seed);
+
+        for(int i=0;i<dict.size();i++)
+        {
+            SAMSequenceRecord seq=dict.getSequence(i);
+            int seqLength=seq.getSequenceLength();
+            if(readsPerContig[i]==0)
+            {
+                continue;
+            }
+            int numTiles;
+            if(readsPerContig[i]<0)
+            {
+                numTiles=(int)Math.max(1,(seqLength+(long)defaultSampleTileLength-1)/defaultSampleTileLength);
+            }else{
+                numTiles=(int)Math.max(1,Math.min(seqLength,(readsPerContig[i]+tileReads-1)/tileReads));
+            }
+            long tileLength=Math.max(1,(seqLength+(long)numTiles-1)/numTiles);
+            for(int j:pickTiles(numTiles,fraction,rand))
+            {
+                int tileStart=(int)(1+j*tileLength);
+                int tileEnd=(int)Math.min(seqLength,(j+1)*tileLength);
+                if(j==numTiles-1)
+                {
+                    tileEnd=Integer.MAX_VALUE;
+                }
+                if(tileStart>tileEnd)
+                {
+                    continue;
+                }
+                BAMFileSpan span=index.getSpanOverlapping(i,tileStart,tileEnd==Integer.MAX_VALUE ? 0 : tileEnd);
+                if(span==null || span.isEmpty())
+                {
+                    continue;
+                }
+                shards.add(new BamShard(seq.getSequenceName(),i,tileStart,tileEnd,Math.max(0,readsPerContig[i])/numTiles,span.toCoordinateArray()));
+            }
+        }
+
+        //reads with no coordinate, cut into byte ranges from the last linear bin on
+        long unmappedStart=index.getStartOfLastLinearBin();
+        if(unmappedStart<0)
+        {
+            unmappedStart=firstRecord;
+        }
+        if(noCoordinate!=0)
+        {
+            int numTiles;
+            if(noCoordinate<0)
+            {
+                numTiles=(int)Math.max(1,(splitter.fileLength-(unmappedStart>>>16))/sampleTileBytes);
+            }else{
+                numTiles=(int)Math.max(1,(noCoordinate+tileReads-1)/tileReads);
+            }
+            long[] splits=splitter.getSplits(unmappedStart,numTiles,1);
+            for(int j:pickTiles(splits.length-1,fraction,rand))
+            {
+                shards.add(new BamShard(null,-1,0,0,Math.max(0,noCoordinate)/(splits.length-1),new long[]{splits[j],splits[j+1]}));
+            }
+        }
+
+        Collections.sort(shards,new Comparator<BamShard>(){
+            public int compare(BamShard a,BamShard b)
+            {
+                return(Long.compare(b.numReads,a.numReads));
+            }
+        });
+        return(shards);
+    }
+
+    //Picks fraction of numTiles tiles at random, rounding up or down at random so on average exactly that fraction is picked
+    protected static int[] pickTiles(int numTiles,double fraction,Random rand)
+    {
+        double want=fraction*numTiles;
+        int numPicked=(int)Math.floor(want);
+        if(rand.nextDouble()<want-numPicked)
+        {
+            numPicked=numPicked+1;
+        }
+        numPicked=Math.min(numPicked,numTiles);
+        int[] tiles=new int[numTiles];
+        for(int j=0;j<numTiles;j++)
+        {
+            tiles[j]=j;
+        }
+        for(int j=0;j<numPicked;j++) //the first numPicked of a shuffle
+        {
+            int k=j+rand.nextInt(numTiles-j);
+            int tmp=tiles[j];
+            tiles[j]=tiles[k];
+            tiles[k]=tmp;
+        }
+        int[] ret=Arrays.copyOf(tiles,numPicked);
+        Arrays.sort(ret);
+        return(ret);
+    }
+
+    public String toString()
+    {
+        if(this.isUnmapped())
+        {
+            return("unmapped");
+        }
+        return(this.contig+":"+String.valueOf(this.start)+"-"+String.valueOf(this.end));
+    }
+
+}
@@ -0,0 +1,175 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+//////////////////////////////////////////////////////////
+//// Binary copy of what ProcessGTF takes from a GTF (the UTR interval index and the
+//// gene ids), saved next to the GTF as <gtf>.qcidx the first time the GTF is read so
+//// later runs against the same reference can skip parsing it. The cache is memory
+//// mapped and its arrays are copied straight into the index, already sorted and built.
+//// It records the size and modification time of the GTF it came from (and a format
+//// version), and is ignored and rewritten if either no longer matches.
+////
+//// Layout (little endian): magic, version, GTF size, GTF modified time, number of
+//// genes, then each gene id (length, bytes), number of contigs, then for each contig
+//// its name (length, bytes), number of intervals, root level and the starts, ends,
+//// values and max ends arrays.
+//////////////////////////////////////////////////////////
+public class GtfCache
+{
+    protected static final byte[] magic={'C','L','Q','C','G','T','F',0};
+    protected static final int version=1; //bump when the layout or what is stored changes
+    protected static final String suffix=".qcidx";
+
+    protected IntervalIndex UTRs; //UTR intervals by contig, value is the position of the gene in geneIds
+    protected byte[][] geneIds; //gene_id of each gene with a UTR
+
+    public IntervalIndex getUTRs()
+    {
+        return(this.UTRs);
+    }
+
+    public byte[][] getGeneIds()
+    {
+        return(this.geneIds);
+    }
+
+    public GtfCache(IntervalIndex UTRs,byte[][] geneIds)
+    {
+        this.UTRs=UTRs;
+        this.geneIds=geneIds;
+    }
+
+    //Gets the cache file used for a GTF
+    public static File cacheFile(File gtfFile)
+    {
+        return(new File(gtfFile.getPath()+suffix));
+    }
+
+    //Loads the cache for a GTF, returns null if there is none or it is out of date (or can't be read)
+    public static GtfCache load(File gtfFile)
+    {
+        File cache=cacheFile(gtfFile);
+        if(!cache.exists())
+        {
+            return(null);
+        }
+        try{
+            FileChannel channel=FileChannel.open(cache.toPath(),StandardOpenOption.READ);
+            try{
+                MappedByteBuffer buf=channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                byte[] fileMagic=new byte[magic.length];
+                buf.get(fileMagic);
+                if(!Arrays.equals(fileMagic,magic) || buf.getInt()!=version)
+                {
+                    return(null);
+                }
+                if(buf.getLong()!=gtfFile.length() | buf.getLong()!=gtfFile.lastModified())
+                {
+                    return(null);
+                }
+
+                byte[][] geneIds=new byte[buf.getInt()][];
+                for(int i=0;i<geneIds.length;i++)
+                {
+                    geneIds[i]=new byte[buf.getInt()];
+                    buf.get(geneIds[i]);
+                }
+
+                IntervalIndex UTRs=new IntervalIndex();
+                int numContigs=buf.getInt();
+                for(int c=0;c<numContigs;c++)
+                {
+                    byte[] name=new byte[buf.getInt()];
+                    buf.get(name);
+                    int n=buf.getInt();
+                    int rootLevel=buf.getInt();
+                    int[] starts=getInts(buf,n);
+                    int[] ends=getInts(buf,n);
+                    int[] values=getInts(buf,n);
+                    int[] maxEnds=getInts(buf,n);
+                    UTRs.contigs.put(new String(name,StandardCharsets.UTF_8),new IntervalIndex.Contig(starts,ends,values,maxEnds,rootLevel));
+                }
+                return(new GtfCache(UTRs,geneIds));
+            }finally{
+                channel.close();
+            }
+        }catch(Exception e){
+            ReadCounter.print("Issue reading GTF cache "+cache.getPath()+", will reread GTF");
+            return(null);
+        }
+    }
+
+    //Reads n ints from buf as a block
+    protected static int[] getInts(ByteBuffer buf,int n)
+    {
+        int[] ret=new int[n];
+        IntBuffer ints=buf.asIntBuffer(); //shares buf's byte order
+        ints.get(ret);
+        buf.position(buf.position()+4*n);
+        return(ret);
+    }
+
+    ////////////////////
+    ////Saves the cache for a GTF. Written to a temporary file and moved into place, so runs starting at
+    ////the same time never see half a cache. Failing to write (such as a read only reference directory)
+    ////is not an error, the GTF will just be parsed again next time.
+    /////////////////////
+    public void save(File gtfFile)
+    {
+        File cache=cacheFile(gtfFile);
+        File tmp=null;
+        try{
+            tmp=File.createTempFile(cache.getName(),".tmp",cache.getAbsoluteFile().getParentFile());
+            DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),1<<20));
+            try{
+                out.write(magic);
+                LittleEndian.writeInt(out,version);
+                LittleEndian.writeLong(out,gtfFile.length());
+                LittleEndian.writeLong(out,gtfFile.lastModified());
+
+                LittleEndian.writeInt(out,this.geneIds.length);
+                for(int i=0;i<this.geneIds.length;i++)
+                {
+                    LittleEndian.writeInt(out,this.geneIds[i].length);
+                    out.write(this.geneIds[i]);
+                }
+
+                LittleEndian.writeInt(out,this.UTRs.contigs.size());
+                for(Map.Entry<String, IntervalIndex.Contig> entry:this.UTRs.contigs.entrySet())
+                {
+                    byte[] name=entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    IntervalIndex.Contig contig=entry.getValue();
+                    LittleEndian.writeInt(out,name.length);
+                    out.write(name);
+                    LittleEndian.writeInt(out,contig.size);
+                    LittleEndian.writeInt(out,contig.rootLevel);
+                    LittleEndian.writeInts(out,contig.starts,contig.size);
+                    LittleEndian.writeInts(out,contig.ends,contig.size);
+                    LittleEndian.writeInts(out,contig.values,contig.size);
+                    LittleEndian.writeInts(out,contig.maxEnds,contig.size);
+                }
+            }finally{
+                out.close();
+            }
+            Files.move(tmp.toPath(),cache.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+            ReadCounter.print("Saved GTF cache to "+cache.getPath());
+        }catch(IOException e){
+            ReadCounter.print("Could not save GTF cache to "+cache.getPath()+", GTF will be reread next time");
+            if(tmp!=null)
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+}
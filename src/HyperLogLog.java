@@ -0,0 +1,148 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+
+//////////////////////////////////////////////////////////
+//// Approximate count of distinct values (HyperLogLog), given 64 bit hashes of the values.
+//// While few values have been seen the hashes themselves are kept (in an open-addressing
+//// set, as in UMICounter), so small counts are exact and cost well under a KB; past
+//// maxSparse they are folded into 2^precision one byte registers (2 KB, about 2.3%
+//// standard error). Sketches of the same values can be merged in any order, giving the
+//// same registers as one sketch of everything, so counts from worker threads add up.
+//////////////////////////////////////////////////////////
+public class HyperLogLog
+{
+    protected static final int precision=11; //bits of the hash used to pick a register
+    protected static final int numRegisters=1<<precision;
+    protected static final int maxSparse=96; //most hashes kept before switching to registers, so the set never takes more than 128 longs
+    protected static final long fnvPrime=0x100000001b3L;
+    public static final long hashStart=0xcbf29ce484222325L; //start value for hashBytes
+
+    protected long[] hashes=new long[8]; //hashes seen, 0 for an empty entry, null once using registers
+    protected int size=0; //number of hashes in hashes
+    protected byte[] registers; //largest rank seen for each register, null while keeping hashes
+
+    //Adds a value, given as a 64 bit hash (see hashBytes and mix64)
+    public void add(long hash)
+    {
+        if(hash==0)
+        {
+            hash=1; //0 marks an empty entry
+        }
+        if(this.registers!=null)
+        {
+            this.addRegister(hash);
+            return;
+        }
+        if(UMICounter.insert(this.hashes,hash))
+        {
+            this.size=this.size+1;
+            if(this.size>maxSparse)
+            {
+                this.toRegisters();
+            }else if(4*this.size>3*this.hashes.length){
+                this.hashes=UMICounter.grow(this.hashes);
+            }
+        }
+    }
+
+    //Top bits of the hash pick the register, the rest give the rank (leading zeros plus 1)
+    protected void addRegister(long hash)
+    {
+        int reg=(int)(hash>>>(64-precision));
+        byte rank=(byte)(Long.numberOfLeadingZeros((hash<<precision) | (1L<<(precision-1)))+1);
+        if(rank>this.registers[reg])
+        {
+            this.registers[reg]=rank;
+        }
+    }
+
+    //Switches from keeping hashes to registers
+    protected void toRegisters()
+    {
+        if(this.registers!=null)
+        {
+            return;
+        }
+        this.registers=new byte[numRegisters];
+        for(long hash:this.hashes)
+        {
+            if(hash!=0)
+            {
+                this.addRegister(hash);
+            }
+        }
+        this.hashes=null;
+        this.size=0;
+    }
+
+    //Adds everything in other to this sketch (other can still be used afterwards)
+    public void merge(HyperLogLog other)
+    {
+        if(other.registers==null)
+        {
+            for(long hash:other.hashes)
+            {
+                if(hash!=0)
+                {
+                    this.add(hash);
+                }
+            }
+            return;
+        }
+        this.toRegisters();
+        for(int reg=0;reg<numRegisters;reg++)
+        {
+            if(other.registers[reg]>this.registers[reg])
+            {
+                this.registers[reg]=other.registers[reg];
+            }
+        }
+    }
+
+    //Estimated number of distinct values, exact while hashes are kept
+    public long estimate()
+    {
+        if(this.registers==null)
+        {
+            return(this.size);
+        }
+        double sum=0;
+        int zeros=0;
+        for(int reg=0;reg<numRegisters;reg++)
+        {
+            sum=sum+Math.scalb(1.0,-this.registers[reg]);
+            if(this.registers[reg]==0)
+            {
+                zeros=zeros+1;
+            }
+        }
+        double m=numRegisters;
+        double est=(0.7213/(1+1.079/m))*m*m/sum;
+        if(est<=2.5*m & zeros>0)
+        {
+            est=m*Math.log(m/zeros); //linear counting is more accurate for small counts
+        }
+        return(Math.round(est));
+    }
+
+    //Continues an FNV-1a hash of bytes, start from hashStart and finish with mix64
+    public static long hashBytes(long h,byte[] data,int off,int len)
+    {
+        for(int i=off;i<off+len;i++)
+        {
+            h=(h ^ (data[i] & 0xff))*fnvPrime;
+        }
+        return(h);
+    }
+
+    //Spreads the bits of a hash (the 64 bit finalizer of MurmurHash3), as HyperLogLog needs every bit to be random
+    public static long mix64(long h)
+    {
+        h=(h ^ (h>>>33))*0xff51afd7ed558ccdL;
+        h=(h ^ (h>>>33))*0xc4ceb9fe1a85ec53L;
+        return(h ^ (h>>>33));
+    }
+
+}
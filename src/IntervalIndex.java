@@ -0,0 +1,290 @@
+package singlecellqc;
+import java.util.*;
+import java.lang.*;
+import htsjdk.samtools.*;
+
+//////////////////////////////////////////////////////////
+//// A set of intervals (such as the UTRs from the GTF), each with an int value (such
+//// as a gene number), kept per contig in primitive arrays. The intervals of a contig
+//// are sorted by start and made into an implicit augmented interval tree (as in
+//// cgranges): the sorted array is read as a binary tree whose node at index i has its
+//// children at i-2^(k-1) and i+2^(k-1) (k being the level of i), and each node stores
+//// the largest end in its subtree. That gives O(log n + k) overlap queries with no
+//// extra objects per interval.
+//////////////////////////////////////////////////////////
+public class IntervalIndex
+{
+    protected static final int scanLevel=3; //subtrees this small are just scanned
+
+    //The intervals on one contig
+    public static class Contig
+    {
+        protected int size=0; //number of intervals
+        protected int[] starts=new int[16]; //interval starts, sorted once built
+        protected int[] ends=new int[16]; //interval ends
+        protected int[] values=new int[16]; //value for each interval
+        protected int[] maxEnds; //largest end in the subtree under each node
+        protected int rootLevel=-1; //level of the root of the tree, -1 if empty
+
+        protected Contig()
+        {
+        }
+
+        //A contig that has already been built (as saved by GtfCache)
+        protected Contig(int[] starts,int[] ends,int[] values,int[] maxEnds,int rootLevel)
+        {
+            this.size=starts.length;
+            this.starts=starts;
+            this.ends=ends;
+            this.values=values;
+            this.maxEnds=maxEnds;
+            this.rootLevel=rootLevel;
+        }
+
+        protected void add(int start,int end,int value)
+        {
+            if(this.size==this.starts.length)
+            {
+                this.starts=Arrays.copyOf(this.starts,2*this.size);
+                this.ends=Arrays.copyOf(this.ends,2*this.size);
+                this.values=Arrays.copyOf(this.values,2*this.size);
+            }
+            this.starts[this.size]=start;
+            this.ends[this.size]=end;
+            this.values[this.size]=value;
+            this.size=this.size+1;
+        }
+
+        //Sorts the intervals by start and fills in maxEnds
+        protected void build()
+        {
+            int n=this.size;
+            long[] order=new long[n]; //start in the top bits, original position in the bottom, so sorting a long[] sorts by start
+            for(int i=0;i<n;i++)
+            {
+                order[i]=((long)this.starts[i]<<32) | i;
+            }
+            Arrays.sort(order);
+            int[] newStarts=new int[n];
+            int[] newEnds=new int[n];
+            int[] newValues=new int[n];
+            for(int i=0;i<n;i++)
+            {
+                int old=(int)(order[i] & 0xffffffffL);
+                newStarts[i]=this.starts[old];
+                newEnds[i]=this.ends[old];
+                newValues[i]=this.values[old];
+            }
+            this.starts=newStarts;
+            this.ends=newEnds;
+            this.values=newValues;
+
+            this.maxEnds=new int[n];
+            if(n==0)
+            {
+                this.rootLevel=-1;
+                return;
+            }
+            //leaves are the even positions
+            int lastIndex=0; //rightmost node at the current level, used as the max for children past the end of the array
+            int last=0;
+            for(int i=0;i<n;i=i+2)
+            {
+                lastIndex=i;
+                last=this.ends[i];
+                this.maxEnds[i]=this.ends[i];
+            }
+            int k;
+            for(k=1;(1L<<k)<=n;k++)
+            {
+                int x=1<<(k-1);
+                int step=x<<2;
+                for(long i=(x<<1)-1;i<n;i=i+step)
+                {
+                    int node=(int)i;
+                    int maxEnd=this.ends[node];
+                    maxEnd=Math.max(maxEnd,this.maxEnds[node-x]);
+                    if(node+x<n)
+                    {
+                        maxEnd=Math.max(maxEnd,this.maxEnds[node+x]);
+                    }else{
+                        maxEnd=Math.max(maxEnd,last);
+                    }
+                    this.maxEnds[node]=maxEnd;
+                }
+                if(((lastIndex>>k) & 1)==1)
+                {
+                    lastIndex=lastIndex-x;
+                }else{
+                    lastIndex=lastIndex+x;
+                }
+                if(lastIndex<n && this.maxEnds[lastIndex]>last)
+                {
+                    last=this.maxEnds[lastIndex];
+                }
+            }
+            this.rootLevel=k-1;
+        }
+
+        ////////////////////
+        ////Finds the intervals with start<queryEnd and end>queryStart, so with queryStart==queryEnd==p
+        ////the intervals with p strictly inside them. Positions of the hits (in start order) are put in hits
+        ////Returns the number of hits
+        /////////////////////
+        public int query(int queryStart,int queryEnd,Hits hits)
+        {
+            hits.size=0;
+            if(this.rootLevel<0)
+            {
+                return(0);
+            }
+            int n=this.size;
+            int[] stack=hits.stack; //each entry is node, level and whether its left child is done, packed as node*128+level*2+done (fine below 2^23 intervals)
+            int top=0;
+            stack[top]=(((1<<this.rootLevel)-1)<<7) | (this.rootLevel<<1);
+            top=top+1;
+            while(top>0)
+            {
+                top=top-1;
+                int node=stack[top]>>>7;
+                int level=(stack[top]>>1) & 63;
+                int done=stack[top] & 1;
+                if(level<=scanLevel)
+                {
+                    //small subtree, check every node in it
+                    int i0=(node>>level)<<level;
+                    int i1=Math.min(n,i0+(1<<(level+1))-1);
+                    for(int i=i0;i<i1 && this.starts[i]<queryEnd;i++)
+                    {
+                        if(queryStart<this.ends[i])
+                        {
+                            hits.add(i);
+                        }
+                    }
+                }else if(done==0){
+                    //come back to this node after its left child
+                    int left=node-(1<<(level-1));
+                    stack[top]=(node<<7) | (level<<1) | 1;
+                    top=top+1;
+                    if(left>=n || this.maxEnds[left]>queryStart)
+                    {
+                        stack[top]=(left<<7) | ((level-1)<<1);
+                        top=top+1;
+                    }
+                }else if(node<n && this.starts[node]<queryEnd){
+                    if(queryStart<this.ends[node])
+                    {
+                        hits.add(node);
+                    }
+                    stack[top]=((node+(1<<(level-1)))<<7) | ((level-1)<<1);
+                    top=top+1;
+                }
+            }
+            return(hits.size);
+        }
+
+        public int getStart(int i)
+        {
+            return(this.starts[i]);
+        }
+
+        public int getEnd(int i)
+        {
+            return(this.ends[i]);
+        }
+
+        public int getValue(int i)
+        {
+            return(this.values[i]);
+        }
+
+        public int size()
+        {
+            return(this.size);
+        }
+    }
+
+    //Positions of the intervals found by a query, reused from query to query (one per thread)
+    public static class Hits
+    {
+        public int[] index=new int[16]; //positions of hits in the contig's arrays
+        public int size=0; //number of hits
+        protected int[] stack=new int[128]; //tree nodes still to visit
+
+        protected void add(int i)
+        {
+            if(this.size==this.index.length)
+            {
+                this.index=Arrays.copyOf(this.index,2*this.size);
+            }
+            this.index[this.size]=i;
+            this.size=this.size+1;
+        }
+    }
+
+    protected HashMap<String, Contig> contigs=new HashMap<String, Contig>(); //intervals for each contig name
+
+    //Adds an interval [start,end] on contig, build must be called after the last one is added
+    public void add(String contig,int start,int end,int value)
+    {
+        Contig c=this.contigs.get(contig);
+        if(c==null)
+        {
+            c=new Contig();
+            this.contigs.put(contig,c);
+        }
+        c.add(start,end,value);
+    }
+
+    //Sorts and builds the tree for each contig
+    public void build()
+    {
+        for(Contig c:this.contigs.values())
+        {
+            c.build();
+        }
+    }
+
+    //Gets the intervals on a contig, null if there are none
+    public Contig getContig(String contig)
+    {
+        return(this.contigs.get(contig));
+    }
+
+    ////////////////////
+    ////Lines the contigs up with the references in a bam, so the intervals for a read are found from its reference index
+    ////Contigs are matched by name, or failing that with the chr prefix added or removed (chr1 vs 1)
+    ////Returns an array with the Contig for each reference, null where there are no intervals
+    /////////////////////
+    public Contig[] byReference(SAMSequenceDictionary dict)
+    {
+        Contig[] ret=new Contig[dict.size()];
+        for(int i=0;i<dict.size();i++)
+        {
+            String name=dict.getSequence(i).getSequenceName();
+            Contig c=this.contigs.get(name);
+            if(c==null & name.startsWith("chr"))
+            {
+                c=this.contigs.get(name.substring(3));
+            }
+            if(c==null & !name.startsWith("chr"))
+            {
+                c=this.contigs.get("chr"+name);
+            }
+            ret[i]=c;
+        }
+        return(ret);
+    }
+
+    //Total number of intervals
+    public long size()
+    {
+        long ret=0;
+        for(Contig c:this.contigs.values())
+        {
+            ret=ret+c.size;
+        }
+        return(ret);
+    }
+
+}
@@ -0,0 +1,137 @@
+package singlecellqc;
+import java.util.*;
+import java.lang.*;
+
+//////////////////////////////////////////////////////////
+//// Finds the intervals of an IntervalIndex overlapping reads that come in coordinate
+//// order, by sweeping along each contig instead of searching the index for every read.
+//// A pointer moves forward over the intervals (sorted by start) as the reads move
+//// forward, and the intervals the current position is inside are kept in a small
+//// active list, so each interval is added and dropped once per contig: amortised O(1)
+//// per read. If a read comes before the last one (a new shard, or a bam that is not
+//// sorted after all) the sweep restarts from that read using the index, so results
+//// are always the same as IntervalIndex.Contig.query. One per thread.
+//////////////////////////////////////////////////////////
+public class IntervalSweep
+{
+    protected IntervalIndex.Contig[] contigs; //intervals for each reference in the bam, null where there are none
+    protected int curRef=-1; //reference the sweep is on, -1 if not started
+    protected int curPos=0; //position the sweep is at
+    protected int next=0; //first interval (in start order) with start>=curPos
+    protected int[] active=new int[16]; //intervals with start<curPos<end
+    protected int numActive=0;
+    protected IntervalIndex.Hits seed=new IntervalIndex.Hits(); //used to restart the sweep from the index
+
+    ////////////////////
+    ////contigs: the intervals for each reference in the bam (as from IntervalIndex.byReference)
+    /////////////////////
+    public IntervalSweep(IntervalIndex.Contig[] contigs)
+    {
+        this.contigs=contigs;
+    }
+
+    ////////////////////
+    ////Finds the intervals on reference refIndex that start or end is strictly inside, puts their positions in hits
+    ////start: 1-based alignment start of the read, expected to be no less than the last read's on the same reference
+    ////end: 1-based alignment end of the read
+    ////Returns the number of hits
+    /////////////////////
+    public int find(int refIndex,int start,int end,IntervalIndex.Hits hits)
+    {
+        hits.size=0;
+        IntervalIndex.Contig contig=this.contigs[refIndex];
+        if(contig==null)
+        {
+            return(0);
+        }
+        this.moveTo(contig,refIndex,start);
+
+        //everything active has start inside it
+        for(int i=0;i<this.numActive;i++)
+        {
+            hits.add(this.active[i]);
+        }
+
+        //intervals starting at or after start can only have end inside them
+        for(int i=this.next;i<contig.size && contig.starts[i]<end;i++)
+        {
+            if(end<contig.ends[i])
+            {
+                hits.add(i);
+            }
+        }
+        return(hits.size);
+    }
+
+    //Moves the sweep forward to pos, or restarts it there if pos is on a different reference or behind the sweep
+    protected void moveTo(IntervalIndex.Contig contig,int refIndex,int pos)
+    {
+        if(refIndex!=this.curRef | pos<this.curPos)
+        {
+            this.restart(contig,refIndex,pos);
+            return;
+        }
+        this.curPos=pos;
+
+        //drop intervals that end at or before pos
+        int kept=0;
+        for(int i=0;i<this.numActive;i++)
+        {
+            if(contig.ends[this.active[i]]>pos)
+            {
+                this.active[kept]=this.active[i];
+                kept=kept+1;
+            }
+        }
+        this.numActive=kept;
+
+        //add intervals that start before pos
+        while(this.next<contig.size && contig.starts[this.next]<pos)
+        {
+            if(contig.ends[this.next]>pos)
+            {
+                this.addActive(this.next);
+            }
+            this.next=this.next+1;
+        }
+    }
+
+    //Starts the sweep at pos, getting the intervals pos is inside from the index
+    protected void restart(IntervalIndex.Contig contig,int refIndex,int pos)
+    {
+        this.curRef=refIndex;
+        this.curPos=pos;
+        this.numActive=0;
+        int numHits=contig.query(pos,pos,this.seed);
+        for(int i=0;i<numHits;i++)
+        {
+            this.addActive(this.seed.index[i]);
+        }
+
+        //first interval with start>=pos
+        int low=0;
+        int high=contig.size;
+        while(low<high)
+        {
+            int mid=(low+high)>>>1;
+            if(contig.starts[mid]<pos)
+            {
+                low=mid+1;
+            }else{
+                high=mid;
+            }
+        }
+        this.next=low;
+    }
+
+    protected void addActive(int i)
+    {
+        if(this.numActive==this.active.length)
+        {
+            this.active=Arrays.copyOf(this.active,2*this.numActive);
+        }
+        this.active[this.numActive]=i;
+        this.numActive=this.numActive+1;
+    }
+
+}
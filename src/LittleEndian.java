@@ -0,0 +1,80 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+//////////////////////////////////////////////////////////
+//// Reads and writes ints and longs little endian on a data stream, the byte order of the
+//// binary files this writes itself: the GTF cache (GtfCache), the checkpoint (Checkpoint)
+//// and the UMI runs spilled to disk (UMICounter). Arrays go through a ByteBuffer a chunk
+//// at a time rather than one value at a time.
+//////////////////////////////////////////////////////////
+public class LittleEndian
+{
+    protected static final int chunkLongs=1<<13; //longs converted at a time when reading or writing
+
+    protected static void writeInt(DataOutputStream out,int val) throws IOException
+    {
+        out.writeInt(Integer.reverseBytes(val));
+    }
+
+    protected static void writeLong(DataOutputStream out,long val) throws IOException
+    {
+        out.writeLong(Long.reverseBytes(val));
+    }
+
+    //Writes the first n of vals
+    protected static void writeInts(DataOutputStream out,int[] vals,int n) throws IOException
+    {
+        ByteBuffer buf=ByteBuffer.allocate(4*n).order(ByteOrder.LITTLE_ENDIAN);
+        buf.asIntBuffer().put(vals,0,n);
+        out.write(buf.array());
+    }
+
+    //Writes the first n of vals
+    protected static void writeLongs(DataOutputStream out,long[] vals,int n) throws IOException
+    {
+        ByteBuffer buf=ByteBuffer.allocate(8*chunkLongs).order(ByteOrder.LITTLE_ENDIAN);
+        for(int off=0;off<n;off=off+chunkLongs)
+        {
+            int k=Math.min(chunkLongs,n-off);
+            buf.clear();
+            buf.asLongBuffer().put(vals,off,k);
+            out.write(buf.array(),0,8*k);
+        }
+    }
+
+    protected static int readInt(DataInputStream in) throws IOException
+    {
+        return(Integer.reverseBytes(in.readInt()));
+    }
+
+    protected static long readLong(DataInputStream in) throws IOException
+    {
+        return(Long.reverseBytes(in.readLong()));
+    }
+
+    protected static long[] readLongs(DataInputStream in,int n) throws IOException
+    {
+        long[] ret=new long[n];
+        byte[] bytes=new byte[8*Math.min(n,chunkLongs)];
+        readLongs(in,ret,n,bytes);
+        return(ret);
+    }
+
+    //Reads n longs into the start of vals, through bytes (at least 8 bytes long), which
+    //callers reading many arrays can reuse
+    protected static void readLongs(DataInputStream in,long[] vals,int n,byte[] bytes) throws IOException
+    {
+        int chunk=bytes.length/8;
+        for(int off=0;off<n;off=off+chunk)
+        {
+            int k=Math.min(chunk,n-off);
+            in.readFully(bytes,0,8*k);
+            ByteBuffer.wrap(bytes,0,8*k).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(vals,off,k);
+        }
+    }
+
+}
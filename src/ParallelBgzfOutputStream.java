@@ -0,0 +1,231 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+//////////////////////////////////////////////////////////
+//// Writes a BGZF file (gzip compatible, so can be read with zcat or R's read.table),
+//// deflating blocks in parallel. The counterpart of ParallelBgzfInputStream: bytes
+//// written are cut into blocks of up to 65280 bytes, each block is deflated on its own
+//// on a pool of threads as an independent gzip member, and the blocks are written out
+//// in order with the standard empty block at the end. Block buffers are reused, so
+//// memory use is fixed by the number of blocks in flight.
+//////////////////////////////////////////////////////////
+public class ParallelBgzfOutputStream extends OutputStream
+{
+    protected static final int maxDataSize=65280; //most uncompressed bytes in a block, as htsjdk uses
+    protected static final int headerSize=18; //gzip header with the BC extra field
+    protected static final int footerSize=8; //CRC32 and ISIZE
+    protected static final int blocksPerThread=4; //number of blocks in flight for each deflating thread
+    protected static final byte[] emptyBlock={31,-117,8,4,0,0,0,0,0,-1,6,0,66,67,2,0,27,0,3,0,0,0,0,0,0,0,0,0}; //marks the end of a BGZF file
+
+    //A single BGZF block, before and after deflating
+    protected static class Block
+    {
+        protected byte[] data=new byte[maxDataSize]; //uncompressed bytes
+        protected int dataLength; //number of bytes of data used
+        protected byte[] compressed=new byte[ParallelBgzfInputStream.maxBlockSize]; //block including gzip header and footer
+        protected int compressedLength; //number of bytes of compressed used
+    }
+
+    protected OutputStream out; //where the blocks are written
+    protected ExecutorService deflatePool; //threads used to deflate blocks
+    protected ArrayDeque<Future<Block>> pending=new ArrayDeque<Future<Block>>(); //blocks being deflated, in file order
+    protected ArrayDeque<Block> free=new ArrayDeque<Block>(); //blocks ready to be filled
+    protected int maxPending; //most blocks in flight before waiting for the oldest
+    protected int level; //deflate level
+    protected Block cur; //block being filled
+    protected boolean closed=false;
+
+    ////////////////////
+    ////out: where the compressed blocks are written
+    ////numThreads: number of threads used to deflate blocks
+    ////level: deflate level (0-9)
+    /////////////////////
+    public ParallelBgzfOutputStream(OutputStream out,int numThreads,int level)
+    {
+        this.out=out;
+        this.level=level;
+        numThreads=Math.max(1,numThreads);
+        this.maxPending=numThreads*blocksPerThread;
+        this.deflatePool=Executors.newFixedThreadPool(numThreads,new ThreadFactory(){
+            public Thread newThread(Runnable r)
+            {
+                Thread t=new Thread(r,"bgzf-deflate");
+                t.setDaemon(true);
+                return(t);
+            }
+        });
+        this.cur=new Block();
+    }
+
+    //deflaters are not thread safe, so each deflating thread has its own
+    protected static final ThreadLocal<Deflater[]> deflaters=new ThreadLocal<Deflater[]>(){
+        protected Deflater[] initialValue()
+        {
+            return(new Deflater[10]);
+        }
+    };
+
+    public void write(int b) throws IOException
+    {
+        if(this.cur.dataLength==maxDataSize)
+        {
+            this.submit();
+        }
+        this.cur.data[this.cur.dataLength]=(byte)b;
+        this.cur.dataLength=this.cur.dataLength+1;
+    }
+
+    public void write(byte[] b,int off,int len) throws IOException
+    {
+        while(len>0)
+        {
+            if(this.cur.dataLength==maxDataSize)
+            {
+                this.submit();
+            }
+            int n=Math.min(len,maxDataSize-this.cur.dataLength);
+            System.arraycopy(b,off,this.cur.data,this.cur.dataLength,n);
+            this.cur.dataLength=this.cur.dataLength+n;
+            off=off+n;
+            len=len-n;
+        }
+    }
+
+    //Hands the current block to the pool and starts a new one, writing out finished blocks if too many are in flight
+    protected void submit() throws IOException
+    {
+        final Block block=this.cur;
+        final int blockLevel=this.level;
+        this.pending.add(this.deflatePool.submit(new Callable<Block>(){
+            public Block call()
+            {
+                deflateBlock(block,blockLevel);
+                return(block);
+            }
+        }));
+        while(this.pending.size()>=this.maxPending)
+        {
+            this.writeOldest();
+        }
+        this.cur=this.free.isEmpty() ? new Block() : this.free.poll();
+        this.cur.dataLength=0;
+    }
+
+    //Waits for the oldest block in flight and writes it out
+    protected void writeOldest() throws IOException
+    {
+        Block block;
+        try{
+            block=this.pending.poll().get();
+        }catch(InterruptedException e){
+            throw new InterruptedIOException();
+        }catch(ExecutionException e){
+            throw new IOException("Issue compressing BGZF block",e.getCause());
+        }
+        this.out.write(block.compressed,0,block.compressedLength);
+        this.free.add(block);
+    }
+
+    //Deflates a block into a BGZF block, run on the deflate pool. Data that does not compress is stored instead so the block always fits.
+    protected static void deflateBlock(Block block,int level)
+    {
+        byte[] buf=block.compressed;
+        int room=buf.length-headerSize-footerSize;
+        Deflater[] levels=deflaters.get();
+        int size=deflate(levels,level,block,room);
+        if(size<0)
+        {
+            size=deflate(levels,Deflater.NO_COMPRESSION,block,room);
+        }
+        int blockSize=headerSize+size+footerSize;
+        buf[0]=31; //gzip magic
+        buf[1]=(byte)139;
+        buf[2]=8; //deflate
+        buf[3]=4; //has extra field
+        buf[4]=0; //no modification time
+        buf[5]=0;
+        buf[6]=0;
+        buf[7]=0;
+        buf[8]=0; //extra flags
+        buf[9]=(byte)255; //unknown OS
+        writeUInt16(buf,10,6); //length of extra field
+        buf[12]='B';
+        buf[13]='C';
+        writeUInt16(buf,14,2);
+        writeUInt16(buf,16,blockSize-1);
+        CRC32 crc=new CRC32();
+        crc.update(block.data,0,block.dataLength);
+        writeInt32(buf,headerSize+size,(int)crc.getValue());
+        writeInt32(buf,headerSize+size+4,block.dataLength);
+        block.compressedLength=blockSize;
+    }
+
+    //Deflates block.data after the header, returns the compressed size or -1 if it does not fit in room
+    protected static int deflate(Deflater[] levels,int level,Block block,int room)
+    {
+        if(levels[level]==null)
+        {
+            levels[level]=new Deflater(level,true);
+        }
+        Deflater deflater=levels[level];
+        deflater.reset();
+        deflater.setInput(block.data,0,block.dataLength);
+        deflater.finish();
+        int size=deflater.deflate(block.compressed,headerSize,room);
+        if(!deflater.finished())
+        {
+            return(-1);
+        }
+        return(size);
+    }
+
+    protected static void writeUInt16(byte[] buf,int off,int val)
+    {
+        buf[off]=(byte)val;
+        buf[off+1]=(byte)(val>>>8);
+    }
+
+    protected static void writeInt32(byte[] buf,int off,int val)
+    {
+        buf[off]=(byte)val;
+        buf[off+1]=(byte)(val>>>8);
+        buf[off+2]=(byte)(val>>>16);
+        buf[off+3]=(byte)(val>>>24);
+    }
+
+    //Writes out every block in flight (the file is still not finished until close)
+    public void flush() throws IOException
+    {
+        if(this.cur.dataLength>0)
+        {
+            this.submit();
+        }
+        while(!this.pending.isEmpty())
+        {
+            this.writeOldest();
+        }
+        this.out.flush();
+    }
+
+    public void close() throws IOException
+    {
+        if(this.closed)
+        {
+            return;
+        }
+        this.closed=true;
+        try{
+            this.flush();
+            this.out.write(emptyBlock);
+            this.out.close();
+        }finally{
+            this.deflatePool.shutdownNow();
+        }
+    }
+
+}
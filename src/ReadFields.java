@@ -0,0 +1,360 @@
+package singlecellqc;
+import java.util.*;
+import java.lang.*;
+import java.nio.charset.StandardCharsets;
+import htsjdk.samtools.*;
+
+//////////////////////////////////////////////////////////
+//// The parts of an alignment that the QC uses: flag, mapping quality, position,
+//// what the cigar tells us (alignment end, spliced or not) and the tags. The tags
+//// are pulled out in a single pass over the binary tag block of the record instead
+//// of one getAttribute call (and one linear scan of the tags) per tag. Can be filled
+//// straight from the raw bytes of a bam record (fillRaw), in which case read bases,
+//// base qualities and the cigar are never decoded and nothing is allocated.
+//// String tags are left where they are in the record's bytes and given as an offset
+//// and length into data. Missing tags are marked with sentinels (absent/-1) rather
+//// than exceptions. Meant to be reused from read to read, so each thread (worker
+//// ReadCounter) has its own.
+//////////////////////////////////////////////////////////
+public class ReadFields
+{
+    public static final int absent=Integer.MIN_VALUE; //value of an integer tag that is missing (or not an integer)
+
+    public static final int flagUnmapped=0x4; //bam flag bits used
+    public static final int flagSecondary=0x100;
+    public static final int flagSupplementary=0x800;
+
+    public int flag; //bam flag
+    public int mapq; //mapping quality
+    public int refIndex; //index of reference in sequence dictionary, -1 if no coordinate
+    public int start; //1-based alignment start, 0 if no coordinate
+    public int end; //1-based alignment end, 0 if unmapped (as SAMRecord.getAlignmentEnd)
+    public boolean spliced; //true if the cigar has an N in it
+
+    public byte[] data; //bytes the read name and string tag offsets below point into
+    public int nameOff, nameLen; //read name (without the trailing NUL)
+    public int cbOff, cbLen; //CB: corrected cell barcode, cbLen -1 if missing
+    public int ubOff, ubLen; //UB: corrected UMI
+    public int cyOff, cyLen; //CY: cell barcode quality
+    public int uyOff, uyLen; //UY: UMI quality
+    public int reOff, reLen; //RE as a string (STARSolo after bedtools tagging)
+    public int gxOff, gxLen; //GX: gene ids, ; separated
+    public char reChar; //RE as a character (CellRanger), 0 if missing
+    public boolean hasAN; //true if AN (antisense transcripts) is present
+    public boolean hasTX; //true if TX (sense transcripts) is present
+    public int nh, pa, ts, xf; //NH, pa, ts and xf integer tags, absent if missing
+
+    protected byte[] scratch=new byte[256]; //holds string tags for records that aren't backed by bam bytes
+    protected int scratchLen=0;
+
+    //Clears all fields to missing
+    public void reset()
+    {
+        this.data=null;
+        this.nameLen=-1;
+        this.cbLen=-1;
+        this.ubLen=-1;
+        this.cyLen=-1;
+        this.uyLen=-1;
+        this.reLen=-1;
+        this.gxLen=-1;
+        this.reChar=0;
+        this.hasAN=false;
+        this.hasTX=false;
+        this.nh=absent;
+        this.pa=absent;
+        this.ts=absent;
+        this.xf=absent;
+    }
+
+    //Fills in the fields from a record, scanning the raw tag and cigar bytes if the record was read from a bam
+    public void fill(SAMRecord read)
+    {
+        if(read instanceof BAMRecord)
+        {
+            BAMRecord bamRead=(BAMRecord)read;
+            byte[] raw=bamRead.getVariableBinaryRepresentation(); //null if record was changed since being read
+            if(raw!=null)
+            {
+                //raw is read name, cigar, bases, qualities then tags
+                int tagsLength=bamRead.getAttributesBinarySize();
+                int readLength=bamRead.getReadLength();
+                int numCigar=bamRead.getCigarLength();
+                int cigarOff=raw.length-tagsLength-readLength-(readLength+1)/2-4*numCigar;
+                this.scanTags(raw,raw.length-tagsLength,raw.length);
+                this.setCore(read.getFlags(),read.getMappingQuality(),read.getReferenceIndex(),read.getAlignmentStart());
+                this.scanCigar(raw,cigarOff,numCigar);
+                this.nameOff=0;
+                this.nameLen=cigarOff-1;
+                return;
+            }
+        }
+        this.fillFromAttributes(read);
+        this.setCore(read.getFlags(),read.getMappingQuality(),read.getReferenceIndex(),read.getAlignmentStart());
+        this.spliced=read.getCigar().containsOperator(CigarOperator.N);
+        if((this.flag & flagUnmapped)==0)
+        {
+            this.end=read.getAlignmentEnd();
+        }
+        String name=read.getReadName();
+        if(name!=null)
+        {
+            byte[] nameBytes=name.getBytes(StandardCharsets.US_ASCII);
+            this.nameOff=this.addScratch(nameBytes);
+            this.nameLen=nameBytes.length;
+        }
+    }
+
+    ////////////////////
+    ////Fills in the fields from the raw bytes of a bam record, rec[off..off+len) (everything after block_size)
+    ////Layout: refID, pos, l_read_name, mapq, bin, n_cigar_op, flag, l_seq, next refID, next pos, tlen (32 bytes)
+    ////then read name, cigar, bases, qualities and tags
+    /////////////////////
+    public void fillRaw(byte[] rec,int off,int len)
+    {
+        int nameLength=rec[off+8] & 0xff;
+        int numCigar=(rec[off+12] & 0xff) | ((rec[off+13] & 0xff)<<8);
+        int readLength=readInt32(rec,off+16);
+        int cigarOff=off+32+nameLength;
+        int tagsOff=cigarOff+4*numCigar+(readLength+1)/2+readLength;
+        this.scanTags(rec,tagsOff,off+len);
+        this.setCore((rec[off+14] & 0xff) | ((rec[off+15] & 0xff)<<8),rec[off+9] & 0xff,readInt32(rec,off),readInt32(rec,off+4)+1);
+        this.scanCigar(rec,cigarOff,numCigar);
+        this.nameOff=off+32;
+        this.nameLen=nameLength-1;
+    }
+
+    //Sets the fields not taken from tags or cigar
+    protected void setCore(int flag,int mapq,int refIndex,int start)
+    {
+        this.flag=flag;
+        this.mapq=mapq;
+        this.refIndex=refIndex;
+        this.start=start;
+        this.end=0;
+        this.spliced=false;
+    }
+
+    //Goes through the cigar ops in place, to see if spliced and to find the alignment end
+    protected void scanCigar(byte[] rec,int cigarOff,int numCigar)
+    {
+        int refLength=0; //bases of reference covered (M, D, N, =, X)
+        boolean isSpliced=false;
+        for(int i=0;i<numCigar;i++)
+        {
+            int op=readInt32(rec,cigarOff+4*i);
+            int opType=op & 0xf;
+            if(opType==3)
+            {
+                isSpliced=true;
+            }
+            if(opType==0 | opType==2 | opType==3 | opType==7 | opType==8)
+            {
+                refLength=refLength+(op>>>4);
+            }
+        }
+        this.spliced=isSpliced;
+        if((this.flag & flagUnmapped)==0)
+        {
+            this.end=this.start+refLength-1;
+        }
+    }
+
+    //true if this is a secondary or supplementary alignment
+    public boolean isSecondaryOrSupplementary()
+    {
+        return((this.flag & (flagSecondary | flagSupplementary))!=0);
+    }
+
+    ////////////////////
+    ////Walks the binary tag block data[off..end) once, recording the tags we need
+    ////Format per tag: 2 byte tag, 1 byte type, then the value (see the SAM spec)
+    /////////////////////
+    public void scanTags(byte[] data,int off,int end)
+    {
+        this.reset();
+        this.data=data;
+        while(off+3<=end)
+        {
+            byte t1=data[off];
+            byte t2=data[off+1];
+            byte type=data[off+2];
+            off=off+3;
+            int intVal=absent; //value if an integer tag
+            int valOff=off; //start of value
+            int valLen; //length of string value, -1 if not a string
+            switch(type)
+            {
+                case 'A':
+                case 'c':
+                case 'C':
+                    if(type=='c')
+                    {
+                        intVal=data[off];
+                    }else if(type=='C'){
+                        intVal=data[off] & 0xff;
+                    }
+                    valLen=-1;
+                    off=off+1;
+                    break;
+                case 's':
+                    intVal=(short)((data[off] & 0xff) | ((data[off+1] & 0xff)<<8));
+                    valLen=-1;
+                    off=off+2;
+                    break;
+                case 'S':
+                    intVal=(data[off] & 0xff) | ((data[off+1] & 0xff)<<8);
+                    valLen=-1;
+                    off=off+2;
+                    break;
+                case 'i':
+                case 'I':
+                    intVal=readInt32(data,off);
+                    if(type=='I' & intVal<0)
+                    {
+                        intVal=absent; //too big for an int
+                    }
+                    valLen=-1;
+                    off=off+4;
+                    break;
+                case 'f':
+                    valLen=-1;
+                    off=off+4;
+                    break;
+                case 'Z':
+                case 'H':
+                    int strEnd=off;
+                    while(strEnd<end && data[strEnd]!=0)
+                    {
+                        strEnd=strEnd+1;
+                    }
+                    valLen=strEnd-off;
+                    off=strEnd+1;
+                    if(type=='H')
+                    {
+                        valLen=-1;
+                    }
+                    break;
+                case 'B':
+                    byte subType=data[off];
+                    int count=readInt32(data,off+1);
+                    off=off+5+count*arrayElementSize(subType);
+                    valLen=-1;
+                    break;
+                default:
+                    return; //unknown type, can't find the next tag
+            }
+            this.setTag(t1,t2,type,intVal,valOff,valLen);
+        }
+    }
+
+    //Records the value of a single tag if it is one we use
+    protected void setTag(byte t1,byte t2,byte type,int intVal,int valOff,int valLen)
+    {
+        if(t1=='C' & t2=='B' & type=='Z'){this.cbOff=valOff;this.cbLen=valLen;}
+        else if(t1=='U' & t2=='B' & type=='Z'){this.ubOff=valOff;this.ubLen=valLen;}
+        else if(t1=='C' & t2=='Y' & type=='Z'){this.cyOff=valOff;this.cyLen=valLen;}
+        else if(t1=='U' & t2=='Y' & type=='Z'){this.uyOff=valOff;this.uyLen=valLen;}
+        else if(t1=='G' & t2=='X' & type=='Z'){this.gxOff=valOff;this.gxLen=valLen;}
+        else if(t1=='R' & t2=='E')
+        {
+            if(type=='A')
+            {
+                this.reChar=(char)(this.data[valOff] & 0xff);
+            }else if(type=='Z'){
+                this.reOff=valOff;
+                this.reLen=valLen;
+            }
+        }
+        else if(t1=='A' & t2=='N' & type=='Z'){this.hasAN=true;}
+        else if(t1=='T' & t2=='X' & type=='Z'){this.hasTX=true;}
+        else if(t1=='N' & t2=='H'){this.nh=intVal;}
+        else if(t1=='p' & t2=='a'){this.pa=intVal;}
+        else if(t1=='t' & t2=='s'){this.ts=intVal;}
+        else if(t1=='x' & t2=='f'){this.xf=intVal;}
+    }
+
+    //Slow path for records not read from a bam (or changed since), goes through the decoded attributes once
+    protected void fillFromAttributes(SAMRecord read)
+    {
+        this.reset();
+        this.scratchLen=0;
+        this.data=this.scratch;
+        for(SAMRecord.SAMTagAndValue tv:read.getAttributes())
+        {
+            String tag=tv.tag;
+            Object val=tv.value;
+            byte t1=(byte)tag.charAt(0);
+            byte t2=(byte)tag.charAt(1);
+            if(val instanceof String)
+            {
+                byte[] str=((String)val).getBytes(StandardCharsets.US_ASCII);
+                int valOff=this.addScratch(str);
+                this.setTag(t1,t2,(byte)'Z',absent,valOff,str.length);
+            }else if(val instanceof Character){
+                int valOff=this.addScratch(new byte[]{(byte)((Character)val).charValue()});
+                this.setTag(t1,t2,(byte)'A',absent,valOff,-1);
+            }else if(val instanceof Integer | val instanceof Short | val instanceof Byte){
+                this.setTag(t1,t2,(byte)'i',((Number)val).intValue(),0,-1);
+            }
+        }
+    }
+
+    //Copies bytes into scratch, returns where they start
+    protected int addScratch(byte[] str)
+    {
+        if(this.scratchLen+str.length>this.scratch.length)
+        {
+            this.scratch=Arrays.copyOf(this.scratch,Math.max(2*this.scratch.length,this.scratchLen+str.length));
+            this.data=this.scratch;
+        }
+        System.arraycopy(str,0,this.scratch,this.scratchLen,str.length);
+        int valOff=this.scratchLen;
+        this.scratchLen=this.scratchLen+str.length;
+        return(valOff);
+    }
+
+    //Gets a string tag as a String (allocates, so only for slow paths), null if missing
+    public String getString(int off,int len)
+    {
+        if(len<0)
+        {
+            return(null);
+        }
+        return(new String(this.data,off,len,StandardCharsets.US_ASCII));
+    }
+
+    //true if the string tag at data[off..off+len) contains character c
+    public boolean contains(int off,int len,char c)
+    {
+        for(int i=off;i<off+len;i++)
+        {
+            if(this.data[i]==c)
+            {
+                return(true);
+            }
+        }
+        return(false);
+    }
+
+    protected static int arrayElementSize(byte subType)
+    {
+        switch(subType)
+        {
+            case 'c':
+            case 'C':
+                return(1);
+            case 's':
+            case 'S':
+                return(2);
+            default:
+                return(4);
+        }
+    }
+
+    protected static int readInt32(byte[] buf,int off)
+    {
+        return((buf[off] & 0xff) | ((buf[off+1] & 0xff)<<8) | ((buf[off+2] & 0xff)<<16) | ((buf[off+3] & 0xff)<<24));
+    }
+
+}
@@ -0,0 +1,426 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+//////////////////////////////////////////////////////////
+//// Live performance figures while ReadBam reads the bam: records and compressed bytes
+//// per second, how much of the bam has been read and an ETA (from the BGZF file offsets),
+//// the time spent per record in each stage (decode, tag extraction, region/UTR annotation
+//// and accumulation), and heap and GC use. Every few seconds a thread writes them as a
+//// line of JSON and commits them as a Java Flight Recorder event (ReadProgress, recorded
+//// when the JVM runs with -XX:StartFlightRecording), and the whole pass is a BamPass event.
+////
+//// Each thread reading records has a Probe, which counts records and only looks at the
+//// clock for one record in timedEvery, so the read loop is not slowed down; the time per
+//// record in each stage is the average over the timed records. A Probe without a
+//// ReadMetrics does nothing, so the read loops use one either way.
+//////////////////////////////////////////////////////////
+public class ReadMetrics implements Closeable
+{
+    public static final int decode=0; //reading a record from the bam, including inflating BGZF blocks
+    public static final int tags=1; //pulling the fields and tags out of the record (ReadFields)
+    public static final int annotate=2; //working out exonic/intronic/intergenic, UTR and antisense
+    public static final int accumulate=3; //everything else in ReadCounter.processFields
+    public static final String[] stageNames={"decode","tags","annotate","accumulate"};
+    protected static final int timedEvery=64; //a Probe times one record in this many, must be a power of 2
+
+    protected PrintStream out; //where the JSON lines go, null for JFR events only
+    protected long intervalMillis; //time between lines
+    protected ScheduledExecutorService timer; //writes the lines, null until start
+    protected BamPassEvent pass; //the whole pass, committed by close
+
+    //Published by the Probes of all the threads reading records
+    protected LongAdder records=new LongAdder(); //records read
+    protected LongAdder bytes=new LongAdder(); //compressed bytes of the bam read
+    protected LongAdder timedRecords=new LongAdder(); //records whose stages were timed
+    protected LongAdder[] stageNanos=new LongAdder[stageNames.length]; //time in each stage, over the timed records
+
+    protected long totalBytes=0; //compressed bytes to read, 0 if not known
+    protected long startNanos; //when start was called
+    protected long lastNanos; //when the last line was written
+    protected long lastRecords=0; //records at the last line
+    protected long lastBytes=0; //bytes at the last line
+
+    //Periodic figures, committed as a Java Flight Recorder event
+    @Name("singlecellqc.ReadProgress")
+    @Label("Read Progress")
+    @Category("CellLevel_QC")
+    @Description("Progress through the bam and where the time goes")
+    @StackTrace(false)
+    protected static class ReadProgressEvent extends Event
+    {
+        @Label("Records")
+        protected long records;
+        @Label("Records per Second")
+        protected double recordsPerSecond;
+        @Label("Compressed Bytes per Second")
+        @DataAmount(DataAmount.BYTES)
+        protected long bytesPerSecond;
+        @Label("Done")
+        @Percentage
+        protected double fractionDone;
+        @Label("ETA")
+        @Timespan(Timespan.SECONDS)
+        protected long etaSeconds;
+        @Label("Decode ns per Record")
+        protected double decodeNanos;
+        @Label("Tags ns per Record")
+        protected double tagsNanos;
+        @Label("Annotate ns per Record")
+        protected double annotateNanos;
+        @Label("Accumulate ns per Record")
+        protected double accumulateNanos;
+        @Label("Heap Used")
+        @DataAmount(DataAmount.BYTES)
+        protected long heapUsed;
+        @Label("GC Count")
+        protected long gcCount;
+        @Label("GC Time")
+        @Timespan(Timespan.MILLISECONDS)
+        protected long gcMillis;
+    }
+
+    //The whole pass over the bam, committed as a Java Flight Recorder event
+    @Name("singlecellqc.BamPass")
+    @Label("Bam Pass")
+    @Category("CellLevel_QC")
+    @Description("One pass of ReadBam over the bam")
+    @StackTrace(false)
+    protected static class BamPassEvent extends Event
+    {
+        @Label("Bam")
+        protected String bam;
+        @Label("Threads")
+        protected int threads;
+        @Label("Records")
+        protected long records;
+        @Label("Compressed Bytes")
+        @DataAmount(DataAmount.BYTES)
+        protected long bytes;
+    }
+
+    ////////////////////
+    ////Counts records and bytes, and times stages, for the thread using it. Not thread safe,
+    ////each thread has its own (ReadCounter.probe). Stages are timed as laps: each call to
+    ////lap gives the time since the last one to a stage.
+    /////////////////////
+    public static class Probe
+    {
+        protected ReadMetrics metrics; //where the counts are published, null to do nothing
+        protected boolean timed=false; //true if the current record is being timed
+        protected long lastLap; //clock at the last lap of the current record
+        protected long count=0; //records read since the last publish
+        protected long lastPos=-1; //compressed position in the bam at the last publish, -1 if not set
+        protected long bytes=0; //compressed bytes read since the last publish
+        protected long[] stageNanos=new long[stageNames.length]; //time in each stage since the last publish
+        protected long timedRecords=0; //records timed since the last publish
+
+        public Probe(ReadMetrics metrics)
+        {
+            this.metrics=metrics;
+        }
+
+        ////////////////////
+        ////Reads the next record from r with nextRaw, timing it as decode if it is one of the
+        ////records that are timed. Use in place of r.nextRaw() in the read loop.
+        /////////////////////
+        public boolean next(BamRecordReader r) throws IOException
+        {
+            if(this.metrics==null)
+            {
+                return(r.nextRaw());
+            }
+            if(this.timed)
+            {
+                this.lap(accumulate); //the rest of the last record
+                this.timed=false;
+                this.timedRecords=this.timedRecords+1;
+                this.position(r);
+                this.publish();
+            }
+            this.count=this.count+1;
+            boolean ret;
+            if((this.count & (timedEvery-1))==0)
+            {
+                this.timed=true;
+                this.lastLap=System.nanoTime();
+                ret=r.nextRaw();
+                this.lap(decode);
+            }else{
+                ret=r.nextRaw();
+            }
+            if(!ret)
+            {
+                //no record after all
+                this.count=this.count-1;
+                this.timed=false;
+                Arrays.fill(this.stageNanos,0);
+            }
+            return(ret);
+        }
+
+        //Gives the time since the last lap to stage, if the current record is being timed
+        public void lap(int stage)
+        {
+            if(this.timed)
+            {
+                long now=System.nanoTime();
+                this.stageNanos[stage]=this.stageNanos[stage]+(now-this.lastLap);
+                this.lastLap=now;
+            }
+        }
+
+        //Called after r has been moved (seek, or a new reader for another part of the bam), so the jump is not counted as bytes read
+        public void seek(BamRecordReader r)
+        {
+            this.lastPos=r.getFilePointer()>>>16;
+        }
+
+        //Counts the compressed bytes read since the last position
+        protected void position(BamRecordReader r)
+        {
+            long pos=r.getFilePointer()>>>16;
+            if(this.lastPos>=0 & pos>this.lastPos)
+            {
+                this.bytes=this.bytes+(pos-this.lastPos);
+            }
+            this.lastPos=pos;
+        }
+
+        //Counts the bytes read up to the end of r, call before moving or closing it
+        public void finish(BamRecordReader r)
+        {
+            if(this.metrics!=null)
+            {
+                this.position(r);
+            }
+        }
+
+        //Adds the counts so far to the ReadMetrics, call when the thread is done reading
+        public void publish()
+        {
+            if(this.metrics==null)
+            {
+                return;
+            }
+            if(this.timed)
+            {
+                //the last record was timed but not finished, leave it out of the stage times
+                this.timed=false;
+                Arrays.fill(this.stageNanos,0);
+            }
+            this.metrics.records.add(this.count);
+            this.metrics.bytes.add(this.bytes);
+            this.metrics.timedRecords.add(this.timedRecords);
+            for(int s=0;s<this.stageNanos.length;s++)
+            {
+                this.metrics.stageNanos[s].add(this.stageNanos[s]);
+                this.stageNanos[s]=0;
+            }
+            this.count=0;
+            this.bytes=0;
+            this.timedRecords=0;
+        }
+    }
+
+    ////////////////////
+    ////out: where to write the JSON lines, null for only JFR events
+    ////intervalSeconds: time between lines
+    /////////////////////
+    public ReadMetrics(PrintStream out,double intervalSeconds)
+    {
+        this.out=out;
+        this.intervalMillis=Math.max(1,(long)(intervalSeconds*1000));
+        for(int s=0;s<this.stageNanos.length;s++)
+        {
+            this.stageNanos[s]=new LongAdder();
+        }
+    }
+
+    //Opens the file the JSON lines are written to, - for standard out
+    public static PrintStream openOutput(String path) throws IOException
+    {
+        if(path.equals("-"))
+        {
+            return(System.out);
+        }
+        return(new PrintStream(new FileOutputStream(path),true,"US-ASCII"));
+    }
+
+    ////////////////////
+    ////Starts writing lines every interval, for a pass over a bam
+    ////bamFile: the bam being read
+    ////totalBytes: compressed bytes of it that will be read, 0 if not known
+    ////numThreads: threads reading it
+    /////////////////////
+    public void start(File bamFile,long totalBytes,int numThreads)
+    {
+        this.totalBytes=Math.max(0,totalBytes);
+        this.startNanos=System.nanoTime();
+        this.lastNanos=this.startNanos;
+        this.pass=new BamPassEvent();
+        this.pass.bam=bamFile.getPath();
+        this.pass.threads=numThreads;
+        this.pass.begin();
+        this.timer=Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+            public Thread newThread(Runnable r)
+            {
+                Thread t=new Thread(r,"read-metrics");
+                t.setDaemon(true);
+                return(t);
+            }
+        });
+        this.timer.scheduleAtFixedRate(new Runnable(){
+            public void run()
+            {
+                ReadMetrics.this.emit(false);
+            }
+        },this.intervalMillis,this.intervalMillis,TimeUnit.MILLISECONDS);
+    }
+
+    ////////////////////
+    ////Writes a line (and commits a ReadProgress event) with the figures so far. Rates are
+    ////since the last line, the ETA is from the average rate since the start.
+    ////done: true for the last line, once the pass is over
+    /////////////////////
+    protected synchronized void emit(boolean done)
+    {
+        long now=System.nanoTime();
+        long records=this.records.sum();
+        long bytes=this.bytes.sum();
+        double seconds=Math.max(1e-9,(now-this.lastNanos)/1e9);
+        double elapsed=Math.max(1e-9,(now-this.startNanos)/1e9);
+        double recordsPerSecond=(records-this.lastRecords)/seconds;
+        double bytesPerSecond=(bytes-this.lastBytes)/seconds;
+        double fractionDone=-1;
+        long etaSeconds=-1;
+        if(done)
+        {
+            fractionDone=1;
+            etaSeconds=0;
+        }else if(this.totalBytes>0){
+            fractionDone=Math.min(1,(double)bytes/(double)this.totalBytes);
+            if(bytes>0)
+            {
+                etaSeconds=Math.round((this.totalBytes-Math.min(bytes,this.totalBytes))*elapsed/bytes);
+            }
+        }
+        long timed=this.timedRecords.sum();
+        double[] nanosPerRecord=new double[stageNames.length];
+        for(int s=0;s<stageNames.length;s++)
+        {
+            nanosPerRecord[s]=timed==0 ? 0 : (double)this.stageNanos[s].sum()/(double)timed;
+        }
+        Runtime runtime=Runtime.getRuntime();
+        long heapUsed=runtime.totalMemory()-runtime.freeMemory();
+        long gcCount=0;
+        long gcMillis=0;
+        for(GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            gcCount=gcCount+Math.max(0,gc.getCollectionCount());
+            gcMillis=gcMillis+Math.max(0,gc.getCollectionTime());
+        }
+        this.lastNanos=now;
+        this.lastRecords=records;
+        this.lastBytes=bytes;
+
+        ReadProgressEvent event=new ReadProgressEvent();
+        if(event.isEnabled())
+        {
+            event.records=records;
+            event.recordsPerSecond=recordsPerSecond;
+            event.bytesPerSecond=Math.round(bytesPerSecond);
+            event.fractionDone=fractionDone;
+            event.etaSeconds=etaSeconds;
+            event.decodeNanos=nanosPerRecord[decode];
+            event.tagsNanos=nanosPerRecord[tags];
+            event.annotateNanos=nanosPerRecord[annotate];
+            event.accumulateNanos=nanosPerRecord[accumulate];
+            event.heapUsed=heapUsed;
+            event.gcCount=gcCount;
+            event.gcMillis=gcMillis;
+            event.commit();
+        }
+        if(this.out==null)
+        {
+            return;
+        }
+        StringBuilder sb=new StringBuilder();
+        sb.append("{\"time\":\"").append(Instant.now().toString()).append("\"");
+        sb.append(",\"done\":").append(done);
+        sb.append(",\"elapsed_s\":").append(format(elapsed));
+        sb.append(",\"records\":").append(records);
+        sb.append(",\"records_per_s\":").append(format(recordsPerSecond));
+        sb.append(",\"compressed_bytes\":").append(bytes);
+        sb.append(",\"compressed_bytes_per_s\":").append(format(bytesPerSecond));
+        if(fractionDone>=0)
+        {
+            sb.append(",\"percent_done\":").append(format(100*fractionDone));
+        }
+        if(etaSeconds>=0)
+        {
+            sb.append(",\"eta_s\":").append(etaSeconds);
+        }
+        sb.append(",\"timed_records\":").append(timed);
+        sb.append(",\"stage_ns_per_record\":{");
+        for(int s=0;s<stageNames.length;s++)
+        {
+            sb.append(s>0 ? "," : "").append("\"").append(stageNames[s]).append("\":").append(format(nanosPerRecord[s]));
+        }
+        sb.append("}");
+        sb.append(",\"heap_used_bytes\":").append(heapUsed);
+        sb.append(",\"heap_max_bytes\":").append(runtime.maxMemory());
+        sb.append(",\"gc_count\":").append(gcCount);
+        sb.append(",\"gc_ms\":").append(gcMillis);
+        sb.append("}");
+        this.out.println(sb.toString());
+    }
+
+    //A number for JSON, to 2 decimal places
+    protected static String format(double value)
+    {
+        return(String.format(Locale.ROOT,"%.2f",value));
+    }
+
+    //Stops the timer, writes the last line and closes the output (unless it is standard out), once every Probe has published
+    public void close()
+    {
+        if(this.timer==null)
+        {
+            return;
+        }
+        this.timer.shutdownNow();
+        try{
+            this.timer.awaitTermination(10,TimeUnit.SECONDS);
+        }catch(InterruptedException e){
+        }
+        this.timer=null;
+        this.emit(true);
+        this.pass.records=this.records.sum();
+        this.pass.bytes=this.bytes.sum();
+        this.pass.commit();
+        if(this.out==System.out)
+        {
+            this.out.flush();
+        }else if(this.out!=null){
+            this.out.close();
+        }
+        this.out=null;
+    }
+
+}
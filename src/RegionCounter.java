@@ -0,0 +1,352 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.zip.GZIPInputStream;
+import htsjdk.samtools.*;
+
+//////////////////////////////////////////////////////////
+//// Counts the reads of each cell in a few regions (for example chrM, or the ribosomal
+//// genes from a BED file) without going through the full QC. Only the records
+//// overlapping the regions are read, found with the bam index through SamReader.query,
+//// and the bam's totals and each whole contig region's fraction of them are printed
+//// straight away from the read counts in the index. A total for each cell is only
+//// written if asked for, as it takes a pass over the whole bam by the ReadCounter that
+//// only looks up the cell barcode (see ReadCounter.setTotalsOnly), which is much slower
+//// than the region queries on large bams. Reads are chosen as for the total column
+//// (primary alignments unless multimappers are used), and a region only counts reads
+//// that are mapped.
+//////////////////////////////////////////////////////////
+public class RegionCounter
+{
+    protected ReadCounter counter; //gives the cells, settings, and the total for each cell
+    protected ArrayList<Region> regions; //one column of the output each
+    protected long[][] counts; //reads in each region, indexed as counts[region][slot] with the slots of counter
+    protected boolean withTotals; //true if the counter has read the whole bam for the total of each cell, which is then written
+    protected long indexRecords=0; //records in the bam by its index, mapped and unmapped
+
+    //A column of the output, one or more intervals of the bam with a name
+    protected static class Region
+    {
+        protected String name;
+        protected ArrayList<QueryInterval> intervals=new ArrayList<QueryInterval>();
+        protected boolean wholeContigs=true; //true if every interval is a whole contig, so the index has its read count
+
+        protected Region(String name)
+        {
+            this.name=name;
+        }
+    }
+
+    ////////////////////
+    ////Reads the regions and prints their fractions of the bam from the bam index
+    ////counter: the ReadCounter with the cells and settings to use
+    ////spec: a BED file (regions with the same name, the 4th column, are counted together),
+    ////or a comma separated list of contigs (chrM) and intervals (chr1:1000-2000)
+    ////withTotals: true to write the total of each cell, which the counter's ReadBam (with
+    ////totals only) must have counted, false to only read the regions
+    /////////////////////
+    public RegionCounter(ReadCounter counter,String spec,boolean withTotals) throws IOException
+    {
+        this.counter=counter;
+        this.withTotals=withTotals;
+        SamReader sr=SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(counter.bamFile);
+        try{
+            if(!sr.hasIndex())
+            {
+                throw new IllegalArgumentException("Region counts need a bam index (.bai) next to the bam");
+            }
+            SAMSequenceDictionary dict=sr.getFileHeader().getSequenceDictionary();
+            if(new File(spec).isFile())
+            {
+                this.regions=parseBed(new File(spec),dict);
+            }else{
+                this.regions=parseList(spec,dict);
+            }
+            this.printIndexFractions(sr);
+        }finally{
+            sr.close();
+        }
+    }
+
+    //Regions from a list like chrM,chr1:1000-2000 (1-based, inclusive), each its own column
+    protected static ArrayList<Region> parseList(String spec,SAMSequenceDictionary dict)
+    {
+        ArrayList<Region> ret=new ArrayList<Region>();
+        for(String item:spec.split(","))
+        {
+            item=item.trim();
+            if(item.isEmpty())
+            {
+                continue;
+            }
+            Region region=new Region(item);
+            int colon=item.lastIndexOf(':');
+            if(colon>0 & dict.getSequence(item)==null)
+            {
+                String[] range=item.substring(colon+1).replace(",","").split("-");
+                int start,end;
+                try{
+                    start=Integer.parseInt(range[0]);
+                    end=Integer.parseInt(range[range.length-1]);
+                }catch(NumberFormatException e){
+                    throw new IllegalArgumentException("Can not read region "+item);
+                }
+                region.intervals.add(new QueryInterval(refIndex(item.substring(0,colon),dict),start,end));
+                region.wholeContigs=false;
+            }else{
+                region.intervals.add(new QueryInterval(refIndex(item,dict),1,-1));
+            }
+            ret.add(region);
+        }
+        if(ret.isEmpty())
+        {
+            throw new IllegalArgumentException("No regions given");
+        }
+        return(ret);
+    }
+
+    //Regions from a BED file (can be gzipped), grouped by name (or one per line if there are no names)
+    protected static ArrayList<Region> parseBed(File bed,SAMSequenceDictionary dict) throws IOException
+    {
+        LinkedHashMap<String,Region> byName=new LinkedHashMap<String,Region>();
+        InputStream in=new FileInputStream(bed);
+        if(bed.getName().endsWith(".gz"))
+        {
+            in=new GZIPInputStream(in);
+        }
+        BufferedReader br=new BufferedReader(new InputStreamReader(in));
+        try{
+            String line;
+            while((line=br.readLine())!=null)
+            {
+                if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
+                {
+                    continue;
+                }
+                String[] split=line.split("\t");
+                if(split.length<3)
+                {
+                    throw new IllegalArgumentException("BED line has fewer than 3 columns: "+line);
+                }
+                int start=Integer.parseInt(split[1])+1; //BED is 0-based, end exclusive
+                int end=Integer.parseInt(split[2]);
+                String name=split.length>3 ? split[3] : split[0]+":"+String.valueOf(start)+"-"+split[2];
+                Region region=byName.get(name);
+                if(region==null)
+                {
+                    region=new Region(name);
+                    region.wholeContigs=false;
+                    byName.put(name,region);
+                }
+                region.intervals.add(new QueryInterval(refIndex(split[0],dict),start,end));
+            }
+        }finally{
+            br.close();
+        }
+        if(byName.isEmpty())
+        {
+            throw new IllegalArgumentException("No regions in "+bed.getPath());
+        }
+        return(new ArrayList<Region>(byName.values()));
+    }
+
+    protected static int refIndex(String contig,SAMSequenceDictionary dict)
+    {
+        int ref=dict.getSequenceIndex(contig);
+        if(ref<0)
+        {
+            throw new IllegalArgumentException("Contig "+contig+" is not in the bam");
+        }
+        return(ref);
+    }
+
+    ////////////////////
+    ////Prints the records in the bam and the fraction of them in each region made of whole
+    ////contigs, from the read counts in the bam index. These count every record, not just
+    ////the reads the per cell counts use, but take no time at all. If the index is missing
+    ////the count for any contig nothing is printed.
+    /////////////////////
+    public void printIndexFractions(SamReader sr)
+    {
+        BAMIndex index=sr.indexing().getIndex();
+        long[] perRef=BamShard.readsPerContig(index,sr.getFileHeader().getSequenceDictionary());
+        long total=0;
+        for(long reads:perRef)
+        {
+            if(reads<0)
+            {
+                total=0; //a count missing from the index would make the fractions wrong
+                break;
+            }
+            total=total+reads;
+        }
+        if(total==0)
+        {
+            ReadCounter.print("Bam index has no read counts");
+            return;
+        }
+        long unplaced=BamShard.noCoordinateReads(index); //unmapped reads with no position, at the end of the bam, -1 if not in the index
+        this.indexRecords=total+Math.max(0,unplaced);
+        ReadCounter.print("From the bam index, the bam has "+String.valueOf(total)+" placed records"+(unplaced>=0 ? " and "+String.valueOf(unplaced)+" unplaced unmapped reads" : ""));
+        for(Region region:this.regions)
+        {
+            if(!region.wholeContigs)
+            {
+                continue;
+            }
+            long inRegion=0;
+            for(QueryInterval interval:region.intervals)
+            {
+                inRegion=inRegion+perRef[interval.referenceIndex];
+            }
+            ReadCounter.print("From the bam index, "+region.name+" has "+String.valueOf(inRegion)+" of "+String.valueOf(total)+" placed alignments ("+String.format("%.2f",100.0*inRegion/total)+"%)");
+        }
+    }
+
+    //Counts the reads of each cell in each region, reading only the records that overlap it.
+    //Run after the counter's ReadBam (with totals) or allocateQC, as the counts use its slots.
+    public void CountRegions()
+    {
+        Instant inst1=Instant.now();
+        SamReader sr=SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(this.counter.bamFile);
+        try{
+            this.counts=new long[this.regions.size()][Math.max(1,this.counter.numSlots)];
+            ReadFields fields=new ReadFields();
+            for(int r=0;r<this.regions.size();r++)
+            {
+                QueryInterval[] intervals=this.regions.get(r).intervals.toArray(new QueryInterval[0]);
+                Arrays.sort(intervals);
+                //overlapping intervals are merged so a read is only counted once per region
+                SAMRecordIterator it=sr.query(QueryInterval.optimizeIntervals(intervals),false);
+                while(it.hasNext())
+                {
+                    SAMRecord read=it.next();
+                    fields.fill(read);
+                    if((fields.flag & ReadFields.flagUnmapped)!=0 | (fields.isSecondaryOrSupplementary() & !this.counter.useMulti))
+                    {
+                        continue;
+                    }
+                    int slot=this.counter.slotFor(this.counter.cellFor(fields));
+                    if(slot>=this.counts[r].length)
+                    {
+                        this.counts[r]=Arrays.copyOf(this.counts[r],Math.max(slot+1,2*this.counts[r].length));
+                    }
+                    this.counts[r][slot]=this.counts[r][slot]+1;
+                }
+                it.close();
+                long inRegion=0;
+                for(long n:this.counts[r])
+                {
+                    inRegion=inRegion+n;
+                }
+                ReadCounter.print(this.regions.get(r).name+" has "+String.valueOf(inRegion)+" reads"+(this.indexRecords>0 ? " ("+String.format("%.2f",100.0*inRegion/this.indexRecords)+"% of the records in the bam index)" : ""));
+            }
+        }finally{
+            try{
+                sr.close();
+            }catch(IOException e){
+            }
+        }
+        ReadCounter.print("Run time for counting regions: "+Duration.between(inst1,Instant.now()).toString());
+    }
+
+    ////////////////////
+    ////Writes a row for each cell with the reads in each region, and the total if counted,
+    ////to the counter's output. Cells under the counter's minReads (by the total, or by the
+    ////reads in all the regions if there is no total) are left out, and their number and
+    ////sums go in the same .suppressed.tsv as SaveQC writes.
+    /////////////////////
+    public void SaveRegions()
+    {
+        ReadCounter.print("Save file");
+        int numRegions=this.regions.size();
+        long numSuppressed=0; //number of cells not written as they have fewer than minReads reads
+        long[] suppressed=new long[numRegions+1]; //sums of the regions and total of the cells not written
+        try{
+            TableWriter tw=new TableWriter(this.counter.outfile,this.counter.compression,this.counter.numThreads);
+            tw.write("CBC");
+            for(Region region:this.regions)
+            {
+                tw.tab();
+                tw.write(region.name);
+            }
+            if(this.withTotals)
+            {
+                tw.tab();
+                tw.write("total");
+            }
+            tw.newLine();
+            long[] row=new long[numRegions];
+            for(int i=0;i<this.counter.numCell;i++)
+            {
+                int slot=this.counter.cellSlots[i];
+                long inRegions=0;
+                for(int r=0;r<numRegions;r++)
+                {
+                    row[r]=slot>=0 && slot<this.counts[r].length ? this.counts[r][slot] : 0;
+                    inRegions=inRegions+row[r];
+                }
+                long total=this.withTotals ? Math.round(this.counter.GetValue(i,this.counter.col_tot)) : inRegions;
+                if(this.counter.minReads>0 & i!=this.counter.notCellPos && total<this.counter.minReads)
+                {
+                    numSuppressed=numSuppressed+1;
+                    for(int r=0;r<numRegions;r++)
+                    {
+                        suppressed[r]=suppressed[r]+row[r];
+                    }
+                    suppressed[numRegions]=suppressed[numRegions]+total;
+                    continue;
+                }
+                tw.write(this.counter.cells.get(i));
+                for(int r=0;r<numRegions;r++)
+                {
+                    tw.tab();
+                    tw.writeLong(row[r]);
+                }
+                if(this.withTotals)
+                {
+                    tw.tab();
+                    tw.writeLong(total);
+                }
+                tw.newLine();
+            }
+            tw.close();
+
+            if(this.counter.minReads>0)
+            {
+                this.SaveSuppressed(numSuppressed,suppressed);
+            }
+        }catch(IOException e){
+            ReadCounter.print("Exception writing file!");
+        }
+    }
+
+    //Writes the number of cells SaveRegions left out and the sums of their regions (and total), in the output's columns
+    protected void SaveSuppressed(long numSuppressed,long[] suppressed) throws IOException
+    {
+        File file=ReadCounter.suppressedFile(this.counter.outfile);
+        BufferedWriter bw=new BufferedWriter(new FileWriter(file));
+        bw.write("numCells");
+        for(Region region:this.regions)
+        {
+            bw.write("\t"+region.name);
+        }
+        if(this.withTotals)
+        {
+            bw.write("\ttotal");
+        }
+        bw.newLine();
+        bw.write(String.valueOf(numSuppressed));
+        for(int r=0;r<suppressed.length-(this.withTotals ? 0 : 1);r++)
+        {
+            bw.write("\t"+String.valueOf(suppressed[r]));
+        }
+        bw.newLine();
+        bw.close();
+        ReadCounter.print("Left out "+String.valueOf(numSuppressed)+" cells with fewer than "+String.valueOf(this.counter.minReads)+" reads, their totals are in "+file.getPath());
+    }
+
+}
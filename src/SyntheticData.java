@@ -0,0 +1,668 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import htsjdk.samtools.*;
+import org.apache.commons.cli.*;
+
+//////////////////////////////////////////////////////////
+//// Makes a synthetic CellRanger style output directory for testing at scale without
+//// private data: a coordinate sorted, indexed possorted_genome_bam.bam with the tags
+//// ReadCounter looks at (CB/CR/CY, UB/UR/UY, NH, xf, RE, TX/AN, GX, pa, ts), a matching
+//// raw_feature_bc_matrix/barcodes.tsv.gz, genes.gtf, and a metrics_summary.csv with the
+//// true values for the columns the sanity check (-s) compares against.
+////
+//// Reads are made in coordinate order as they are written (positions are spread along
+//// each contig with random gaps) so memory use does not grow with the number of reads,
+//// and everything comes from one seeded random number generator so the same settings
+//// always give the same bam. Genes are evenly spaced along the human contigs, each with
+//// an exon and UTR at both ends and an intron in the middle, and reads are labelled
+//// exonic/intronic/intergenic by where they start. Confidently mapped reads come from
+//// molecules made per gene: those xf marks as duplicates repeat the barcode and UMI of an
+//// earlier molecule of the same gene, so counting UMIs agrees with xf. A multimapped read
+//// has NH records sharing its name, one primary and the rest secondary.
+//////////////////////////////////////////////////////////
+public class SyntheticData
+{
+    protected static final String[] contigNames={"chr1","chr2","chr3","chr4","chr5","chr6","chr7","chr8","chr9","chr10","chr11","chr12",
+        "chr13","chr14","chr15","chr16","chr17","chr18","chr19","chr20","chr21","chr22","chrX","chrY","chrM"};
+    protected static final int[] contigLengths={248956422,242193529,198295559,190214555,181538259,170805979,159345973,145138636,
+        138394717,133797422,135086622,133275309,114364328,107043718,101991189,90338345,83257441,80373285,58617616,64444167,
+        46709983,50818468,156040895,57227415,16569};
+    protected static final byte[] bases={'A','C','G','T'};
+    protected static final int readLength=91; //10x 3' v3 read 2
+    protected static final double geneFraction=0.9; //fraction of each contig covered by genes
+    protected static final double exonFraction=0.35; //fraction of each gene in the exon at each end, so about 60% of reads are exonic
+    protected static final int utr5Length=100; //5' UTR at the start of each gene, the 3' UTR is the last half of the last exon
+    protected static final double cellFraction=0.9; //fraction of reads with a barcode from the cell list
+    protected static final double noBarcodeFraction=0.03; //fraction of reads with no corrected barcode (no CB tag)
+    protected static final double antisenseFraction=0.03; //fraction of genic reads that are antisense
+    protected static final double multiGeneFraction=0.03; //fraction of genic reads with 2 genes in GX
+    protected static final double polyAFraction=0.1; //fraction of reads with a pa tag
+    protected static final double tsoFraction=0.03; //fraction of reads with a ts tag
+    protected static final double splicedFraction=0.2; //fraction of mapped reads with an N in the cigar
+    protected static final double duplicateFraction=0.3; //fraction of confidently mapped reads not counted as a UMI
+
+    //Settings
+    protected long numReads; //number of bam records (including secondary alignments)
+    protected int numCells; //number of cell barcodes
+    protected double multiRate; //fraction of mapped records that are multimapped
+    protected double multiReadRate; //fraction of mapped reads that are multimapped, each making 3 records on average
+    protected double unmappedRate; //fraction of records that are unmapped
+    protected int numGenes; //number of genes in the gtf
+    protected String quantUsed; //CellRanger or STARSolo, which form the RE tag takes
+
+    protected SplittableRandom rand;
+    protected SAMFileHeader header;
+    protected String[] barcodes; //cell barcodes
+    protected String[] geneIds; //gene_id of each gene
+    protected int[] firstGene; //first gene on each contig, with one more entry for the end
+    protected long[] geneSpacing; //distance between gene starts on each contig
+    protected int[] geneLength; //length of each gene on each contig
+    protected int[] exonLength; //length of the exons at each end of the genes on each contig
+
+    //State of the read being made
+    protected long readNum=0; //number of records made so far, counting secondary alignments still held back
+    protected int curContig=0; //contig reads are being made on, contigNames.length once onto the unmapped reads
+    protected long readsLeftOnContig; //mapped records still to make on curContig
+    protected double curPos; //alignment start of the last read
+    protected long[] readsPerContig; //number of mapped records on each contig
+    protected char readType; //E, N or I as in CellRanger's RE tag, for the last record placed
+    protected boolean antisense; //the last record placed is antisense to its gene
+    protected int readGene; //gene the last record placed starts in, -1 if none
+    protected boolean multiGene; //the last record placed has 2 genes in GX
+    protected SAMRecord upcoming; //next primary record, made but not yet returned
+    protected SAMRecordCoordinateComparator order=new SAMRecordCoordinateComparator();
+    protected PriorityQueue<SAMRecord> secondaries=new PriorityQueue<SAMRecord>(16,this.order); //secondary alignments held back until their place in the bam
+    protected int poolGene=-1; //gene the molecules in pool are from
+    protected ArrayList<Molecule> pool=new ArrayList<Molecule>(); //molecules made so far in poolGene, for duplicate reads to repeat
+
+    //True values for metrics_summary.csv, over primary records as ReadCounter counts them
+    protected long numPrimary=0, numExonic=0, numIntronic=0, numIntergenic=0, numAntisense=0;
+    protected long numBarcodeBases=0, numBarcodeQ30=0, numUMIBases=0, numUMIQ30=0;
+
+    ////////////////////
+    ////numReads: number of bam records to make
+    ////numCells: number of cell barcodes
+    ////multiRate: fraction of mapped records that map to more than one place
+    ////unmappedRate: fraction of records that are unmapped
+    ////numGenes: number of genes in the gtf
+    ////seed: seed for the random number generator
+    ////quantUsed: CellRanger or STARSolo (STARSolo RE tags are strings, as after bedtools tagging)
+    /////////////////////
+    public SyntheticData(long numReads,int numCells,double multiRate,double unmappedRate,int numGenes,long seed,String quantUsed)
+    {
+        this.numReads=numReads;
+        this.numCells=numCells;
+        this.multiRate=multiRate;
+        this.multiReadRate=multiRate/(3-2*multiRate);
+        this.unmappedRate=unmappedRate;
+        this.numGenes=Math.max(numGenes,contigNames.length);
+        this.quantUsed=quantUsed;
+        this.rand=new SplittableRandom(seed);
+
+        this.header=new SAMFileHeader();
+        long genomeLength=0;
+        for(int i=0;i<contigNames.length;i++)
+        {
+            this.header.addSequence(new SAMSequenceRecord(contigNames[i],contigLengths[i]));
+            genomeLength=genomeLength+contigLengths[i];
+        }
+        this.header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        SAMProgramRecord program=new SAMProgramRecord("SyntheticData");
+        program.setCommandLine("seed="+String.valueOf(seed));
+        this.header.addProgramRecord(program);
+
+        this.barcodes=makeBarcodes(numCells,this.rand);
+
+        //genes and mapped reads are shared out over contigs by length
+        this.firstGene=new int[contigNames.length+1];
+        this.geneSpacing=new long[contigNames.length];
+        this.geneLength=new int[contigNames.length];
+        this.exonLength=new int[contigNames.length];
+        this.readsPerContig=new long[contigNames.length];
+        long numMapped=numReads-Math.round(numReads*unmappedRate);
+        long mappedSoFar=0;
+        long lengthSoFar=0;
+        for(int i=0;i<contigNames.length;i++)
+        {
+            lengthSoFar=lengthSoFar+contigLengths[i];
+            int genesToHere=(int)Math.max(i+1,Math.round((double)this.numGenes*lengthSoFar/genomeLength));
+            this.firstGene[i+1]=Math.min(genesToHere,this.numGenes);
+            int genesOnContig=Math.max(1,this.firstGene[i+1]-this.firstGene[i]);
+            this.geneSpacing[i]=contigLengths[i]/genesOnContig;
+            this.geneLength[i]=(int)(this.geneSpacing[i]*geneFraction);
+            this.exonLength[i]=(int)(this.geneLength[i]*exonFraction);
+            long mappedToHere=Math.round((double)numMapped*lengthSoFar/genomeLength);
+            this.readsPerContig[i]=mappedToHere-mappedSoFar;
+            mappedSoFar=mappedToHere;
+        }
+        this.geneIds=new String[this.numGenes];
+        for(int g=0;g<this.numGenes;g++)
+        {
+            this.geneIds[g]="ENSGSYN"+String.format("%08d",g);
+        }
+        this.startContig(0);
+    }
+
+    public SAMFileHeader getHeader()
+    {
+        return(this.header);
+    }
+
+    public String[] getBarcodes()
+    {
+        return(this.barcodes);
+    }
+
+    //Makes n distinct 16 base barcodes with a -1 suffix, as in a CellRanger barcodes.tsv.gz
+    public static String[] makeBarcodes(int n,SplittableRandom rand)
+    {
+        HashSet<String> seen=new HashSet<String>();
+        String[] ret=new String[n];
+        int i=0;
+        while(i<n)
+        {
+            String barcode=randomBases(rand,16)+"-1";
+            if(seen.add(barcode))
+            {
+                ret[i]=barcode;
+                i=i+1;
+            }
+        }
+        return(ret);
+    }
+
+    protected static String randomBases(SplittableRandom rand,int len)
+    {
+        byte[] seq=new byte[len];
+        fillBases(rand,seq);
+        return(new String(seq,StandardCharsets.US_ASCII));
+    }
+
+    //Fills seq with random bases, 32 from each random long
+    protected static void fillBases(SplittableRandom rand,byte[] seq)
+    {
+        long bits=0;
+        for(int i=0;i<seq.length;i++)
+        {
+            if(i%32==0)
+            {
+                bits=rand.nextLong();
+            }
+            seq[i]=bases[(int)(bits & 3)];
+            bits=bits>>>2;
+        }
+    }
+
+    //Quality string (as in CY/UY) with most bases binned at quality 37 and the rest at 25, 11 or 2
+    protected String randomQualString(int len)
+    {
+        char[] qual=new char[len];
+        long bits=this.rand.nextLong();
+        for(int i=0;i<len;i++)
+        {
+            int q=qualityBin((int)((bits>>>(4*(i%16))) & 15));
+            if(i%16==15)
+            {
+                bits=this.rand.nextLong();
+            }
+            qual[i]=(char)(33+q);
+            if(len==16)
+            {
+                this.numBarcodeQ30=this.numBarcodeQ30+(q>=30 ? 1 : 0);
+            }else{
+                this.numUMIQ30=this.numUMIQ30+(q>=30 ? 1 : 0);
+            }
+        }
+        return(new String(qual));
+    }
+
+    //Maps 4 random bits to an Illumina binned quality, 37 13 times in 16
+    protected static int qualityBin(int bits)
+    {
+        if(bits<13)
+        {
+            return(37);
+        }
+        if(bits==13)
+        {
+            return(25);
+        }
+        if(bits==14)
+        {
+            return(11);
+        }
+        return(2);
+    }
+
+    //Starts making reads on contig c (contigNames.length for the unmapped reads)
+    protected void startContig(int c)
+    {
+        this.curContig=c;
+        this.curPos=1;
+        if(c<contigNames.length)
+        {
+            this.readsLeftOnContig=this.readsPerContig[c];
+        }
+    }
+
+    ////////////////////
+    ////Makes the next record, null once numReads have been made. Records come in
+    ////coordinate order: the next read along the contig, or a secondary alignment of an
+    ////earlier multimapped read if that comes first.
+    /////////////////////
+    public SAMRecord next()
+    {
+        if(this.upcoming==null)
+        {
+            this.upcoming=this.makeRead();
+        }
+        SAMRecord secondary=this.secondaries.peek();
+        if(secondary!=null && (this.upcoming==null || this.order.compare(secondary,this.upcoming)<=0))
+        {
+            return(this.secondaries.poll());
+        }
+        SAMRecord read=this.upcoming;
+        this.upcoming=null;
+        return(read);
+    }
+
+    //Makes the next primary record along the bam (and its secondary alignments, which are held back until their place), null once numReads have been made
+    protected SAMRecord makeRead()
+    {
+        if(this.readNum>=this.numReads)
+        {
+            return(null);
+        }
+        while(this.curContig<contigNames.length && this.readsLeftOnContig==0)
+        {
+            this.startContig(this.curContig+1);
+        }
+
+        SAMRecord read=new SAMRecord(this.header);
+        read.setReadName("SYN:"+String.valueOf(this.readNum));
+        this.readNum=this.readNum+1;
+
+        byte[] seq=new byte[readLength];
+        fillBases(this.rand,seq);
+        read.setReadBases(seq);
+        byte[] qual=new byte[readLength];
+        long bits=0;
+        for(int i=0;i<readLength;i++)
+        {
+            if(i%16==0)
+            {
+                bits=this.rand.nextLong();
+            }
+            qual[i]=(byte)qualityBin((int)(bits & 15));
+            bits=bits>>>4;
+        }
+        read.setBaseQualities(qual);
+
+        int nh=1;
+        int mapq=255;
+        Molecule molecule=null;
+        if(this.curContig>=contigNames.length)
+        {
+            read.setReadUnmappedFlag(true);
+            read.setReferenceIndex(-1);
+            read.setAlignmentStart(0);
+            this.readType='I';
+            this.antisense=false;
+        }else{
+            this.readsLeftOnContig=this.readsLeftOnContig-1;
+            int c=this.curContig;
+            int maxStart=contigLengths[c]-readLength-6000; //room for the longest spliced read
+            double meanGap=(double)maxStart/(this.readsPerContig[c]+1);
+            this.curPos=Math.min(maxStart,this.curPos-meanGap*Math.log(1-this.rand.nextDouble()));
+
+            //each alignment of a multimapped read is a record, so the read has nh-1 more to come on this contig
+            if(this.rand.nextDouble()<this.multiReadRate & this.readsLeftOnContig>0)
+            {
+                nh=(int)Math.min(2+this.rand.nextInt(3),1+this.readsLeftOnContig);
+            }
+            mapq=nh==1 ? 255 : (nh==2 ? 3 : 1); //as STAR sets it
+            read.setMappingQuality(mapq);
+            read.setAttribute("NH",nh);
+            this.place(read,c,(int)this.curPos);
+
+            //confidently mapped to the transcriptome (introns included, as CellRanger 7 on
+            //counts them), and most of those counted as a UMI: the rest repeat a molecule of
+            //the gene already made, so counting UMIs gives what xf says
+            if(nh==1 & this.readType!='I' & !this.antisense & !this.multiGene)
+            {
+                if(this.readGene!=this.poolGene)
+                {
+                    this.pool.clear();
+                    this.poolGene=this.readGene;
+                }
+                if(!this.pool.isEmpty() && this.rand.nextDouble()<duplicateFraction)
+                {
+                    molecule=this.pool.get(this.rand.nextInt(this.pool.size()));
+                    read.setAttribute("xf",17);
+                }else{
+                    molecule=this.newMolecule();
+                    this.pool.add(molecule);
+                    read.setAttribute("xf",25);
+                }
+            }else{
+                read.setAttribute("xf",0);
+            }
+        }
+
+        if(molecule==null)
+        {
+            molecule=this.newMolecule();
+        }
+        read.setAttribute("CR",molecule.barcode.substring(0,16));
+        if(molecule.corrected)
+        {
+            read.setAttribute("CB",molecule.barcode);
+        }
+        read.setAttribute("UR",molecule.umi);
+        read.setAttribute("UB",molecule.umi);
+        this.numBarcodeBases=this.numBarcodeBases+16;
+        this.numUMIBases=this.numUMIBases+12;
+        read.setAttribute("CY",this.randomQualString(16));
+        read.setAttribute("UY",this.randomQualString(12));
+        if(this.rand.nextDouble()<polyAFraction)
+        {
+            read.setAttribute("pa",10+this.rand.nextInt(20));
+        }
+        if(this.rand.nextDouble()<tsoFraction)
+        {
+            read.setAttribute("ts",5+this.rand.nextInt(20));
+        }
+
+        this.numPrimary=this.numPrimary+1;
+        if(mapq==255 & !read.getReadUnmappedFlag())
+        {
+            if(this.readType=='E')
+            {
+                this.numExonic=this.numExonic+1;
+            }else if(this.readType=='N'){
+                this.numIntronic=this.numIntronic+1;
+            }else{
+                this.numIntergenic=this.numIntergenic+1;
+            }
+        }
+        if(this.antisense)
+        {
+            this.numAntisense=this.numAntisense+1;
+        }
+
+        //the other alignments share the read's name, bases and barcode/UMI tags, at places further along the contig
+        for(int i=1;i<nh;i++)
+        {
+            SAMRecord secondary=read.deepCopy();
+            secondary.setSecondaryAlignment(true);
+            secondary.setAttribute("GX",null);
+            secondary.setAttribute("TX",null);
+            secondary.setAttribute("AN",null);
+            int maxStart=contigLengths[this.curContig]-readLength-6000;
+            this.place(secondary,this.curContig,(int)Math.min(maxStart,this.curPos+1+this.rand.nextInt(1000000)));
+            this.secondaries.add(secondary);
+            this.readsLeftOnContig=this.readsLeftOnContig-1;
+            this.readNum=this.readNum+1;
+        }
+        return(read);
+    }
+
+    ////////////////////
+    ////Puts a mapped record at start on contig c with a random cigar, and labels it (RE,
+    ////GX, TX/AN) by where it starts relative to the genes, leaving the labels in
+    ////readType, antisense, readGene and multiGene
+    /////////////////////
+    protected void place(SAMRecord read,int c,int start)
+    {
+        read.setReferenceIndex(c);
+        read.setAlignmentStart(start);
+        if(this.rand.nextDouble()<splicedFraction)
+        {
+            int first=10+this.rand.nextInt(readLength-20);
+            read.setCigarString(String.valueOf(first)+"M"+String.valueOf(100+this.rand.nextInt(5000))+"N"+String.valueOf(readLength-first)+"M");
+        }else{
+            read.setCigarString(String.valueOf(readLength)+"M");
+        }
+
+        this.readType='I'; //E, N or I as in CellRanger's RE tag
+        this.antisense=false;
+        this.readGene=-1;
+        this.multiGene=false;
+        long offset=start-1;
+        int gene=this.firstGene[c]+(int)(offset/this.geneSpacing[c]);
+        long inGene=offset%this.geneSpacing[c];
+        if(gene<this.firstGene[c+1] & inGene<this.geneLength[c])
+        {
+            if(inGene<this.exonLength[c] | inGene>=this.geneLength[c]-this.exonLength[c])
+            {
+                this.readType='E';
+            }else{
+                this.readType='N';
+            }
+            this.readGene=gene;
+            this.antisense=this.rand.nextDouble()<antisenseFraction;
+            String tx="ENSTSYN"+this.geneIds[gene].substring(7)+","+(this.antisense ? "-" : "+")+String.valueOf(inGene)+","+String.valueOf(readLength)+"M";
+            if(this.antisense)
+            {
+                //the wrong strand for the chemistry, so not compatible with the gene
+                read.setAttribute("AN",tx);
+            }else{
+                String gx=this.geneIds[gene];
+                if(this.rand.nextDouble()<multiGeneFraction & gene+1<this.numGenes)
+                {
+                    gx=gx+";"+this.geneIds[gene+1];
+                    this.multiGene=true;
+                }
+                read.setAttribute("GX",gx);
+                if(this.readType=='E')
+                {
+                    read.setAttribute("TX",tx);
+                }
+            }
+        }
+
+        if(this.quantUsed.equals("STARSolo"))
+        {
+            read.setAttribute("RE",this.antisense ? "A" : (this.readType=='E' ? "E" : (this.readType=='N' ? "N" : "")));
+        }else{
+            read.setAttribute("RE",this.readType);
+        }
+    }
+
+    //Makes a molecule with a random barcode (from the cell list for most) and UMI
+    protected Molecule newMolecule()
+    {
+        Molecule molecule=new Molecule();
+        double u=this.rand.nextDouble();
+        if(u<cellFraction)
+        {
+            double v=this.rand.nextDouble();
+            molecule.barcode=this.barcodes[(int)(this.numCells*v*v)]; //some cells get more reads than others
+        }else{
+            molecule.barcode=randomBases(this.rand,16)+"-1"; //ambient barcode not in the cell list
+        }
+        molecule.corrected=u<1-noBarcodeFraction;
+        molecule.umi=randomBases(this.rand,12);
+        return(molecule);
+    }
+
+    //Barcode and UMI of a captured molecule, shared by the reads sequenced from it
+    protected static class Molecule
+    {
+        protected String barcode;
+        protected boolean corrected; //the barcode has a CB tag
+        protected String umi;
+    }
+
+    ////////////////////
+    ////Writes the whole output directory
+    ////outDir: directory to write to, made if needed
+    ////compressionLevel: bgzf compression level for the bam (0-9), low levels write large bams much faster
+    ////verbose: print a message every million reads
+    /////////////////////
+    public void write(File outDir,int compressionLevel,boolean verbose) throws IOException
+    {
+        File matrixDir=new File(outDir,"raw_feature_bc_matrix");
+        matrixDir.mkdirs();
+
+        BufferedWriter bw=new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(new File(matrixDir,"barcodes.tsv.gz")))));
+        for(String barcode:this.barcodes)
+        {
+            bw.write(barcode);
+            bw.newLine();
+        }
+        bw.close();
+
+        this.writeGtf(new File(outDir,"genes.gtf"));
+
+        File bam=new File(outDir,"possorted_genome_bam.bam");
+        SAMFileWriter writer=new SAMFileWriterFactory().setCreateIndex(true).setUseAsyncIo(true).setCompressionLevel(compressionLevel).makeBAMWriter(this.header,true,bam);
+        SAMRecord read;
+        long numWritten=0;
+        while((read=this.next())!=null)
+        {
+            writer.addAlignment(read);
+            numWritten=numWritten+1;
+            if(verbose & numWritten % 1000000==0)
+            {
+                ReadCounter.print(String.valueOf(numWritten));
+            }
+        }
+        writer.close();
+        //htsjdk names the index possorted_genome_bam.bai, CellRanger names it possorted_genome_bam.bam.bai
+        File index=new File(outDir,"possorted_genome_bam.bai");
+        File cellRangerIndex=new File(outDir,"possorted_genome_bam.bam.bai");
+        cellRangerIndex.delete();
+        if(!index.renameTo(cellRangerIndex))
+        {
+            throw new IOException("Could not rename "+index.getPath());
+        }
+
+        this.writeMetrics(new File(outDir,"metrics_summary.csv"));
+    }
+
+    //Writes the genes, each with gene, transcript, exon and UTR lines
+    public void writeGtf(File file) throws IOException
+    {
+        BufferedWriter bw=new BufferedWriter(new FileWriter(file),1<<20);
+        bw.write("#!description synthetic annotation from SyntheticData");
+        bw.newLine();
+        for(int c=0;c<contigNames.length;c++)
+        {
+            for(int g=this.firstGene[c];g<this.firstGene[c+1];g++)
+            {
+                long start=1+(g-this.firstGene[c])*this.geneSpacing[c];
+                long end=start+this.geneLength[c]-1;
+                int exon=this.exonLength[c];
+                String attrs="gene_id \""+this.geneIds[g]+"\"; gene_name \"SYN"+String.valueOf(g)+"\"; gene_type \"protein_coding\";";
+                String txAttrs=attrs+" transcript_id \"ENSTSYN"+this.geneIds[g].substring(7)+"\";";
+                writeGtfLine(bw,c,"gene",start,end,attrs);
+                writeGtfLine(bw,c,"transcript",start,end,txAttrs);
+                writeGtfLine(bw,c,"exon",start,start+exon-1,txAttrs);
+                writeGtfLine(bw,c,"exon",end-exon+1,end,txAttrs);
+                writeGtfLine(bw,c,"five_prime_utr",start,start+Math.min(utr5Length,exon)-1,txAttrs);
+                writeGtfLine(bw,c,"three_prime_utr",end-exon/2+1,end,txAttrs);
+            }
+        }
+        bw.close();
+    }
+
+    protected static void writeGtfLine(BufferedWriter bw,int c,String type,long start,long end,String attrs) throws IOException
+    {
+        bw.write(contigNames[c]+"\tSyntheticData\t"+type+"\t"+String.valueOf(start)+"\t"+String.valueOf(end)+"\t.\t+\t.\t"+attrs);
+        bw.newLine();
+    }
+
+    //Writes the true values of the metrics the sanity check compares to, in CellRanger's format (percents of all reads)
+    public void writeMetrics(File file) throws IOException
+    {
+        double total=Math.max(1,this.numPrimary);
+        BufferedWriter bw=new BufferedWriter(new FileWriter(file));
+        bw.write("Estimated Number of Cells,Number of Reads,Reads Mapped Confidently to Intergenic Regions,Reads Mapped Confidently to Intronic Regions,"
+            +"Reads Mapped Confidently to Exonic Regions,Reads Mapped Antisense to Gene,Q30 Bases in Barcode,Q30 Bases in UMI");
+        bw.newLine();
+        bw.write("\""+String.format("%,d",this.numCells)+"\",\""+String.format("%,d",this.numPrimary)+"\","
+            +percent(this.numIntergenic,total)+","+percent(this.numIntronic,total)+","+percent(this.numExonic,total)+","
+            +percent(this.numAntisense,total)+","+percent(this.numBarcodeQ30,Math.max(1,this.numBarcodeBases))+","
+            +percent(this.numUMIQ30,Math.max(1,this.numUMIBases)));
+        bw.newLine();
+        bw.close();
+    }
+
+    protected static String percent(double count,double total)
+    {
+        return(String.format("%.1f%%",100*count/total));
+    }
+
+    public static void main(String[] args)
+    {
+        Options options = new Options();
+
+        Option output = new Option("o", "output", true, "directory to write the synthetic CellRanger outs to");
+        output.setRequired(true);
+        options.addOption(output);
+        options.addOption(new Option("r", "reads", true, "number of bam records to make (default 1000000)"));
+        options.addOption(new Option("n", "cells", true, "number of cell barcodes (default 5000)"));
+        options.addOption(new Option("m", "multi", true, "fraction of mapped records that are multimapped (default 0.1)"));
+        options.addOption(new Option("u", "unmapped", true, "fraction of records that are unmapped (default 0.05)"));
+        options.addOption(new Option("g", "genes", true, "number of genes in the gtf (default 20000)"));
+        options.addOption(new Option("s", "seed", true, "seed for the random number generator (default 1)"));
+        options.addOption(new Option("q", "quantused", true, "CellRanger (default) or STARSolo style RE tags"));
+        options.addOption(new Option("c", "compression", true, "bgzf compression level of the bam, 0-9 (default 5)"));
+        options.addOption(new Option("v", "verbose", false, "print a message every million reads"));
+
+        CommandLineParser parser = new DefaultParser();
+        HelpFormatter formatter = new HelpFormatter();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            print(e.getMessage());
+            formatter.printHelp("SyntheticData", options);
+            System.exit(1);
+            return;
+        }
+
+        SyntheticData data;
+        int compressionLevel;
+        try{
+            long numReads=Long.parseLong(cmd.getOptionValue("reads","1000000"));
+            int numCells=Integer.parseInt(cmd.getOptionValue("cells","5000"));
+            double multiRate=Double.parseDouble(cmd.getOptionValue("multi","0.1"));
+            double unmappedRate=Double.parseDouble(cmd.getOptionValue("unmapped","0.05"));
+            int numGenes=Integer.parseInt(cmd.getOptionValue("genes","20000"));
+            long seed=Long.parseLong(cmd.getOptionValue("seed","1"));
+            compressionLevel=Integer.parseInt(cmd.getOptionValue("compression","5"));
+            String quantUsed=cmd.getOptionValue("quantused","CellRanger");
+            if(!quantUsed.equals("STARSolo") & !quantUsed.equals("CellRanger"))
+            {
+                print("Quantification method used (-q option) must be CellRanger or STARSolo");
+                System.exit(1);
+            }
+            data=new SyntheticData(numReads,numCells,multiRate,unmappedRate,numGenes,seed,quantUsed);
+        }catch(NumberFormatException e){
+            print("Could not parse a number: "+e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        try{
+            data.write(new File(cmd.getOptionValue("output")),compressionLevel,cmd.hasOption("v"));
+        }catch(IOException e){
+            e.printStackTrace();
+            print("Issue writing synthetic data");
+            System.exit(1);
+        }
+        print("Wrote "+String.valueOf(data.readNum)+" reads to "+cmd.getOptionValue("output"));
+    }
+
+    public static void print(String output)
+    {
+        System.out.println(output);
+    }
+
+}
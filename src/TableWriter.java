@@ -0,0 +1,156 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+//////////////////////////////////////////////////////////
+//// Writes a tab separated table through one reusable byte buffer. Numbers are formatted
+//// straight into the buffer as digits and text is copied in as ASCII, so writing a row
+//// makes no Strings, and the buffer goes to the file in large blocks through a
+//// FileChannel. The file can be written plain, gzipped, or as BGZF deflated on several
+//// threads (see ParallelBgzfOutputStream); BGZF is also gzip, so either can be read with
+//// zcat or R's read.table.
+//////////////////////////////////////////////////////////
+public class TableWriter implements Closeable
+{
+    protected static final int bufferSize=1<<20;
+    public static final String[] compressions={"none","gzip","bgzf"}; //allowed values of compression
+
+    protected byte[] buf=new byte[bufferSize]; //formatted bytes not yet written
+    protected int len=0; //number of bytes of buf used
+    protected OutputStream out; //file, through the compression if any
+
+    ////////////////////
+    ////file: The file to write, overwritten if it exists
+    ////compression: none, gzip or bgzf
+    ////numThreads: number of threads used to deflate BGZF blocks
+    /////////////////////
+    public TableWriter(File file,String compression,int numThreads) throws IOException
+    {
+        FileChannel channel=FileChannel.open(file.toPath(),StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING,StandardOpenOption.WRITE);
+        OutputStream raw=Channels.newOutputStream(channel);
+        if(compression.equals("gzip"))
+        {
+            this.out=new GZIPOutputStream(raw,1<<16);
+        }else if(compression.equals("bgzf")){
+            this.out=new ParallelBgzfOutputStream(raw,numThreads,5);
+        }else if(compression.equals("none")){
+            this.out=raw;
+        }else{
+            raw.close();
+            throw new IllegalArgumentException("Unknown compression "+compression);
+        }
+    }
+
+    //true if compression is one TableWriter knows
+    public static boolean isCompression(String compression)
+    {
+        return(Arrays.asList(compressions).contains(compression));
+    }
+
+    //Makes room for n more bytes in buf, writing it out if needed
+    protected void ensure(int n) throws IOException
+    {
+        if(this.len+n>this.buf.length)
+        {
+            this.flushBuffer();
+        }
+    }
+
+    protected void flushBuffer() throws IOException
+    {
+        this.out.write(this.buf,0,this.len);
+        this.len=0;
+    }
+
+    public void write(byte b) throws IOException
+    {
+        this.ensure(1);
+        this.buf[this.len]=b;
+        this.len=this.len+1;
+    }
+
+    public void write(byte[] b) throws IOException
+    {
+        if(b.length>this.buf.length)
+        {
+            this.flushBuffer();
+            this.out.write(b);
+            return;
+        }
+        this.ensure(b.length);
+        System.arraycopy(b,0,this.buf,this.len,b.length);
+        this.len=this.len+b.length;
+    }
+
+    //Writes s, which should be ASCII (as barcodes and column names are)
+    public void write(String s) throws IOException
+    {
+        int n=s.length();
+        if(n>this.buf.length)
+        {
+            this.write(s.getBytes("US-ASCII"));
+            return;
+        }
+        this.ensure(n);
+        for(int i=0;i<n;i++)
+        {
+            this.buf[this.len+i]=(byte)s.charAt(i);
+        }
+        this.len=this.len+n;
+    }
+
+    //Writes v in decimal
+    public void writeLong(long v) throws IOException
+    {
+        if(v==Long.MIN_VALUE)
+        {
+            this.write(String.valueOf(v));
+            return;
+        }
+        this.ensure(20);
+        if(v<0)
+        {
+            this.buf[this.len]='-';
+            this.len=this.len+1;
+            v=-v;
+        }
+        int start=this.len;
+        do{
+            this.buf[this.len]=(byte)('0'+(int)(v%10));
+            this.len=this.len+1;
+            v=v/10;
+        }while(v>0);
+        //digits went in backwards
+        for(int a=start,b=this.len-1;a<b;a++,b--)
+        {
+            byte tmp=this.buf[a];
+            this.buf[a]=this.buf[b];
+            this.buf[b]=tmp;
+        }
+    }
+
+    public void tab() throws IOException
+    {
+        this.write((byte)'\t');
+    }
+
+    public void newLine() throws IOException
+    {
+        this.write((byte)'\n');
+    }
+
+    public void close() throws IOException
+    {
+        try{
+            this.flushBuffer();
+        }finally{
+            this.out.close();
+        }
+    }
+
+}
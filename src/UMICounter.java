@@ -0,0 +1,759 @@
+package singlecellqc;
+import java.io.*;
+import java.util.*;
+import java.lang.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//////////////////////////////////////////////////////////
+//// Counts the distinct UMIs (UB tag) of each cell exactly, or the distinct UMI and gene
+//// pairs (UB and a single gene in GX), which is how CellRanger counts molecules. UMIs
+//// are packed 2 bits per base into a long (with a 1 bit above the bases so UMIs of
+//// different lengths differ and no key is 0), with the gene number above them in gene
+//// mode, and stored in a primitive open-addressing set for each row (slot) of the
+//// ReadCounter it belongs to.
+////
+//// Memory is bounded by a Budget shared by every counter of a run: once the sets of all
+//// of them take more than it, a counter adding to its sets spills them to a temporary
+//// file (a run) sorted by cell and key, and empties them. Gene numbers are local to
+//// each UMICounter, so each run stores the gene ids it uses and its keys are numbered by
+//// gene name. At the end the runs are streamed through a k-way merge, mapping each run's
+//// genes into the names of all of them (which keeps the keys sorted), and distinct keys
+//// are counted as they come out, so the counts are exact however many runs there are and
+//// however many keys a cell has. Worker counters are merged in by adding their keys (a
+//// molecule can have reads in more than one worker) and taking over their runs.
+//////////////////////////////////////////////////////////
+public class UMICounter
+{
+    protected static final int maxUMILength=16; //longest UMI that is packed (10x v3 UMIs are 12 bases)
+    protected static final int geneShift=2*maxUMILength+1; //gene number+1 goes above the UMI bases and length bit
+    protected static final int minCapacity=8; //initial size of a set
+    protected static final int chunkLength=8192; //keys read or written at a time for each run
+    protected static final byte[] noGene={'-'}; //GX value STARSolo gives reads with no gene
+
+    protected ReadCounter owner; //the ReadCounter whose slots index sets
+    protected boolean perGene; //if true counts UMI and gene pairs, otherwise just UMIs
+    protected Budget budget; //memory shared with the other counters of the run
+    protected long usedBytes=0; //memory used by the sets, also counted in budget
+    protected boolean released=false; //true once usedBytes is given back to budget and the counter is done
+    protected long[][] sets=new long[0][]; //open-addressing set of keys for each slot, 0 for an empty entry, null if none yet
+    protected int[] setSizes=new int[0]; //number of keys in each set
+    protected ArrayList<File> runs=new ArrayList<File>(); //spilled runs, from this counter or merged in from workers
+    protected int keyShift=0; //bits of each key below the UMI, 0 here but used by SaturationCounter to hold a depth
+    protected int maxOpenRuns=64; //most runs merged at once, more are merged in groups first
+
+    //Gene ids seen, numbered in order of first appearance (perGene only)
+    protected ArrayList<byte[]> geneNames=new ArrayList<byte[]>();
+    protected HashMap<ByteArrayKey,Integer> geneNumbers=new HashMap<ByteArrayKey,Integer>();
+    protected ByteArrayKey lookupKey=new ByteArrayKey(); //reused for lookups so known genes make no objects
+
+    //Wraps part of a byte array as a HashMap key, compared by content
+    protected static class ByteArrayKey
+    {
+        protected byte[] data;
+        protected int off;
+        protected int len;
+        protected int hash;
+
+        protected ByteArrayKey set(byte[] data,int off,int len)
+        {
+            this.data=data;
+            this.off=off;
+            this.len=len;
+            int h=1;
+            for(int i=off;i<off+len;i++)
+            {
+                h=31*h+data[i];
+            }
+            this.hash=h;
+            return(this);
+        }
+
+        public int hashCode()
+        {
+            return(this.hash);
+        }
+
+        public boolean equals(Object o)
+        {
+            ByteArrayKey other=(ByteArrayKey)o;
+            return(this.len==other.len && Arrays.equals(this.data,this.off,this.off+this.len,other.data,other.off,other.off+other.len));
+        }
+    }
+
+    ////////////////////
+    ////Memory for the sets of every counter of a run: the main one, each worker thread's, each
+    ////downsampled table's and the saturation counter's, so together they stay within one
+    ////limit however many there are. Once the total is over the limit, a counter adding to
+    ////its sets spills them, unless it holds less than its share of a quarter of the limit
+    ////(so a counter that has just spilled does not spill again and again while others hold
+    ////the memory), which keeps the total within a quarter of the limit above it.
+    /////////////////////
+    public static class Budget
+    {
+        protected long limitBytes; //most memory the sets of all the counters use before spilling
+        protected AtomicLong usedBytes=new AtomicLong(); //memory used by the sets of all the counters
+        protected AtomicInteger numCounters=new AtomicInteger(); //counters using the budget that are not done yet
+
+        public Budget(long limitBytes)
+        {
+            this.limitBytes=limitBytes;
+        }
+
+        //Adds bytes (negative to give them back) to the memory in use, true if the total is then over the limit
+        protected boolean add(long bytes)
+        {
+            return(this.usedBytes.addAndGet(bytes)>this.limitBytes);
+        }
+
+        //Memory a counter can always hold without spilling
+        protected long smallestShare()
+        {
+            return(this.limitBytes/(4*Math.max(1,this.numCounters.get())));
+        }
+    }
+
+    ////////////////////
+    ////owner: The ReadCounter whose slots are used
+    ////perGene: true to count UMI and gene pairs, false to count UMIs
+    ////budget: memory shared with the other counters of the run, past which the sets are spilled to disk
+    /////////////////////
+    public UMICounter(ReadCounter owner,boolean perGene,Budget budget)
+    {
+        this.owner=owner;
+        this.perGene=perGene;
+        this.budget=budget;
+        this.budget.numCounters.incrementAndGet();
+    }
+
+    //Packs a UMI stored as ASCII bytes b[off..off+len) into a long, -1 if it can't be packed (N's or too long)
+    public static long encodeUMI(byte[] b,int off,int len)
+    {
+        if(len<1 | len>maxUMILength)
+        {
+            return(-1);
+        }
+        long key=1;
+        for(int i=off;i<off+len;i++)
+        {
+            int code=BarcodeIndex.baseCode[b[i] & 0xff];
+            if(code<0)
+            {
+                return(-1);
+            }
+            key=(key<<2) | code;
+        }
+        return(key);
+    }
+
+    ////////////////////
+    ////Adds the UMI of a read (which has passed ReadCounter's filters) to the set of a slot.
+    ////Reads with no or an unpackable UB, or without exactly one gene in GX, are not
+    ////counted, as CellRanger does not count them.
+    /////////////////////
+    public void add(int slot,ReadFields fields)
+    {
+        if(!hasUMIAndGene(fields))
+        {
+            return;
+        }
+        long key=encodeUMI(fields.data,fields.ubOff,fields.ubLen);
+        if(key<0)
+        {
+            return;
+        }
+        if(this.perGene)
+        {
+            key=key | ((long)(this.geneNumber(fields.data,fields.gxOff,fields.gxLen)+1)<<geneShift);
+        }
+        this.addKey(slot,key);
+    }
+
+    //true if a read has a UB tag and exactly one gene in GX, the reads whose UMIs are counted (also used by CellSketches)
+    public static boolean hasUMIAndGene(ReadFields fields)
+    {
+        if(fields.ubLen<0 | fields.gxLen<=0)
+        {
+            return(false);
+        }
+        if(fields.gxLen==1 && fields.data[fields.gxOff]==noGene[0])
+        {
+            return(false);
+        }
+        for(int i=fields.gxOff;i<fields.gxOff+fields.gxLen;i++)
+        {
+            if(fields.data[i]==';')
+            {
+                return(false);
+            }
+        }
+        return(true);
+    }
+
+    //Gets the number of a gene id, adding it if new
+    protected int geneNumber(byte[] data,int off,int len)
+    {
+        Integer num=this.geneNumbers.get(this.lookupKey.set(data,off,len));
+        if(num==null)
+        {
+            byte[] name=Arrays.copyOfRange(data,off,off+len);
+            num=this.geneNames.size();
+            this.geneNames.add(name);
+            this.geneNumbers.put(new ByteArrayKey().set(name,0,len),num);
+        }
+        return(num);
+    }
+
+    //Adds a key to the set of a slot, spilling all the sets if the budget is used up
+    protected void addKey(int slot,long key)
+    {
+        if(slot>=this.sets.length)
+        {
+            int capacity=Math.max(slot+1,2*this.sets.length);
+            this.sets=Arrays.copyOf(this.sets,capacity);
+            this.setSizes=Arrays.copyOf(this.setSizes,capacity);
+        }
+        long[] set=this.sets[slot];
+        if(set==null)
+        {
+            set=new long[minCapacity];
+            this.sets[slot]=set;
+            this.use(8*minCapacity);
+        }
+        if(insert(set,key))
+        {
+            this.setSizes[slot]=this.setSizes[slot]+1;
+            if(4*this.setSizes[slot]>3*set.length)
+            {
+                this.sets[slot]=grow(set);
+                this.use(8*set.length);
+            }
+        }
+    }
+
+    //Counts more memory used by the sets, spilling them if that uses up the budget
+    protected void use(long bytes)
+    {
+        this.usedBytes=this.usedBytes+bytes;
+        if(this.budget.add(bytes) & this.usedBytes>=this.budget.smallestShare())
+        {
+            try{
+                this.spill();
+            }catch(IOException e){
+                throw new RuntimeException("Issue writing UMIs to disk",e);
+            }
+        }
+    }
+
+    //Gives the memory of the sets back to the budget once they are emptied, and if done (no more keys will be added) stops counting against its shares
+    protected void release(boolean done)
+    {
+        this.budget.add(-this.usedBytes);
+        this.usedBytes=0;
+        if(done & !this.released)
+        {
+            this.released=true;
+            this.budget.numCounters.decrementAndGet();
+        }
+    }
+
+    //Adds key to an open-addressing set (length a power of 2), returns false if it was already there
+    protected static boolean insert(long[] set,long key)
+    {
+        int mask=set.length-1;
+        int i=mix(key) & mask;
+        while(set[i]!=0)
+        {
+            if(set[i]==key)
+            {
+                return(false);
+            }
+            i=(i+1) & mask;
+        }
+        set[i]=key;
+        return(true);
+    }
+
+    protected static long[] grow(long[] set)
+    {
+        long[] bigger=new long[2*set.length];
+        for(long key:set)
+        {
+            if(key!=0)
+            {
+                insert(bigger,key);
+            }
+        }
+        return(bigger);
+    }
+
+    //Spreads the bits of a key for the table position (the finalizer of MurmurHash3)
+    protected static int mix(long key)
+    {
+        key=(key ^ (key>>>33))*0xff51afd7ed558ccdL;
+        key=(key ^ (key>>>33))*0xc4ceb9fe1a85ec53L;
+        return((int)(key ^ (key>>>33)));
+    }
+
+    //Keys in a set, sorted
+    protected static long[] sortedKeys(long[] set,int size)
+    {
+        long[] keys=new long[size];
+        int n=0;
+        for(long key:set)
+        {
+            if(key!=0)
+            {
+                keys[n]=key;
+                n=n+1;
+            }
+        }
+        Arrays.sort(keys);
+        return(keys);
+    }
+
+    ////////////////////
+    ////Writes every set to a new run, sorted by cell (position in the cell list, which
+    ////unlike the slot is the same in every counter) then key, and empties them. Genes are
+    ////renumbered by name first, so keys in every run are in the same order whatever order
+    ////the genes were seen in, and runs can be merged as streams.
+    /////////////////////
+    protected void spill() throws IOException
+    {
+        int numSlots=Math.min(this.sets.length,this.owner.numSlots);
+        Integer[] order=new Integer[numSlots]; //slots with keys, by cell
+        int n=0;
+        for(int slot=0;slot<numSlots;slot++)
+        {
+            if(this.setSizes[slot]>0)
+            {
+                order[n]=slot;
+                n=n+1;
+            }
+        }
+        final int[] slotCells=this.owner.slotCells;
+        Arrays.sort(order,0,n,new Comparator<Integer>(){
+            public int compare(Integer a,Integer b)
+            {
+                return(Integer.compare(slotCells[a],slotCells[b]));
+            }
+        });
+
+        //gene numbers here to their place in name order
+        Integer[] byName=new Integer[this.geneNames.size()];
+        for(int g=0;g<byName.length;g++)
+        {
+            byName[g]=g;
+        }
+        final ArrayList<byte[]> names=this.geneNames;
+        Arrays.sort(byName,new Comparator<Integer>(){
+            public int compare(Integer a,Integer b)
+            {
+                return(Arrays.compare(names.get(a),names.get(b)));
+            }
+        });
+        int[] geneMap=new int[byName.length];
+        ArrayList<byte[]> sortedNames=new ArrayList<byte[]>(byName.length);
+        for(int r=0;r<byName.length;r++)
+        {
+            geneMap[byName[r]]=r;
+            sortedNames.add(names.get(byName[r]));
+        }
+
+        RunWriter out=new RunWriter(this,sortedNames);
+        try{
+            for(int k=0;k<n;k++)
+            {
+                int slot=order[k];
+                long[] keys=sortedKeys(this.sets[slot],this.setSizes[slot]);
+                for(int i=0;i<keys.length;i++)
+                {
+                    keys[i]=this.translate(keys[i],geneMap);
+                }
+                Arrays.sort(keys);
+                out.startCell(slotCells[slot]);
+                for(long key:keys)
+                {
+                    out.add(key);
+                }
+                out.endCell();
+                this.sets[slot]=null;
+                this.setSizes[slot]=0;
+            }
+        }finally{
+            out.close();
+        }
+        this.runs.add(out.run);
+        this.release(false);
+    }
+
+    ////////////////////
+    ////Adds the keys of a worker's counter to this one and takes over its runs. Gene numbers
+    ////are translated to this counter's, and slots to this counter's slots for the same cells.
+    /////////////////////
+    public void merge(UMICounter worker)
+    {
+        int[] geneMap=new int[worker.geneNames.size()]; //worker gene number to number here
+        for(int g=0;g<geneMap.length;g++)
+        {
+            byte[] name=worker.geneNames.get(g);
+            geneMap[g]=this.geneNumber(name,0,name.length);
+        }
+        int numSlots=Math.min(worker.sets.length,worker.owner.numSlots);
+        for(int workerSlot=0;workerSlot<numSlots;workerSlot++)
+        {
+            long[] set=worker.sets[workerSlot];
+            if(set==null)
+            {
+                continue;
+            }
+            int slot=this.owner.slotFor(worker.owner.slotCells[workerSlot]);
+            for(long key:set)
+            {
+                if(key!=0)
+                {
+                    this.addKey(slot,this.translate(key,geneMap));
+                }
+            }
+            worker.sets[workerSlot]=null;
+        }
+        worker.release(true);
+        this.runs.addAll(worker.runs);
+        worker.runs.clear();
+    }
+
+    //Changes the gene number in a key using geneMap (keys without a gene are returned as they are)
+    protected long translate(long key,int[] geneMap)
+    {
+        int shift=geneShift+this.keyShift;
+        long gene=key>>>shift;
+        if(gene==0)
+        {
+            return(key);
+        }
+        return((key & ((1L<<shift)-1)) | ((long)(geneMap[(int)gene-1]+1)<<shift));
+    }
+
+    ////////////////////
+    ////Puts the number of distinct keys of each cell in column col of the owner's CellQC,
+    ////merging the runs first if anything was spilled, and deletes the runs
+    /////////////////////
+    public void count(int col) throws IOException
+    {
+        if(this.runs.isEmpty())
+        {
+            for(int slot=0;slot<Math.min(this.sets.length,this.owner.numSlots);slot++)
+            {
+                this.owner.CellQC[col][slot]=this.setSizes[slot];
+            }
+            this.sets=new long[0][];
+            this.release(true);
+            return;
+        }
+        Arrays.fill(this.owner.CellQC[col],0);
+        this.mergeRuns(col);
+        this.release(true);
+    }
+
+    //true if key (coming after previous in a cell's sorted keys) is not counted again, here if they are the same key
+    protected boolean sameKey(long key,long previous)
+    {
+        return(key==previous);
+    }
+
+    //Counts a key of a slot that is not the same as the one before it, here one more in column col of the owner's CellQC
+    protected void countKey(int slot,long key,int col)
+    {
+        this.owner.CellQC[col][slot]=this.owner.CellQC[col][slot]+1;
+    }
+
+    ////////////////////
+    ////Spills what is left in the sets, then merges the runs and passes each cell's keys that
+    ////are not the same as the one before to countKey, and deletes the runs. At most
+    ////maxOpenRuns runs are read at once: while there are more, the first maxOpenRuns are
+    ////merged into one run (keeping only the keys that are counted), so memory stays at a
+    ////buffer per open run however many runs there are.
+    /////////////////////
+    protected void mergeRuns(int col) throws IOException
+    {
+        this.spill(); //so everything is in runs
+        try{
+            while(this.runs.size()>this.maxOpenRuns)
+            {
+                List<File> group=this.runs.subList(0,this.maxOpenRuns);
+                File merged=this.mergeGroup(new ArrayList<File>(group),col,true);
+                for(File run:group)
+                {
+                    run.delete();
+                }
+                group.clear();
+                this.runs.add(merged);
+            }
+            this.mergeGroup(this.runs,col,false);
+        }finally{
+            for(File run:this.runs)
+            {
+                run.delete();
+            }
+            this.runs.clear();
+        }
+    }
+
+    ////////////////////
+    ////Merges runs with a heap on (cell, key) of the current key of each run
+    ////col: column of the owner's CellQC to count in
+    ////write: true to write the keys to a new run (which is returned) instead of counting them
+    /////////////////////
+    protected File mergeGroup(List<File> group,int col,boolean write) throws IOException
+    {
+        ArrayList<RunReader> readers=new ArrayList<RunReader>();
+        RunWriter out=null;
+        try{
+            //the genes of all the runs in name order, and each run's genes mapped into them
+            TreeMap<byte[],Integer> union=new TreeMap<byte[],Integer>(new Comparator<byte[]>(){
+                public int compare(byte[] a,byte[] b)
+                {
+                    return(Arrays.compare(a,b));
+                }
+            });
+            for(File run:group)
+            {
+                RunReader r=new RunReader(run,this);
+                readers.add(r);
+                for(byte[] name:r.names)
+                {
+                    union.put(name,0);
+                }
+            }
+            int rank=0;
+            for(Map.Entry<byte[],Integer> e:union.entrySet())
+            {
+                e.setValue(rank);
+                rank=rank+1;
+            }
+            PriorityQueue<RunReader> heap=new PriorityQueue<RunReader>(Math.max(1,readers.size()),new Comparator<RunReader>(){
+                public int compare(RunReader a,RunReader b)
+                {
+                    int c=Integer.compare(a.cell,b.cell);
+                    return(c!=0 ? c : Long.compare(a.key,b.key));
+                }
+            });
+            for(RunReader r:readers)
+            {
+                r.geneMap=new int[r.names.size()];
+                for(int g=0;g<r.geneMap.length;g++)
+                {
+                    r.geneMap[g]=union.get(r.names.get(g));
+                }
+                if(r.nextCell())
+                {
+                    heap.add(r);
+                }
+            }
+            if(write)
+            {
+                out=new RunWriter(this,new ArrayList<byte[]>(union.keySet()));
+            }
+
+            int cell=-1;
+            int slot=-1;
+            long previous=0;
+            while(!heap.isEmpty())
+            {
+                RunReader r=heap.poll();
+                boolean counted=r.cell!=cell || !this.sameKey(r.key,previous);
+                if(r.cell!=cell)
+                {
+                    if(out!=null & cell>=0)
+                    {
+                        out.endCell();
+                    }
+                    cell=r.cell;
+                    if(out!=null)
+                    {
+                        out.startCell(cell);
+                    }else{
+                        slot=this.owner.slotFor(cell);
+                    }
+                }
+                if(counted)
+                {
+                    if(out!=null)
+                    {
+                        out.add(r.key);
+                    }else{
+                        this.countKey(slot,r.key,col);
+                    }
+                }
+                previous=r.key;
+                if(r.nextKey() || r.nextCell())
+                {
+                    heap.add(r);
+                }
+            }
+            if(out!=null)
+            {
+                if(cell>=0)
+                {
+                    out.endCell();
+                }
+                out.close();
+                return(out.run);
+            }
+            return(null);
+        }catch(IOException e){
+            if(out!=null)
+            {
+                out.close();
+                out.run.delete();
+            }
+            throw e;
+        }finally{
+            for(RunReader r:readers)
+            {
+                r.close();
+            }
+        }
+    }
+
+    ////////////////////
+    ////Writes a run, a temporary file next to the output. Layout (little endian): number of
+    ////genes, each gene id (length, bytes) in name order, then for each cell with keys: cell,
+    ////the keys (sorted) in chunks of a count then that many keys, and a 0 count; then -1.
+    /////////////////////
+    protected static class RunWriter implements Closeable
+    {
+        protected File run;
+        protected DataOutputStream out;
+        protected long[] chunk=new long[chunkLength]; //keys not written yet
+        protected int n=0; //number of keys in chunk
+
+        protected RunWriter(UMICounter counter,ArrayList<byte[]> names) throws IOException
+        {
+            this.run=File.createTempFile("umis",".run",counter.owner.outfile.getAbsoluteFile().getParentFile());
+            this.run.deleteOnExit();
+            this.out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.run),1<<20));
+            LittleEndian.writeInt(this.out,names.size());
+            for(byte[] name:names)
+            {
+                LittleEndian.writeInt(this.out,name.length);
+                this.out.write(name);
+            }
+        }
+
+        protected void startCell(int cell) throws IOException
+        {
+            LittleEndian.writeInt(this.out,cell);
+        }
+
+        protected void add(long key) throws IOException
+        {
+            if(this.n==this.chunk.length)
+            {
+                this.writeChunk();
+            }
+            this.chunk[this.n]=key;
+            this.n=this.n+1;
+        }
+
+        protected void endCell() throws IOException
+        {
+            this.writeChunk();
+            LittleEndian.writeInt(this.out,0);
+        }
+
+        protected void writeChunk() throws IOException
+        {
+            if(this.n>0)
+            {
+                LittleEndian.writeInt(this.out,this.n);
+                LittleEndian.writeLongs(this.out,this.chunk,this.n);
+                this.n=0;
+            }
+        }
+
+        //Ends the run, must be called after the last endCell
+        public void close() throws IOException
+        {
+            if(this.out!=null)
+            {
+                try{
+                    LittleEndian.writeInt(this.out,-1);
+                }finally{
+                    this.out.close();
+                    this.out=null;
+                }
+            }
+        }
+    }
+
+    //Reads a run key by key, with a chunk of keys in memory, translating gene numbers with geneMap
+    protected static class RunReader implements Closeable
+    {
+        protected DataInputStream in;
+        protected UMICounter merger; //the counter doing the merge
+        protected ArrayList<byte[]> names=new ArrayList<byte[]>(); //gene ids in the run
+        protected int[] geneMap; //gene number in the run to number in the merge, set before reading keys
+        protected int cell=-1; //current cell, -1 at the end
+        protected long key; //current key (translated)
+        protected long[] chunk=new long[chunkLength];
+        protected byte[] bytes=new byte[8*chunkLength];
+        protected int chunkPos=0; //next key in chunk
+        protected int chunkLen=0; //keys in chunk
+        protected int keysLeft=0; //keys of the current count still in the file
+
+        protected RunReader(File run,UMICounter merger) throws IOException
+        {
+            this.in=new DataInputStream(new BufferedInputStream(new FileInputStream(run),1<<16));
+            this.merger=merger;
+            int numGenes=LittleEndian.readInt(this.in);
+            for(int g=0;g<numGenes;g++)
+            {
+                byte[] name=new byte[LittleEndian.readInt(this.in)];
+                this.in.readFully(name);
+                this.names.add(name);
+            }
+        }
+
+        //Moves on to the first key of the next cell, false at the end of the run
+        protected boolean nextCell() throws IOException
+        {
+            this.cell=LittleEndian.readInt(this.in);
+            if(this.cell<0)
+            {
+                return(false);
+            }
+            this.keysLeft=LittleEndian.readInt(this.in);
+            return(this.nextKey());
+        }
+
+        //Moves on to the next key of the current cell, false once there are no more
+        protected boolean nextKey() throws IOException
+        {
+            if(this.chunkPos==this.chunkLen)
+            {
+                if(this.keysLeft==0)
+                {
+                    this.keysLeft=LittleEndian.readInt(this.in);
+                    if(this.keysLeft==0)
+                    {
+                        return(false);
+                    }
+                }
+                this.chunkLen=Math.min(this.keysLeft,this.chunk.length);
+                LittleEndian.readLongs(this.in,this.chunk,this.chunkLen,this.bytes);
+                this.keysLeft=this.keysLeft-this.chunkLen;
+                this.chunkPos=0;
+            }
+            this.key=this.merger.translate(this.chunk[this.chunkPos],this.geneMap);
+            this.chunkPos=this.chunkPos+1;
+            return(true);
+        }
+
+        public void close() throws IOException
+        {
+            this.in.close();
+        }
+    }
+
+}